@@ -0,0 +1,283 @@
+//package cmsc420.heptatrie;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the pages of a file, held decoded in a fixed number of
+ * frames. When every frame is taken, the clock algorithm picks the page to
+ * evict: the hand sweeps the frames, clearing the referenced bit of each page
+ * used since it last passed, and evicts the first page it finds unreferenced.
+ * A dirty page is written back before it is evicted.
+ * <p>
+ * A page is never evicted while it is pinned. Pages of the upper levels of a
+ * tree may also be kept resident: up to half the frames hold such pages, and
+ * once that half is full a page displaces a kept page deeper than itself, so
+ * the levels nearest the root are the ones kept.
+ */
+public class BufferPool<P> {
+	/**
+	 * Reads and writes the pages held by a pool.
+	 */
+	public interface Pager<P> {
+		P read(int id);
+
+		void write(int id, P page);
+	}
+
+	private final Pager<P> pager;
+
+	/** id of the page in each frame; -1 if the frame is free */
+	private final int[] ids;
+
+	private final P[] pages;
+
+	private final int[] pins;
+
+	/** depth of the page in each frame if it is kept resident, else -1 */
+	private final int[] depths;
+
+	private final boolean[] dirty;
+
+	private final boolean[] referenced;
+
+	/** frame of each page in the pool */
+	private final Map<Integer, Integer> frames = new HashMap<Integer, Integer>();
+
+	/** number of frames used so far; frames after it have never been used */
+	private int used;
+
+	private int hand;
+
+	/** number of pages kept resident */
+	private int kept;
+
+	/** greatest depth of a kept page, or -1 if none is kept */
+	private int deepest = -1;
+
+	/** number of pages read and written */
+	private long reads, writes;
+
+	@SuppressWarnings("unchecked")
+	public BufferPool(Pager<P> pager, int capacity) {
+		this.pager = pager;
+		ids = new int[capacity];
+		pages = (P[]) new Object[capacity];
+		pins = new int[capacity];
+		depths = new int[capacity];
+		dirty = new boolean[capacity];
+		referenced = new boolean[capacity];
+		for (int f = 0; f < capacity; f++) {
+			ids[f] = -1;
+			depths[f] = -1;
+		}
+	}
+
+	/**
+	 * Gets a page, reading it if it is not in the pool. The page may be
+	 * evicted by any later call unless it is pinned.
+	 *
+	 * @param depth
+	 *            depth of a page of an upper level to keep resident, or -1
+	 */
+	public P get(int id, int depth) {
+		return pages[frame(id, depth)];
+	}
+
+	/**
+	 * Gets a page and pins it until it is unpinned.
+	 */
+	public P pin(int id, int depth) {
+		final int f = frame(id, depth);
+		pins[f]++;
+		return pages[f];
+	}
+
+	public void unpin(int id) {
+		pins[frames.get(id)]--;
+	}
+
+	/**
+	 * Adds a new page, pinned and dirty.
+	 */
+	public void add(int id, P page) {
+		final int f = victim();
+		install(f, id, page);
+		dirty[f] = true;
+		pins[f]++;
+	}
+
+	/**
+	 * Marks a page in the pool as changed, so it is written before it is
+	 * evicted.
+	 */
+	public void markDirty(int id) {
+		dirty[frames.get(id)] = true;
+	}
+
+	/**
+	 * Drops a page without writing it.
+	 */
+	public void discard(int id) {
+		final Integer f = frames.get(id);
+		if (f != null) {
+			free(f);
+		}
+	}
+
+	/**
+	 * Lets every kept page be evicted again, as when the depths of the pages
+	 * change.
+	 */
+	public void releaseKept() {
+		for (int f = 0; f < used; f++) {
+			depths[f] = -1;
+		}
+		kept = 0;
+		deepest = -1;
+	}
+
+	/**
+	 * Writes every dirty page.
+	 */
+	public void flush() {
+		for (int f = 0; f < used; f++) {
+			if (dirty[f]) {
+				pager.write(ids[f], pages[f]);
+				writes++;
+				dirty[f] = false;
+			}
+		}
+	}
+
+	/**
+	 * Drops every page without writing it.
+	 */
+	public void clear() {
+		for (int f = 0; f < used; f++) {
+			if (ids[f] >= 0) {
+				free(f);
+			}
+		}
+	}
+
+	public int getCapacity() {
+		return ids.length;
+	}
+
+	public long getReads() {
+		return reads;
+	}
+
+	public long getWrites() {
+		return writes;
+	}
+
+	/**
+	 * Finds the frame of a page, reading the page into a frame if it is not
+	 * in the pool.
+	 */
+	private int frame(int id, int depth) {
+		final Integer frame = frames.get(id);
+		final int f;
+		if (frame == null) {
+			f = victim();
+			install(f, id, pager.read(id));
+			reads++;
+		} else {
+			f = frame;
+		}
+		referenced[f] = true;
+		if (depth >= 0) {
+			keep(f, depth);
+		}
+		return f;
+	}
+
+	private void install(int f, int id, P page) {
+		ids[f] = id;
+		pages[f] = page;
+		referenced[f] = true;
+		frames.put(id, f);
+	}
+
+	private void free(int f) {
+		frames.remove(ids[f]);
+		if (depths[f] >= 0) {
+			depths[f] = -1;
+			kept--;
+		}
+		ids[f] = -1;
+		pages[f] = null;
+		pins[f] = 0;
+		dirty[f] = false;
+	}
+
+	/**
+	 * Keeps a page resident if there is room, or if a page deeper than it
+	 * can make room.
+	 */
+	private void keep(int f, int depth) {
+		if (depths[f] >= 0) {
+			depths[f] = Math.min(depths[f], depth);
+			return;
+		}
+		if (kept < ids.length / 2) {
+			depths[f] = depth;
+			kept++;
+			deepest = Math.max(deepest, depth);
+			return;
+		}
+		while (depth < deepest) {
+			/* displace a deepest kept page, and find the new deepest */
+			int displaced = -1;
+			int next = -1;
+			for (int g = 0; g < used; g++) {
+				if (depths[g] == deepest && displaced < 0) {
+					displaced = g;
+				} else {
+					next = Math.max(next, depths[g]);
+				}
+			}
+			if (displaced >= 0) {
+				depths[displaced] = -1;
+				depths[f] = depth;
+				deepest = Math.max(next, depth);
+				return;
+			}
+			/* the deepest kept page was dropped */
+			deepest = next;
+		}
+	}
+
+	/**
+	 * Finds a frame for a page, evicting a page if every frame is taken.
+	 */
+	private int victim() {
+		if (used < ids.length) {
+			return used++;
+		}
+		for (int sweep = 0; sweep < 2 * ids.length; sweep++) {
+			final int f = hand;
+			hand = (hand + 1) % ids.length;
+			if (ids[f] < 0) {
+				return f;
+			}
+			if (pins[f] > 0 || depths[f] >= 0) {
+				continue;
+			}
+			if (referenced[f]) {
+				referenced[f] = false;
+				continue;
+			}
+			if (dirty[f]) {
+				pager.write(ids[f], pages[f]);
+				writes++;
+			}
+			free(f);
+			return f;
+		}
+		throw new IllegalStateException("every page in the buffer pool is "
+				+ "pinned or kept");
+	}
+}
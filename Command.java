@@ -8,8 +8,6 @@ import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.HashMap;
@@ -56,11 +54,11 @@ import cmsc420.xml.XmlUtility;
  * node, processes the node, and outputs the results.
  */
 public class Command {
-	/** output DOM Document tree */
+	/** DOM Document tree used to create result elements */
 	protected Document results;
 
-	/** root node of results document */
-	protected Element resultsNode;
+	/** receives the result of each processed command */
+	protected ResultSink resultSink;
 
 	/**
 	 * stores created cities sorted by their names (used with listCities
@@ -73,14 +71,15 @@ public class Command {
 	 * stores created cities sorted by their locations (used with listCities
 	 * command)
 	 */
-	protected final TreeSet<City> citiesByLocation = new TreeSet<City>(new CityLocationComparator());
-			
-	private final RoadAdjacencyList roads = new RoadAdjacencyList();
+	protected final TreeSet<City> citiesByLocation;
+
+	/** stores mapped roads by the cities they connect */
+	protected final RoadAdjacencyList roads;
 
 	/** stores mapped cities in a spatial data structure */
-	protected Map<Integer, PMQuadtree> pmqts = new HashMap<Integer, PMQuadtree>();
+	protected Map<Integer, PMQuadtree> pmqts;
 
-	protected Map<String, Integer> portals = new HashMap<String, Integer>();
+	protected Map<String, Integer> portals;
 	
 	/** order of the PM Quadtree */
 	protected int pmOrder;
@@ -91,9 +90,60 @@ public class Command {
 	/** spatial height of the PM Quadtree */
 	protected int spatialHeight;
 
+	/** number of error results reported by this command processor */
+	private int errorCount;
+
 		
 	public Command(int leafOrder) {
-		citiesByName = new HeptaTrie<String, City>(new StringComparator(), leafOrder);
+		this(leafOrder, HeptaTrie.DEFAULT_GUIDE_ORDER);
+	}
+
+	/**
+	 * Creates a command processor whose dictionary has the given leaf and
+	 * guide orders.
+	 */
+	public Command(int leafOrder, int guideOrder) {
+		citiesByName = new HeptaTrie<String, City>(new StringComparator(), leafOrder, guideOrder);
+		citiesByName.setCounting(Boolean.getBoolean("meeshquest.stats"));
+		citiesByLocation = new TreeSet<City>(new CityLocationComparator());
+		roads = new RoadAdjacencyList();
+		pmqts = new HashMap<Integer, PMQuadtree>();
+		portals = new HashMap<String, Integer>();
+	}
+
+	/**
+	 * Creates a command processor with the orders set by a commands node: its
+	 * leafOrder and, if given, its guideOrder.
+	 * 
+	 * @param node
+	 *            commands node
+	 * @return command processor for the commands under the node
+	 */
+	public static Command forCommands(final Element node) {
+		final int leafOrder = Integer.parseInt(node.getAttribute("leafOrder"));
+		final String guideOrder = node.getAttribute("guideOrder");
+		return new Command(leafOrder, guideOrder.equals("") ? HeptaTrie.DEFAULT_GUIDE_ORDER
+				: Integer.parseInt(guideOrder));
+	}
+
+	/**
+	 * Creates a command processor that shares the data structures of another
+	 * one. Results must be set separately with setResults. Used to run
+	 * read-only commands on several threads at once, each with its own
+	 * results.
+	 * 
+	 * @param shared
+	 *            command processor whose data structures are shared
+	 */
+	public Command(final Command shared) {
+		citiesByName = shared.citiesByName;
+		citiesByLocation = shared.citiesByLocation;
+		roads = shared.roads;
+		pmqts = shared.pmqts;
+		portals = shared.portals;
+		pmOrder = shared.pmOrder;
+		spatialWidth = shared.spatialWidth;
+		spatialHeight = shared.spatialHeight;
 	}
 
 	/**
@@ -104,9 +154,20 @@ public class Command {
 	 *            DOM Document tree
 	 */
 	public void setResults(Document results) {
+		setResults(results, new DocumentResultSink(results));
+	}
+
+	/**
+	 * Set the sink to send the results of processed commands to.
+	 * 
+	 * @param results
+	 *            DOM Document tree used to create result elements
+	 * @param resultSink
+	 *            receives the result of each processed command
+	 */
+	public void setResults(Document results, ResultSink resultSink) {
 		this.results = results;
-		resultsNode = results.createElement("results");
-		results.appendChild(resultsNode);
+		this.resultSink = resultSink;
 	}
 
 	/**
@@ -193,7 +254,18 @@ public class Command {
 		error.setAttribute("type", type);
 		error.appendChild(command);
 		error.appendChild(parameters);
-		resultsNode.appendChild(error);
+		resultSink.addResult(error);
+		errorCount++;
+	}
+
+	/**
+	 * Gets the number of error results this command processor has reported.
+	 * Views created with {@link #Command(Command)} keep their own count.
+	 * 
+	 * @return number of error results reported
+	 */
+	public int getErrorCount() {
+		return errorCount;
 	}
 
 	/**
@@ -212,7 +284,7 @@ public class Command {
 		success.appendChild(command);
 		success.appendChild(parameters);
 		success.appendChild(output);
-		resultsNode.appendChild(success);
+		resultSink.addResult(success);
 		return success;
 	}
 
@@ -274,14 +346,13 @@ public class Command {
 
 		final String name = processStringAttribute(node, "name", parametersNode);
 
-		if (!citiesByName.containsKey(name)) {
+		/* delete city */
+		final City deletedCity = citiesByName.remove(name);
+		if (deletedCity == null) {
 			addErrorNode("cityDoesNotExist", commandNode, parametersNode);
 		} else {
-			/* delete city */
 			final Element outputNode = results.createElement("output");
-			final City deletedCity = (City)citiesByName.get(name);
 
-			citiesByName.remove(name);			
 			citiesByLocation.remove(deletedCity);
 			TreeSet<Road> roadsForDeletedCity = roads.deleteCity(deletedCity);
 			
@@ -340,18 +411,8 @@ public class Command {
 
 			Collection<City> cityCollection = null;
 			if (sortBy.equals("name")) {
-				List<City> cities = new ArrayList<City>(citiesByLocation.size());
-				for (City c : citiesByLocation) {
-					cities.add(c);
-				}
-				Collections.sort(cities, new Comparator<City>() {
-
-					// @Override
-					public int compare(City arg0, City arg1) {
-						return arg0.getName().compareTo(arg1.getName());
-					}
-				});
-				cityCollection = cities;
+				/* the dictionary is already in name order */
+				cityCollection = citiesByName.values();
 			} else if (sortBy.equals("coordinate")) {
 				cityCollection = citiesByLocation;
 			} else {
@@ -418,6 +479,52 @@ public class Command {
 		}
 	}
 
+	/**
+	 * Reports the shape of the city dictionary and the work it has done.
+	 * Comparisons and operations are counted only when the meeshquest.stats
+	 * property is set.
+	 */
+	public void processPrintHeptaTrieStats(final Element node) {
+		final Element commandNode = getCommandNode(node);
+		final Element parametersNode = results.createElement("parameters");
+		final Element outputNode = results.createElement("output");
+
+		citiesByName.getStatistics().addToXmlDoc(results, outputNode);
+		addSuccessNode(commandNode, parametersNode, outputNode);
+	}
+
+	/**
+	 * Lists the first cities, in name order, whose names start with a
+	 * prefix.
+	 */
+	public void processCitiesWithPrefix(final Element node) {
+		final Element commandNode = getCommandNode(node);
+		final Element parametersNode = results.createElement("parameters");
+
+		final String prefix = processStringAttribute(node, "prefix", parametersNode);
+		final int count = processIntegerAttribute(node, "count", parametersNode);
+
+		final Element cityListNode = results.createElement("cityList");
+		int found = 0;
+		for (City city : HeptaTrie.prefixMap(citiesByName, prefix).values()) {
+			if (found == count) {
+				break;
+			}
+			addCityNode(cityListNode, "city", city);
+			found++;
+		}
+
+		if (found == 0) {
+			addErrorNode("noCitiesWithPrefix", commandNode, parametersNode);
+		} else {
+			final Element outputNode = results.createElement("output");
+			outputNode.appendChild(cityListNode);
+
+			/* add success node to results */
+			addSuccessNode(commandNode, parametersNode, outputNode);
+		}
+	}
+
 	public void processMapRoad(Element node) {
 		final Element commandNode = getCommandNode(node);
 		final Element parametersNode = results.createElement("parameters");
@@ -1093,6 +1200,8 @@ public class Command {
 			PMQuadtree pmQuadtreeAtStartLevel = pmqts.get(new Integer(zStart));		
 			PMQuadtree pmQuadtreeAtEndLevel = pmqts.get(new Integer(zEnd));
 			Map<String, Portal> portalMap = new HashMap<String, Portal>();
+			/* roads to portals, private to this query */
+			final PortalRoads portalRoads = new PortalRoads();
 			
 			if (pmQuadtreeAtStartLevel == null || pmQuadtreeAtStartLevel.isEmpty() || !pmQuadtreeAtStartLevel.containsCity(start)) {		
 				addErrorNode("nonExistentStart", commandNode, parametersNode);
@@ -1132,13 +1241,7 @@ public class Command {
 									final Point2D.Float portalLoc = new Point2D.Float(portal.getX(), portal.getY());	
 									Road nearestRoad = nearestRoadHelper(pmQuadtree, portal.getX(), portal.getY());
 									double distance = nearestRoad.toLine2D().ptSegDist(portalLoc);
-									portal.setNearestRoad(z, nearestRoad);
-									Road betweenPortalAndStart = new Road(portal, nearestRoad.getStart());
-									betweenPortalAndStart.setDistance(distance);									
-									Road betweenPortalAndEnd = new Road(portal, nearestRoad.getEnd());
-									betweenPortalAndEnd.setDistance(distance);				
-									roads.addRoad(betweenPortalAndStart);
-									roads.addRoad(betweenPortalAndEnd);
+									portalRoads.addNearestRoad(portal, z, nearestRoad, distance);
 								}				
 							}
 						}												
@@ -1146,16 +1249,8 @@ public class Command {
 				}
 
 				final DecimalFormat decimalFormat = new DecimalFormat("#0.000");
-				final Dijkstranator dijkstranator = new Dijkstranator(roads);
+				final Dijkstranator dijkstranator = new Dijkstranator(roads, portalRoads.getRoads());
 				final Path path = dijkstranator.getShortestPath(startCity, endCity);
-				
-				// clean up  fake roads
-				if (zStart != zEnd) {
-					Collection<Portal> portals = portalMap.values();
-					for (Portal portal : portals) {
-						roads.removeRoadsForCity(portal);
-					}
-				}
 
 				if (path == null) {
 					addErrorNode("noPathExists", commandNode, parametersNode);
@@ -1182,13 +1277,13 @@ public class Command {
 						String endName = city2.getName();
 						if (city1 instanceof Portal) { // start is portal, end is city
 							int z = city2.getZ();
-							Road nearestRoad = ((Portal)city1).getNearestRoad(z);
+							Road nearestRoad = portalRoads.getNearestRoad((Portal)city1, z);
 							startName = nearestRoad.getEnd().getName().equals(endName) ? nearestRoad.getStart().getName() : nearestRoad.getEnd().getName();
 							portalNode.setAttribute("startZ", Integer.toString(z));
 						} else if (city2 instanceof Portal) { // end is portal, start is city
 							int z = city1.getZ();
 							String portalName = endName;
-							Road nearestRoad = ((Portal)city2).getNearestRoad(z);
+							Road nearestRoad = portalRoads.getNearestRoad((Portal)city2, z);
 							endName = nearestRoad.getStart().getName().equals(startName) ? nearestRoad.getEnd().getName() : nearestRoad.getStart().getName();
 							portalNode.setAttribute("startZ", Integer.toString(z));
 						}														
@@ -1238,13 +1333,13 @@ public class Command {
 							endName = city3.getName();
 							if (city2 instanceof Portal) {
 								int z = city3.getZ();
-								Road nearestRoad = ((Portal)city2).getNearestRoad(z);
+								Road nearestRoad = portalRoads.getNearestRoad((Portal)city2, z);
 								startName = nearestRoad.getEnd().getName().equals(endName) ? nearestRoad.getStart().getName() : nearestRoad.getEnd().getName();
 								portalNode.setAttribute("startZ", Integer.toString(z));
 							} if (city3 instanceof Portal) {
 								int z = city2.getZ();
 								String portalName = endName;
-								Road nearestRoad = ((Portal)city3).getNearestRoad(z);
+								Road nearestRoad = portalRoads.getNearestRoad((Portal)city3, z);
 								endName = nearestRoad.getStart().getName().equals(startName) ? nearestRoad.getEnd().getName() : nearestRoad.getStart().getName();
 								portalNode.setAttribute("startZ", Integer.toString(z));
 							}
@@ -0,0 +1,421 @@
+//package cmsc420.meeshquest.part2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Benchmark harness for the MeeshQuest commands. Drives Command directly
+ * through the command registry with command elements that are built before
+ * timing starts, so XML parsing and result serialization are not measured.
+ * <p>
+ * The map is a grid of cities on each z-level, with a road between each pair
+ * of horizontal and vertical neighbours and one portal per level. Queries are
+ * drawn from a seeded random number generator, so runs with the same
+ * parameters execute the same commands.
+ * <p>
+ * Usage: <code>java CommandBenchmark [name=value ...]</code>, where the
+ * parameters are
+ * <ul>
+ * <li>size: number of cities, over all levels (default 1000)</li>
+ * <li>leafOrder: order of the HeptaTrie leaves (default 3)</li>
+ * <li>guideOrder: order of the HeptaTrie guide nodes (default 7)</li>
+ * <li>levels: number of z-levels (default 1)</li>
+ * <li>queries: number of operations timed by each iteration of the query
+ * benchmarks (default 1000)</li>
+ * <li>warmup: untimed iterations run first (default 5)</li>
+ * <li>iterations: timed iterations (default 10)</li>
+ * <li>benchmarks: benchmarks to run (default all)</li>
+ * </ul>
+ * size, leafOrder, guideOrder, levels and benchmarks accept a
+ * comma-separated list; every combination is run. Each line also counts the
+ * timed commands that ended in an error, such as a range holding no cities.
+ */
+public class CommandBenchmark {
+	/** names of the benchmarks, in the order they are run */
+	private static final String[] BENCHMARKS = { "createCity", "mapRoad",
+			"mapPortal", "unmapRoad", "rangeCities", "rangeRoads",
+			"nearestCity", "nearestPortal", "citiesWithPrefix", "shortestPath" };
+
+	/** width of the benchmark name column */
+	private static final int NAME_WIDTH = width(BENCHMARKS, "benchmark");
+
+	/** seed for the queries and road choices */
+	private static final long SEED = 420;
+
+	private final CommandRegistry registry = CommandRegistry.createDefault();
+
+	/** factory for command elements */
+	private final Document document;
+
+	/** discards the results of every command */
+	private final ResultSink sink = new DiscardingResultSink();
+
+	private final int size;
+
+	private final int leafOrder;
+
+	private final int guideOrder;
+
+	private final int levels;
+
+	private final int queries;
+
+	/** number of cities along each side of the grid on a level */
+	private final int side;
+
+	/** distance between neighbouring cities */
+	private final int cell;
+
+	/** width and height of the map; a power of two */
+	private final int spatialSize;
+
+	/** commands node setting up the map */
+	private final Element commandsNode;
+
+	private final List<Element> createCities = new ArrayList<Element>();
+
+	private final List<Element> mapRoads = new ArrayList<Element>();
+
+	private final List<Element> mapPortals = new ArrayList<Element>();
+
+	/** number of times the portals have been mapped under new names */
+	private int portalRenames;
+
+	/**
+	 * Builds the commands describing a map.
+	 *
+	 * @param size
+	 *            number of cities over all levels
+	 * @param leafOrder
+	 *            order of the HeptaTrie leaves
+	 * @param guideOrder
+	 *            order of the HeptaTrie guide nodes
+	 * @param levels
+	 *            number of z-levels
+	 * @param queries
+	 *            number of operations per query iteration
+	 */
+	public CommandBenchmark(final int size, final int leafOrder,
+			final int guideOrder, final int levels, final int queries)
+			throws ParserConfigurationException {
+		this.size = size;
+		this.leafOrder = leafOrder;
+		this.guideOrder = guideOrder;
+		this.levels = levels;
+		this.queries = queries;
+		document = XmlUtility.newDocumentBuilder().newDocument();
+
+		side = Math.max(2, (int) Math.ceil(Math.sqrt((double) size / levels)));
+		cell = 16;
+		int spatial = 1;
+		while (spatial < (side + 1) * cell) {
+			spatial <<= 1;
+		}
+		spatialSize = spatial;
+
+		commandsNode = element("commands", "spatialWidth", spatialSize,
+				"spatialHeight", spatialSize, "leafOrder", leafOrder,
+				"guideOrder", guideOrder);
+		for (int z = 0; z < levels; z++) {
+			for (int i = 0; i < side; i++) {
+				for (int j = 0; j < side; j++) {
+					createCities.add(element("createCity", "name", cityName(i,
+							j, z), "x", (i + 1) * cell, "y", (j + 1) * cell,
+							"z", z, "radius", 0, "color", "black"));
+					if (i > 0) {
+						mapRoads.add(element("mapRoad", "start", cityName(
+								i - 1, j, z), "end", cityName(i, j, z)));
+					}
+					if (j > 0) {
+						mapRoads.add(element("mapRoad", "start", cityName(i,
+								j - 1, z), "end", cityName(i, j, z)));
+					}
+				}
+			}
+
+			/* centre of a grid cell, away from every city and road */
+			final int p = side / 2 * cell + cell / 2;
+			mapPortals.add(element("mapPortal", "name", "P" + z, "x", p, "y",
+					p, "z", z));
+		}
+	}
+
+	/**
+	 * Runs one benchmark and prints a line with its latencies.
+	 *
+	 * @param name
+	 *            name of the benchmark
+	 * @param warmup
+	 *            number of untimed iterations
+	 * @param iterations
+	 *            number of timed iterations
+	 */
+	public void run(final String name, final int warmup, final int iterations)
+			throws IOException, ParserConfigurationException,
+			TransformerException {
+		final Random random = new Random(SEED);
+		final boolean fresh = name.equals("createCity")
+				|| name.equals("mapRoad");
+
+		/* commands run before timing, and after each timed batch */
+		final List<Element> setUp = new ArrayList<Element>();
+		final List<Element> tearDown = new ArrayList<Element>();
+		if (!name.equals("createCity")) {
+			setUp.addAll(createCities);
+		}
+		if (!fresh) {
+			setUp.addAll(mapRoads);
+			if (!name.equals("mapPortal")) {
+				setUp.addAll(mapPortals);
+			}
+		}
+
+		Command command = null;
+		final LatencyHistogram latency = new LatencyHistogram();
+		long errors = 0;
+		for (int iteration = 0; iteration < warmup + iterations; iteration++) {
+			if (fresh || command == null) {
+				command = newCommand();
+				run(command, setUp, null);
+				if (command.getErrorCount() > 0) {
+					throw new IllegalStateException("map for " + name
+							+ " could not be built");
+				}
+			}
+
+			final List<Element> operations = operations(name, random);
+			if (name.equals("unmapRoad")) {
+				/* put the removed roads back afterwards */
+				tearDown.clear();
+				for (Element unmap : operations) {
+					tearDown.add(element("mapRoad", "start", unmap
+							.getAttribute("start"), "end", unmap
+							.getAttribute("end")));
+				}
+			}
+			/* there are only a few portals, so map them again and again */
+			final int rounds = name.equals("mapPortal") ? Math.max(1, queries
+					/ operations.size()) : 1;
+			for (int round = 0; round < rounds; round++) {
+				final List<Element> batch = name.equals("mapPortal") ? renamePortals(
+						tearDown) : operations;
+				final int before = command.getErrorCount();
+				run(command, batch, iteration < warmup ? null : latency);
+				final int errorCount = command.getErrorCount();
+				if (iteration >= warmup) {
+					errors += errorCount - before;
+				}
+				run(command, tearDown, null);
+				if (command.getErrorCount() != errorCount) {
+					throw new IllegalStateException("map for " + name
+							+ " could not be restored");
+				}
+			}
+		}
+
+		System.out.printf("%-" + NAME_WIDTH
+				+ "s %8d %9d %10d %6d %9d %7d %10.2f %10.2f %10.2f%n", name,
+				size, leafOrder, guideOrder, levels, latency.getCount(), errors,
+				latency.getTotal() / 1e3 / Math.max(1, latency.getCount()),
+				latency.getPercentile(0.5) / 1e3,
+				latency.getPercentile(0.99) / 1e3);
+	}
+
+	/**
+	 * Builds the timed commands for one iteration of a benchmark.
+	 */
+	private List<Element> operations(final String name, final Random random) {
+		if (name.equals("createCity")) {
+			return createCities;
+		} else if (name.equals("mapRoad")) {
+			return mapRoads;
+		} else if (name.equals("mapPortal")) {
+			return mapPortals;
+		}
+
+		final List<Element> operations = new ArrayList<Element>(queries);
+		if (name.equals("unmapRoad")) {
+			final List<Element> roads = new ArrayList<Element>(mapRoads);
+			for (int i = 0; i < queries && i < roads.size(); i++) {
+				final int k = i + random.nextInt(roads.size() - i);
+				final Element road = roads.get(k);
+				roads.set(k, roads.get(i));
+				operations.add(element("unmapRoad", "start", road
+						.getAttribute("start"), "end", road.getAttribute("end")));
+			}
+			return operations;
+		}
+
+		for (int i = 0; i < queries; i++) {
+			final int x = random.nextInt(spatialSize);
+			final int y = random.nextInt(spatialSize);
+			final int z = random.nextInt(levels);
+			if (name.equals("rangeCities") || name.equals("rangeRoads")) {
+				operations.add(element(name, "x", x, "y", y, "z", z,
+						"radius", random.nextInt(spatialSize / 8) + 1));
+			} else if (name.equals("nearestCity")
+					|| name.equals("nearestPortal")) {
+				operations.add(element(name, "x", x, "y", y, "z", z));
+			} else if (name.equals("citiesWithPrefix")) {
+				/* a partly typed name */
+				final String city = cityName(random.nextInt(side), random
+						.nextInt(side), z);
+				operations.add(element(name, "prefix", city.substring(0,
+						1 + random.nextInt(city.length())), "count", 10));
+			} else if (name.equals("shortestPath")) {
+				/* routes always span every level in between */
+				operations.add(element(name, "start", cityName(random
+						.nextInt(side), random.nextInt(side), 0), "end",
+						cityName(random.nextInt(side), random.nextInt(side),
+								levels - 1)));
+			} else {
+				throw new IllegalArgumentException("unknown benchmark " + name);
+			}
+		}
+		return operations;
+	}
+
+	/**
+	 * Builds commands mapping the portals under names not used before, as an
+	 * unmapped portal's name stays taken, and the commands unmapping them.
+	 */
+	private List<Element> renamePortals(final List<Element> tearDown) {
+		final List<Element> renamed = new ArrayList<Element>();
+		tearDown.clear();
+		for (Element portal : mapPortals) {
+			final String name = portal.getAttribute("name") + "_"
+					+ portalRenames;
+			renamed.add(element("mapPortal", "name", name, "x", portal
+					.getAttribute("x"), "y", portal.getAttribute("y"), "z",
+					portal.getAttribute("z")));
+			tearDown.add(element("unmapPortal", "name", name));
+		}
+		portalRenames++;
+		return renamed;
+	}
+
+	/**
+	 * Creates an empty command processor for the map.
+	 */
+	private Command newCommand() throws IOException,
+			ParserConfigurationException, TransformerException {
+		final Command command = new Command(leafOrder, guideOrder);
+		command.setResults(document, sink);
+		registry.getHandler("commands").process(command, commandsNode);
+		return command;
+	}
+
+	/**
+	 * Runs a list of commands, recording the latency of each one if a
+	 * histogram is given.
+	 */
+	private void run(final Command command, final List<Element> commands,
+			final LatencyHistogram latency) throws IOException,
+			ParserConfigurationException, TransformerException {
+		for (Element node : commands) {
+			final CommandHandler handler = registry.getHandler(node
+					.getNodeName());
+			final long begin = System.nanoTime();
+			handler.process(command, node);
+			if (latency != null) {
+				latency.record(System.nanoTime() - begin);
+			}
+		}
+	}
+
+	private static String cityName(final int i, final int j, final int z) {
+		return "C" + z + "_" + i + "_" + j;
+	}
+
+	/**
+	 * Creates a command element with alternating attribute names and values.
+	 */
+	private Element element(final String name, final Object... attributes) {
+		final Element element = document.createElement(name);
+		for (int i = 0; i < attributes.length; i += 2) {
+			element.setAttribute((String) attributes[i], String
+					.valueOf(attributes[i + 1]));
+		}
+		return element;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Map<String, String> parameters = new LinkedHashMap<String, String>();
+		parameters.put("size", "1000");
+		parameters.put("leafOrder", "3");
+		parameters.put("guideOrder", "7");
+		parameters.put("levels", "1");
+		parameters.put("queries", "1000");
+		parameters.put("warmup", "5");
+		parameters.put("iterations", "10");
+		parameters.put("benchmarks", join(BENCHMARKS));
+		for (String arg : args) {
+			final int equals = arg.indexOf('=');
+			if (equals < 0 || !parameters.containsKey(arg.substring(0, equals))) {
+				System.err.println("unknown parameter " + arg);
+				System.exit(-1);
+			}
+			parameters.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+
+		final int queries = Integer.parseInt(parameters.get("queries"));
+		final int warmup = Integer.parseInt(parameters.get("warmup"));
+		final int iterations = Integer.parseInt(parameters.get("iterations"));
+		final List<String> benchmarks = Arrays.asList(parameters.get(
+				"benchmarks").split(","));
+
+		System.out.printf("%-" + NAME_WIDTH
+				+ "s %8s %9s %10s %6s %9s %7s %10s %10s %10s%n", "benchmark",
+				"size", "leafOrder", "guideOrder", "levels", "ops", "errors",
+				"mean us", "p50 us", "p99 us");
+		for (String size : parameters.get("size").split(",")) {
+			for (String leafOrder : parameters.get("leafOrder").split(",")) {
+				for (String guideOrder : parameters.get("guideOrder").split(",")) {
+					for (String levels : parameters.get("levels").split(",")) {
+						final CommandBenchmark benchmark = new CommandBenchmark(
+								Integer.parseInt(size), Integer
+										.parseInt(leafOrder), Integer
+										.parseInt(guideOrder), Integer
+										.parseInt(levels), queries);
+						for (String name : benchmarks) {
+							benchmark.run(name, warmup, iterations);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the length of the longest of some names and a heading.
+	 */
+	private static int width(final String[] names, final String heading) {
+		int width = heading.length();
+		for (String name : names) {
+			width = Math.max(width, name.length());
+		}
+		return width;
+	}
+
+	private static String join(final String[] names) {
+		final StringBuilder joined = new StringBuilder();
+		for (String name : names) {
+			if (joined.length() > 0) {
+				joined.append(',');
+			}
+			joined.append(name);
+		}
+		return joined.toString();
+	}
+}
@@ -0,0 +1,25 @@
+//package cmsc420.command;
+
+import java.io.IOException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Element;
+
+/**
+ * Processes one kind of command against a {@link Command}. Handlers are
+ * looked up by command name in a {@link CommandRegistry}.
+ */
+public interface CommandHandler {
+	/**
+	 * Processes a command node.
+	 * 
+	 * @param command
+	 *            command processor holding the data structures
+	 * @param node
+	 *            command node to be processed
+	 */
+	public void process(Command command, Element node) throws IOException,
+			ParserConfigurationException, TransformerException;
+}
@@ -0,0 +1,431 @@
+//package cmsc420.meeshquest.part2;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Write-ahead journal of the commands that change the state of a command
+ * processor. Wrapping a registry's handlers with the journal records each
+ * mutating command, and the root commands node, before it is processed.
+ * <p>
+ * Records are appended to a buffer and the file is forced to disk as a group,
+ * at most every flush interval, rather than once per command. Commands
+ * processed within the last interval before a crash may therefore be lost.
+ * Once a group fails to be written, every later append, sync and checkpoint
+ * throws, so no further command is processed as if it were durable.
+ * <p>
+ * When a snapshot file is given, the state is saved to it every checkpoint
+ * interval commands and the journal is emptied. Each record has a sequence
+ * number, and a snapshot stores the sequence number of the first command it
+ * does not include, so a crash in the middle of a checkpoint never replays a
+ * command twice. Recovery loads the snapshot and replays only the commands
+ * journaled after it. A record with a bad checksum, such as one torn by a
+ * crash, ends the journal.
+ */
+public class CommandJournal implements CommandRegistry.HandlerWrapper {
+	/** identifies a journal file ("MQJL") */
+	private static final int MAGIC = 0x4d514a4c;
+
+	/** version of the file layout */
+	private static final int VERSION = 1;
+
+	/** size of the file header: magic, version and first sequence number */
+	private static final int HEADER_SIZE = 16;
+
+	/** commands recorded in the journal */
+	private static final Set<String> MUTATING = new HashSet<String>(Arrays
+			.asList("commands", "createCity", "deleteCity", "mapRoad",
+					"mapPortal", "unmapRoad", "unmapPortal", "clearAll"));
+
+	/** snapshot file written at each checkpoint; null disables checkpoints */
+	private final File snapshot;
+
+	/** number of commands journaled between checkpoints */
+	private final long checkpointInterval;
+
+	private final FileChannel channel;
+
+	/** records not yet written to the channel */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+
+	/** encodes one record */
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+
+	private final CRC32 crc = new CRC32();
+
+	/** forces the journal to disk every flush interval */
+	private final ScheduledExecutorService flusher;
+
+	/** sequence number of the next record */
+	private long sequence;
+
+	/** sequence number of the first record after the last checkpoint */
+	private long checkpointSequence;
+
+	/** true if records have been appended since the last force */
+	private boolean dirty;
+
+	/** first failure to write the journal, or null if there has been none */
+	private IOException failure;
+
+	/**
+	 * Opens a journal, creating it if it does not exist. Call
+	 * {@link #recover()} before journaling any commands.
+	 *
+	 * @param file
+	 *            journal file
+	 * @param snapshot
+	 *            snapshot file for checkpoints, or null for none
+	 * @param checkpointInterval
+	 *            number of commands journaled between checkpoints
+	 * @param flushInterval
+	 *            milliseconds between forces of the journal to disk
+	 * @throws IOException
+	 *             the journal could not be opened
+	 */
+	public CommandJournal(final File file, final File snapshot,
+			final long checkpointInterval, final long flushInterval)
+			throws IOException {
+		this.snapshot = snapshot;
+		this.checkpointInterval = checkpointInterval;
+		channel = new RandomAccessFile(file, "rw").getChannel();
+
+		flusher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "journal flusher");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					sync();
+				} catch (IOException e) {
+					/* kept in failure, and thrown by the next append */
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Rebuilds the state recorded by the snapshot and the journal. Commands
+	 * are replayed with unwrapped handlers and their results are discarded.
+	 * The journal is then positioned after its last valid record.
+	 *
+	 * @return the recovered command processor, or null if nothing has been
+	 *         recorded. Results must be set with setResults before commands
+	 *         are processed.
+	 * @throws IOException
+	 *             the snapshot or journal could not be read
+	 */
+	public synchronized Command recover() throws IOException,
+			ParserConfigurationException, TransformerException {
+		Command command = null;
+		long first = 0;
+		if (snapshot != null && snapshot.exists()) {
+			command = CommandSnapshot.load(snapshot);
+			first = CommandSnapshot.getSequence(snapshot);
+		}
+
+		final Document document = XmlUtility.newDocumentBuilder()
+				.newDocument();
+		final CommandRegistry registry = CommandRegistry.createDefault();
+		final ResultSink sink = new DiscardingResultSink();
+		if (command != null) {
+			command.setResults(document, sink);
+		}
+
+		/* a journal without a valid header holds nothing after the snapshot */
+		long base = first;
+		long position = HEADER_SIZE;
+		sequence = first;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		channel.read(header, 0);
+		header.flip();
+		if (header.remaining() == HEADER_SIZE && header.getInt() == MAGIC
+				&& header.getInt() == VERSION) {
+			base = header.getLong();
+			if (base > first) {
+				throw new IOException("journal starts at command " + base
+						+ " but the snapshot ends at command " + first);
+			}
+			sequence = base;
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Channels.newInputStream(channel
+							.position(HEADER_SIZE)), 1 << 16));
+			while (true) {
+				final byte[] payload = readRecord(in);
+				if (payload == null) {
+					break;
+				}
+				if (sequence >= first) {
+					command = replay(command, payload, registry, document, sink);
+				}
+				sequence++;
+				position += 8 + payload.length;
+			}
+			if (sequence < first) {
+				/* the journal predates the snapshot */
+				base = first;
+				sequence = first;
+				position = HEADER_SIZE;
+			}
+		}
+
+		/* drop anything after the last valid record */
+		writeHeader(base);
+		channel.truncate(position);
+		channel.position(position);
+		channel.force(true);
+		checkpointSequence = sequence;
+		return command;
+	}
+
+	/**
+	 * Reads the payload of the next record.
+	 *
+	 * @return payload, or null at the end of the journal or at a torn record
+	 */
+	private byte[] readRecord(final DataInputStream in) throws IOException {
+		final int length;
+		final int checksum;
+		final byte[] payload;
+		try {
+			length = in.readInt();
+			checksum = in.readInt();
+			if (length < 0 || length > 1 << 24) {
+				return null;
+			}
+			payload = new byte[length];
+			in.readFully(payload);
+		} catch (EOFException e) {
+			return null;
+		}
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue() == checksum ? payload : null;
+	}
+
+	/**
+	 * Processes a journaled command.
+	 *
+	 * @return the command processor, created if the command is the root node
+	 */
+	private static Command replay(Command command, final byte[] payload,
+			final CommandRegistry registry, final Document document,
+			final ResultSink sink) throws IOException,
+			ParserConfigurationException, TransformerException {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(payload));
+		final Element node = document.createElement(in.readUTF());
+		for (int i = in.readShort(); i > 0; i--) {
+			final String name = in.readUTF();
+			node.setAttribute(name, in.readUTF());
+		}
+
+		if (node.getNodeName().equals("commands")) {
+			if (command == null) {
+				command = Command.forCommands(node);
+				command.setResults(document, sink);
+				registry.getHandler("commands").process(command, node);
+			}
+		} else if (command != null) {
+			registry.getHandler(node.getNodeName()).process(command, node);
+		}
+		return command;
+	}
+
+	private void writeHeader(final long first) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(first).flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	public CommandHandler wrap(final String name, final CommandHandler handler) {
+		if (!MUTATING.contains(name)) {
+			return handler;
+		}
+		return new CommandHandler() {
+			public void process(final Command command, final Element node)
+					throws IOException, ParserConfigurationException,
+					TransformerException {
+				append(node);
+				handler.process(command, node);
+				checkpointIfDue(command);
+			}
+		};
+	}
+
+	/**
+	 * Appends a command to the journal. The command is written with the next
+	 * group of records.
+	 *
+	 * @param node
+	 *            command node
+	 * @throws IOException
+	 *             the journal could not be written
+	 */
+	public synchronized void append(final Element node) throws IOException {
+		checkFailure();
+		record.reset();
+		recordOut.writeUTF(node.getNodeName());
+		final NamedNodeMap attributes = node.getAttributes();
+		recordOut.writeShort(attributes.getLength());
+		for (int i = 0; i < attributes.getLength(); i++) {
+			final Node attribute = attributes.item(i);
+			recordOut.writeUTF(attribute.getNodeName());
+			recordOut.writeUTF(attribute.getNodeValue());
+		}
+		recordOut.flush();
+
+		final byte[] payload = record.toByteArray();
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		if (buffer.remaining() < 8 + payload.length) {
+			write();
+		}
+		if (buffer.remaining() < 8 + payload.length) {
+			/* larger than the buffer: write it on its own */
+			final ByteBuffer large = ByteBuffer.allocate(8 + payload.length);
+			large.putInt(payload.length).putInt((int) crc.getValue()).put(
+					payload).flip();
+			write(large);
+		} else {
+			buffer.putInt(payload.length);
+			buffer.putInt((int) crc.getValue());
+			buffer.put(payload);
+		}
+		sequence++;
+		dirty = true;
+	}
+
+	/**
+	 * Writes buffered records to the file without forcing them to disk.
+	 */
+	private void write() throws IOException {
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Writes records to the file, keeping the failure if they cannot be.
+	 */
+	private void write(final ByteBuffer records) throws IOException {
+		try {
+			while (records.hasRemaining()) {
+				channel.write(records);
+			}
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes buffered records and forces the journal to disk.
+	 *
+	 * @throws IOException
+	 *             the journal could not be written
+	 */
+	public synchronized void sync() throws IOException {
+		checkFailure();
+		if (dirty) {
+			write();
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+			dirty = false;
+		}
+	}
+
+	/**
+	 * Throws if an earlier group of records could not be written, as the
+	 * commands in it may have been lost.
+	 */
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("journal could not be written", failure);
+		}
+	}
+
+	/**
+	 * Checkpoints if a checkpoint interval has passed since the last one.
+	 */
+	private synchronized void checkpointIfDue(final Command command)
+			throws IOException {
+		if (snapshot != null
+				&& sequence - checkpointSequence >= checkpointInterval) {
+			checkpoint(command);
+		}
+	}
+
+	/**
+	 * Saves the state to the snapshot and empties the journal.
+	 *
+	 * @param command
+	 *            command processor holding the state
+	 * @throws IOException
+	 *             the snapshot or journal could not be written
+	 */
+	public synchronized void checkpoint(final Command command)
+			throws IOException {
+		sync();
+		CommandSnapshot.save(command, snapshot, sequence);
+		writeHeader(sequence);
+		channel.truncate(HEADER_SIZE);
+		channel.position(HEADER_SIZE);
+		channel.force(true);
+		checkpointSequence = sequence;
+	}
+
+	/**
+	 * Forces the journal to disk and closes it.
+	 *
+	 * @throws IOException
+	 *             the journal could not be written
+	 */
+	public synchronized void close() throws IOException {
+		flusher.shutdown();
+		try {
+			sync();
+		} finally {
+			channel.close();
+		}
+	}
+}
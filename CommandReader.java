@@ -0,0 +1,307 @@
+//package cmsc420.xml;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerException;
+import javax.xml.validation.ValidatorHandler;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.Attributes;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Streaming reader for MeeshQuest command documents. The input is parsed with
+ * SAX and validated on the fly against the schema named by the root element's
+ * xsi:noNamespaceSchemaLocation attribute. Each command element is handed to a
+ * listener as soon as its end tag has been validated, so only the command
+ * currently being read is held in memory and the first command runs before the
+ * rest of the file has been parsed.
+ * <p>
+ * The root commands element is handed to the listener first, when its start
+ * tag is read. It carries its attributes but no children.
+ * <p>
+ * Note: a validation error is reported when the parser reaches it. Commands
+ * read before the error have already been handed to the listener.
+ */
+public class CommandReader {
+
+	/**
+	 * Receives each command element as it is read.
+	 */
+	public interface Listener {
+		/**
+		 * Called once for the root commands element and then once for each
+		 * command element, in document order.
+		 *
+		 * @param commandNode
+		 *            command element that has been read and validated
+		 */
+		public void commandRead(Element commandNode) throws IOException,
+				ParserConfigurationException, TransformerException;
+	}
+
+	/**
+	 * Factory which generates the namespace aware SAX parsers required by the
+	 * schema validator.
+	 */
+	private static final SAXParserFactory saxFactory;
+
+	static {
+		saxFactory = SAXParserFactory.newInstance();
+		saxFactory.setNamespaceAware(true);
+	}
+
+	/**
+	 * Private constructor. All class methods are static.
+	 */
+	private CommandReader() {
+	}
+
+	/**
+	 * Reads, validates and hands off each command in an XML file.
+	 *
+	 * @param xmlFile
+	 *            XML file containing schema reference
+	 * @param listener
+	 *            receives each command element
+	 * @throws SAXException
+	 *             encapsulates problem parsing or validating the XML document
+	 * @throws IOException
+	 *             problem reading the XML file
+	 * @throws ParserConfigurationException
+	 *             a serious configuration error
+	 * @throws TransformerException
+	 *             thrown by the listener
+	 */
+	public static void read(final File xmlFile, final Listener listener)
+			throws SAXException, IOException, ParserConfigurationException,
+			TransformerException {
+		final InputStream xmlStream = new BufferedInputStream(
+				new FileInputStream(xmlFile));
+		try {
+			read(xmlStream, listener);
+		} finally {
+			xmlStream.close();
+		}
+	}
+
+	/**
+	 * Reads, validates and hands off each command in an XML input stream.
+	 *
+	 * @param xmlStream
+	 *            XML input stream containing schema reference
+	 * @param listener
+	 *            receives each command element
+	 * @throws SAXException
+	 *             encapsulates problem parsing or validating the XML document
+	 * @throws IOException
+	 *             problem reading the XML input stream
+	 * @throws ParserConfigurationException
+	 *             a serious configuration error
+	 * @throws TransformerException
+	 *             thrown by the listener
+	 */
+	public static void read(final InputStream xmlStream,
+			final Listener listener) throws SAXException, IOException,
+			ParserConfigurationException, TransformerException {
+		final Document document = XmlUtility.newDocumentBuilder()
+				.newDocument();
+		try {
+			newSAXParser().parse(xmlStream,
+					new ValidatingHandler(new CommandBuilder(document,
+							listener)));
+		} catch (SAXException e) {
+			/* unwrap exceptions thrown by the listener */
+			final Exception cause = e.getException();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof ParserConfigurationException) {
+				throw (ParserConfigurationException) cause;
+			} else if (cause instanceof TransformerException) {
+				throw (TransformerException) cause;
+			}
+			throw e;
+		}
+	}
+
+	private static synchronized SAXParser newSAXParser()
+			throws ParserConfigurationException, SAXException {
+		return saxFactory.newSAXParser();
+	}
+
+	/**
+	 * Loads the schema once the root element has been seen, then feeds every
+	 * parse event through a validator on its way to the command builder.
+	 */
+	private static class ValidatingHandler extends DefaultHandler {
+		private final CommandBuilder builder;
+
+		private ValidatorHandler validator;
+
+		private Locator locator;
+
+		/** prefix mappings reported before the root element */
+		private final List<String[]> prefixMappings = new ArrayList<String[]>();
+
+		public ValidatingHandler(final CommandBuilder builder) {
+			this.builder = builder;
+		}
+
+		public void setDocumentLocator(final Locator locator) {
+			this.locator = locator;
+		}
+
+		public void startPrefixMapping(final String prefix, final String uri)
+				throws SAXException {
+			if (validator == null) {
+				prefixMappings.add(new String[] { prefix, uri });
+			} else {
+				validator.startPrefixMapping(prefix, uri);
+			}
+		}
+
+		public void endPrefixMapping(final String prefix) throws SAXException {
+			validator.endPrefixMapping(prefix);
+		}
+
+		public void startElement(final String uri, final String localName,
+				final String qName, final Attributes attributes)
+				throws SAXException {
+			if (validator == null) {
+				/* root element: load the schema it refers to */
+				final String schemaFileName = attributes.getValue(
+						XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+						"noNamespaceSchemaLocation");
+				try {
+					validator = XmlUtility.getNoNamespaceSchema(
+							schemaFileName == null ? "" : schemaFileName)
+							.newValidatorHandler();
+				} catch (IOException e) {
+					throw new SAXException(e);
+				}
+				validator.setContentHandler(builder);
+				if (locator != null) {
+					validator.setDocumentLocator(locator);
+				}
+				validator.startDocument();
+				for (String[] mapping : prefixMappings) {
+					validator.startPrefixMapping(mapping[0], mapping[1]);
+				}
+			}
+			validator.startElement(uri, localName, qName, attributes);
+		}
+
+		public void endElement(final String uri, final String localName,
+				final String qName) throws SAXException {
+			validator.endElement(uri, localName, qName);
+		}
+
+		public void characters(final char[] ch, final int start,
+				final int length) throws SAXException {
+			if (validator != null) {
+				validator.characters(ch, start, length);
+			}
+		}
+
+		public void ignorableWhitespace(final char[] ch, final int start,
+				final int length) throws SAXException {
+			if (validator != null) {
+				validator.ignorableWhitespace(ch, start, length);
+			}
+		}
+
+		public void endDocument() throws SAXException {
+			if (validator != null) {
+				validator.endDocument();
+			}
+		}
+	}
+
+	/**
+	 * Builds a small DOM element for each validated command and hands it to
+	 * the listener. Elements are created but never appended to the document,
+	 * so each one can be garbage collected once the listener is done with it.
+	 */
+	private static class CommandBuilder extends DefaultHandler {
+		private final Document document;
+
+		private final Listener listener;
+
+		/** element being built, or null between commands */
+		private Element current;
+
+		/** depth of the element being read (root is 1) */
+		private int depth = 0;
+
+		public CommandBuilder(final Document document, final Listener listener) {
+			this.document = document;
+			this.listener = listener;
+		}
+
+		public void startElement(final String uri, final String localName,
+				final String qName, final Attributes attributes)
+				throws SAXException {
+			final Element element = document.createElement(qName);
+			for (int i = 0; i < attributes.getLength(); i++) {
+				element.setAttribute(attributes.getQName(i), attributes
+						.getValue(i));
+			}
+
+			depth++;
+			if (depth == 1) {
+				/* commands node: hand off immediately */
+				dispatch(element);
+			} else {
+				if (current != null) {
+					current.appendChild(element);
+				}
+				current = element;
+			}
+		}
+
+		public void endElement(final String uri, final String localName,
+				final String qName) throws SAXException {
+			depth--;
+			if (depth == 1) {
+				final Element commandNode = current;
+				current = null;
+				dispatch(commandNode);
+			} else if (depth > 1) {
+				current = (Element) current.getParentNode();
+			}
+		}
+
+		public void characters(final char[] ch, final int start,
+				final int length) {
+			if (current != null) {
+				current.appendChild(document.createTextNode(new String(ch,
+						start, length)));
+			}
+		}
+
+		private void dispatch(final Element commandNode) throws SAXException {
+			try {
+				listener.commandRead(commandNode);
+			} catch (IOException e) {
+				throw new SAXException(e);
+			} catch (ParserConfigurationException e) {
+				throw new SAXException(e);
+			} catch (TransformerException e) {
+				throw new SAXException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+//package cmsc420.command;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Element;
+
+/**
+ * Maps each command name to the handler that processes it. The registry is
+ * built once at startup, after which a command is dispatched with a single
+ * hash lookup on its element name.
+ */
+public class CommandRegistry {
+	/**
+	 * Wraps a handler with extra behaviour, e.g. timing instrumentation.
+	 */
+	public interface HandlerWrapper {
+		/**
+		 * Wraps a registered handler.
+		 * 
+		 * @param name
+		 *            command name the handler is registered under
+		 * @param handler
+		 *            handler to be wrapped
+		 * @return handler to register in its place
+		 */
+		public CommandHandler wrap(String name, CommandHandler handler);
+	}
+
+	/** command name to handler */
+	private final Map<String, CommandHandler> handlers = new HashMap<String, CommandHandler>();
+
+	/** names of commands that do not modify the data structures */
+	private final Set<String> readOnly = new HashSet<String>();
+
+	/**
+	 * Creates a registry containing the standard MeeshQuest commands.
+	 * 
+	 * @return registry of the standard commands
+	 */
+	public static CommandRegistry createDefault() {
+		final CommandRegistry registry = new CommandRegistry();
+		registry.register("commands", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processCommands(node);
+			}
+		});
+		registry.register("createCity", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processCreateCity(node);
+			}
+		});
+		registry.register("deleteCity", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processDeleteCity(node);
+			}
+		});
+		registry.register("clearAll", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processClearAll(node);
+			}
+		});
+		registry.register("listCities", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processListCities(node);
+			}
+		}, true);
+		registry.register("printHeptaTrie", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processPrintHeptaTrie(node);
+			}
+		}, true);
+		registry.register("printHeptaTrieStats", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processPrintHeptaTrieStats(node);
+			}
+		}, true);
+		registry.register("citiesWithPrefix", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processCitiesWithPrefix(node);
+			}
+		}, true);
+		registry.register("mapRoad", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processMapRoad(node);
+			}
+		});
+		registry.register("mapPortal", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processMapPortal(node);
+			}
+		});
+		registry.register("unmapRoad", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processUnmapRoad(node);
+			}
+		});
+		registry.register("unmapPortal", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processUnmapPortal(node);
+			}
+		});
+		registry.register("printPMQuadtree", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processPrintPMQuadtree(node);
+			}
+		}, true);
+		registry.register("saveMap", new CommandHandler() {
+			public void process(Command command, Element node)
+					throws IOException {
+				command.processSaveMap(node);
+			}
+		});
+		registry.register("rangeCities", new CommandHandler() {
+			public void process(Command command, Element node)
+					throws IOException {
+				command.processRangeCities(node);
+			}
+		}, true);
+		registry.register("rangeRoads", new CommandHandler() {
+			public void process(Command command, Element node)
+					throws IOException {
+				command.processRangeRoads(node);
+			}
+		}, true);
+		registry.register("nearestCity", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processNearestCity(node);
+			}
+		}, true);
+		registry.register("nearestPortal", new CommandHandler() {
+			public void process(Command command, Element node) {
+				command.processNearestPortal(node);
+			}
+		}, true);
+		registry.register("shortestPath", new CommandHandler() {
+			public void process(Command command, Element node)
+					throws IOException, ParserConfigurationException,
+					TransformerException {
+				command.processShortestPath(node);
+			}
+		}, true);
+		return registry;
+	}
+
+	/**
+	 * Registers a handler, replacing any handler already registered under the
+	 * same name.
+	 * 
+	 * @param name
+	 *            command name
+	 * @param handler
+	 *            handler for the command
+	 */
+	public void register(final String name, final CommandHandler handler) {
+		register(name, handler, false);
+	}
+
+	/**
+	 * Registers a handler, replacing any handler already registered under the
+	 * same name.
+	 * 
+	 * @param name
+	 *            command name
+	 * @param handler
+	 *            handler for the command
+	 * @param readOnly
+	 *            <code>true</code> if the command only reads the data
+	 *            structures, so it may run at the same time as other
+	 *            read-only commands
+	 */
+	public void register(final String name, final CommandHandler handler,
+			final boolean readOnly) {
+		handlers.put(name, handler);
+		if (readOnly) {
+			this.readOnly.add(name);
+		} else {
+			this.readOnly.remove(name);
+		}
+	}
+
+	/**
+	 * Returns if a command only reads the data structures. A command that
+	 * saves a map image or HTML file is never read-only, since the drawing and
+	 * XSLT helpers it uses are not thread safe.
+	 * 
+	 * @param node
+	 *            command node
+	 * @return <code>true</code> if the command may run at the same time as
+	 *         other read-only commands
+	 */
+	public boolean isReadOnly(final Element node) {
+		return readOnly.contains(node.getNodeName())
+				&& node.getAttribute("saveMap").equals("")
+				&& node.getAttribute("saveHTML").equals("");
+	}
+
+	/**
+	 * Gets the handler registered for a command name.
+	 * 
+	 * @param name
+	 *            command name
+	 * @return handler for the command, or <code>null</code> if there is none
+	 */
+	public CommandHandler getHandler(final String name) {
+		return handlers.get(name);
+	}
+
+	/**
+	 * Gets the names of all registered commands.
+	 * 
+	 * @return unmodifiable set of command names
+	 */
+	public Set<String> getCommandNames() {
+		return Collections.unmodifiableSet(handlers.keySet());
+	}
+
+	/**
+	 * Replaces every registered handler with a wrapped version of itself.
+	 * 
+	 * @param wrapper
+	 *            wraps each handler
+	 */
+	public void wrapAll(final HandlerWrapper wrapper) {
+		for (Map.Entry<String, CommandHandler> entry : handlers.entrySet()) {
+			entry.setValue(wrapper.wrap(entry.getKey(), entry.getValue()));
+		}
+	}
+}
@@ -0,0 +1,544 @@
+//package cmsc420.meeshquest.part2;
+
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves and restores the complete state of a command processor in a compact
+ * binary file. Restoring rebuilds every structure directly from the saved
+ * layout: the PM Quadtrees are rebuilt node by node without partitioning or
+ * validation, the dictionary is bulk loaded from its saved order, and the
+ * cities, roads and portals are not checked again.
+ * <p>
+ * The file holds a table of every city and portal and a table of every road.
+ * The dictionary, the road adjacency list, the portal names and the preorder
+ * layout of each level's PM Quadtree all refer to entries in these tables, so
+ * objects shared between the structures are still shared after a restore.
+ * Files are read and written through a FileChannel with a direct buffer.
+ */
+public class CommandSnapshot {
+	/** identifies a snapshot file ("MQSN") */
+	private static final int MAGIC = 0x4d51534e;
+
+	/** version of the file layout */
+	private static final int VERSION = 3;
+
+	/**
+	 * oldest version still read; version 2 has no guide order, and its
+	 * dictionary takes the default
+	 */
+	private static final int OLDEST_VERSION = 2;
+
+	/** kinds of entries in the city table */
+	private static final byte CITY = 0, PORTAL = 1;
+
+	/** kinds of geometry in a black node */
+	private static final byte POINT = 0, ROAD = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** size of the buffer used to read and write files */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/** fill factor of the restored dictionary; leaves room for insertions */
+	private static final double DICTIONARY_FILL = 0.75;
+
+	/**
+	 * Private constructor. All class methods are static.
+	 */
+	private CommandSnapshot() {
+	}
+
+	/**
+	 * Saves the state of a command processor. The snapshot is written to a
+	 * temporary file which then replaces the file, so an existing snapshot is
+	 * never left half written.
+	 *
+	 * @param command
+	 *            command processor to be saved
+	 * @param file
+	 *            snapshot file
+	 * @throws IOException
+	 *             the snapshot could not be written
+	 */
+	public static void save(final Command command, final File file)
+			throws IOException {
+		save(command, file, 0);
+	}
+
+	/**
+	 * Saves the state of a command processor together with the number of
+	 * journaled commands the state includes.
+	 *
+	 * @param command
+	 *            command processor to be saved
+	 * @param file
+	 *            snapshot file
+	 * @param sequence
+	 *            sequence number of the first journaled command not included
+	 * @throws IOException
+	 *             the snapshot could not be written
+	 */
+	public static void save(final Command command, final File file,
+			final long sequence) throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		final FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			final Output out = new Output(stream.getChannel());
+			write(command, sequence, out);
+			out.flush();
+			stream.getChannel().force(true);
+		} finally {
+			stream.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("could not replace " + file);
+		}
+	}
+
+	/**
+	 * Restores a command processor from a snapshot. Results must be set with
+	 * setResults before commands are processed.
+	 *
+	 * @param file
+	 *            snapshot file
+	 * @return the restored command processor
+	 * @throws IOException
+	 *             the snapshot could not be read or is not a snapshot
+	 */
+	public static Command load(final File file) throws IOException {
+		final FileInputStream stream = new FileInputStream(file);
+		try {
+			return read(new Input(stream.getChannel()));
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Reads the journal sequence number saved with a snapshot.
+	 *
+	 * @param file
+	 *            snapshot file
+	 * @return sequence number of the first journaled command not included
+	 * @throws IOException
+	 *             the snapshot could not be read or is not a snapshot
+	 */
+	public static long getSequence(final File file) throws IOException {
+		final FileInputStream stream = new FileInputStream(file);
+		try {
+			final Input in = new Input(stream.getChannel());
+			readHeader(in);
+			return in.getLong();
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static void write(final Command command, final long sequence,
+			final Output out) throws IOException {
+		/* number every city, portal and road reachable from the command */
+		final IdentityHashMap<City, Integer> cityIds = new IdentityHashMap<City, Integer>();
+		final List<City> cities = new ArrayList<City>();
+		final IdentityHashMap<Road, Integer> roadIds = new IdentityHashMap<Road, Integer>();
+		final List<Road> roads = new ArrayList<Road>();
+		for (Map.Entry<String, City> entry : command.citiesByName.entrySet()) {
+			id(entry.getValue(), cityIds, cities);
+		}
+		final List<Road> adjacentRoads = new ArrayList<Road>();
+		for (City city : command.roads.getCitySet()) {
+			for (Road road : command.roads.getRoadSet(city)) {
+				if (!roadIds.containsKey(road)) {
+					adjacentRoads.add(road);
+				}
+				id(road, roadIds, roads, cityIds, cities);
+			}
+		}
+		for (PMQuadtree pmqt : command.pmqts.values()) {
+			for (Road road : pmqt.getRoads()) {
+				id(road, roadIds, roads, cityIds, cities);
+			}
+			for (Portal portal : pmqt.getAllPortals().values()) {
+				id(portal, cityIds, cities);
+			}
+			number(pmqt.getRoot(), roadIds, roads, cityIds, cities);
+		}
+
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putLong(sequence);
+		out.putInt(command.spatialWidth);
+		out.putInt(command.spatialHeight);
+		out.putInt(command.pmOrder);
+		out.putInt(command.citiesByName.getLeafOrder());
+		out.putInt(command.citiesByName.getGuideOrder());
+
+		out.putInt(cities.size());
+		for (City city : cities) {
+			out.putByte(city instanceof Portal ? PORTAL : CITY);
+			out.putString(city.getName());
+			out.putInt(city.getX());
+			out.putInt(city.getY());
+			out.putInt(city.getZ());
+			out.putInt(city.getRadius());
+			out.putString(city.getColor());
+		}
+		out.putInt(roads.size());
+		for (Road road : roads) {
+			out.putInt(cityIds.get(road.getStart()));
+			out.putInt(cityIds.get(road.getEnd()));
+		}
+
+		out.putInt(command.citiesByName.size());
+		for (Map.Entry<String, City> entry : command.citiesByName.entrySet()) {
+			out.putInt(cityIds.get(entry.getValue()));
+		}
+		out.putInt(adjacentRoads.size());
+		for (Road road : adjacentRoads) {
+			out.putInt(roadIds.get(road));
+		}
+		out.putInt(command.portals.size());
+		for (Map.Entry<String, Integer> portal : command.portals.entrySet()) {
+			out.putString(portal.getKey());
+			out.putInt(portal.getValue());
+		}
+
+		out.putInt(command.pmqts.size());
+		for (Map.Entry<Integer, PMQuadtree> level : command.pmqts.entrySet()) {
+			final PMQuadtree pmqt = level.getValue();
+			out.putInt(level.getKey());
+			out.putInt(pmqt.getNumRoads());
+			for (Road road : pmqt.getRoads()) {
+				out.putInt(roadIds.get(road));
+			}
+			out.putInt(pmqt.getAllPortals().size());
+			for (Portal portal : pmqt.getAllPortals().values()) {
+				out.putInt(cityIds.get(portal));
+			}
+			out.putInt(pmqt.getNumPortals());
+			write(pmqt.getRoot(), out, cityIds, roadIds);
+		}
+	}
+
+	/**
+	 * Writes a PM Quadtree node and its descendants in preorder.
+	 */
+	private static void write(final PMQuadtree.Node node, final Output out,
+			final IdentityHashMap<City, Integer> cityIds,
+			final IdentityHashMap<Road, Integer> roadIds) throws IOException {
+		out.putByte((byte) node.getType());
+		if (node.getType() == PMQuadtree.Node.BLACK) {
+			final List<Geometry> geometry = ((PMQuadtree.Black) node)
+					.getGeometry();
+			out.putInt(geometry.size());
+			for (Geometry g : geometry) {
+				if (g instanceof Road) {
+					out.putByte(ROAD);
+					out.putInt(roadIds.get(g));
+				} else {
+					out.putByte(POINT);
+					out.putInt(cityIds.get(g));
+				}
+			}
+		} else if (node.getType() == PMQuadtree.Node.GRAY) {
+			for (int i = 0; i < 4; i++) {
+				write(((PMQuadtree.Gray) node).getChild(i), out, cityIds,
+						roadIds);
+			}
+		}
+	}
+
+	/**
+	 * Numbers the geometry held by a PM Quadtree node and its descendants.
+	 */
+	private static void number(final PMQuadtree.Node node,
+			final IdentityHashMap<Road, Integer> roadIds,
+			final List<Road> roads,
+			final IdentityHashMap<City, Integer> cityIds,
+			final List<City> cities) {
+		if (node.getType() == PMQuadtree.Node.BLACK) {
+			for (Geometry g : ((PMQuadtree.Black) node).getGeometry()) {
+				if (g instanceof Road) {
+					id((Road) g, roadIds, roads, cityIds, cities);
+				} else {
+					id((City) g, cityIds, cities);
+				}
+			}
+		} else if (node.getType() == PMQuadtree.Node.GRAY) {
+			for (int i = 0; i < 4; i++) {
+				number(((PMQuadtree.Gray) node).getChild(i), roadIds, roads,
+						cityIds, cities);
+			}
+		}
+	}
+
+	private static void id(final City city,
+			final IdentityHashMap<City, Integer> cityIds,
+			final List<City> cities) {
+		if (!cityIds.containsKey(city)) {
+			cityIds.put(city, cities.size());
+			cities.add(city);
+		}
+	}
+
+	private static void id(final Road road,
+			final IdentityHashMap<Road, Integer> roadIds,
+			final List<Road> roads,
+			final IdentityHashMap<City, Integer> cityIds,
+			final List<City> cities) {
+		if (!roadIds.containsKey(road)) {
+			id(road.getStart(), cityIds, cities);
+			id(road.getEnd(), cityIds, cities);
+			roadIds.put(road, roads.size());
+			roads.add(road);
+		}
+	}
+
+	/**
+	 * Reads the magic number and version.
+	 *
+	 * @return version of the file layout
+	 */
+	private static int readHeader(final Input in) throws IOException {
+		if (in.getInt() != MAGIC) {
+			throw new IOException("not a MeeshQuest snapshot");
+		}
+		final int version = in.getInt();
+		if (version < OLDEST_VERSION || version > VERSION) {
+			throw new IOException("unsupported snapshot version " + version);
+		}
+		return version;
+	}
+
+	private static Command read(final Input in) throws IOException {
+		final int version = readHeader(in);
+		in.getLong();
+		final int spatialWidth = in.getInt();
+		final int spatialHeight = in.getInt();
+		final int pmOrder = in.getInt();
+		final int leafOrder = in.getInt();
+		final int guideOrder = version >= 3 ? in.getInt()
+				: HeptaTrie.DEFAULT_GUIDE_ORDER;
+		final Command command = new Command(leafOrder, guideOrder);
+		command.spatialWidth = spatialWidth;
+		command.spatialHeight = spatialHeight;
+		command.pmOrder = pmOrder;
+
+		final City[] cities = new City[in.getInt()];
+		for (int i = 0; i < cities.length; i++) {
+			final byte kind = in.getByte();
+			final String name = in.getString();
+			final int x = in.getInt();
+			final int y = in.getInt();
+			final int z = in.getInt();
+			final int radius = in.getInt();
+			final String color = in.getString();
+			cities[i] = kind == PORTAL ? new Portal(name, x, y, z) : new City(
+					name, x, y, z, radius, color);
+		}
+		final Road[] roads = new Road[in.getInt()];
+		for (int i = 0; i < roads.length; i++) {
+			roads[i] = new Road(cities[in.getInt()], cities[in.getInt()]);
+		}
+
+		final List<Map.Entry<String, City>> dictionary =
+				new ArrayList<Map.Entry<String, City>>(cities.length);
+		for (int i = in.getInt(); i > 0; i--) {
+			final City city = cities[in.getInt()];
+			dictionary.add(new AbstractMap.SimpleImmutableEntry<String, City>(
+					city.getName(), city));
+			command.citiesByLocation.add(city);
+		}
+		/* the dictionary was saved in key order */
+		command.citiesByName.bulkLoad(dictionary.iterator(), DICTIONARY_FILL);
+		for (int i = in.getInt(); i > 0; i--) {
+			command.roads.addRoad(roads[in.getInt()]);
+		}
+		for (int i = in.getInt(); i > 0; i--) {
+			final String name = in.getString();
+			command.portals.put(name, in.getInt());
+		}
+
+		for (int i = in.getInt(); i > 0; i--) {
+			final int level = in.getInt();
+			final PMQuadtree pmqt = new PM3Quadtree(spatialWidth,
+					spatialHeight);
+			final List<Road> mappedRoads = new ArrayList<Road>();
+			for (int j = in.getInt(); j > 0; j--) {
+				mappedRoads.add(roads[in.getInt()]);
+			}
+			final List<Portal> portals = new ArrayList<Portal>();
+			for (int j = in.getInt(); j > 0; j--) {
+				portals.add((Portal) cities[in.getInt()]);
+			}
+			final int numPortals = in.getInt();
+			final PMQuadtree.Node root = read(in, pmqt, new Point2D.Float(
+					0.0f, 0.0f), spatialWidth, spatialHeight, cities, roads);
+			pmqt.restore(root, mappedRoads, portals, numPortals);
+			command.pmqts.put(level, pmqt);
+		}
+		return command;
+	}
+
+	/**
+	 * Reads a PM Quadtree node and its descendants in preorder.
+	 */
+	private static PMQuadtree.Node read(final Input in,
+			final PMQuadtree pmqt, final Point2D.Float origin,
+			final int width, final int height, final City[] cities,
+			final Road[] roads) throws IOException {
+		final byte type = in.getByte();
+		if (type == PMQuadtree.Node.WHITE) {
+			return pmqt.getWhite();
+		} else if (type == PMQuadtree.Node.BLACK) {
+			final List<Geometry> geometry = new ArrayList<Geometry>();
+			for (int i = in.getInt(); i > 0; i--) {
+				final byte kind = in.getByte();
+				geometry.add(kind == ROAD ? roads[in.getInt()]
+						: cities[in.getInt()]);
+			}
+			return pmqt.newBlack(geometry);
+		} else if (type == PMQuadtree.Node.GRAY) {
+			final PMQuadtree.Gray gray = pmqt.newGray(origin, width, height);
+			for (int i = 0; i < 4; i++) {
+				final Rectangle2D.Float region = gray.getChildRegion(i);
+				gray.setChild(i, read(in, pmqt, new Point2D.Float(region.x,
+						region.y), gray.getHalfWidth(), gray.getHalfHeight(),
+						cities, roads));
+			}
+			return gray;
+		} else {
+			throw new IOException("corrupt snapshot: node type " + type);
+		}
+	}
+
+	/**
+	 * Writes primitive values to a channel through a direct buffer.
+	 */
+	private static class Output {
+		private final FileChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer
+				.allocateDirect(BUFFER_SIZE);
+
+		public Output(final FileChannel channel) {
+			this.channel = channel;
+		}
+
+		private void ensure(final int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+
+		public void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		public void putByte(final byte b) throws IOException {
+			ensure(1);
+			buffer.put(b);
+		}
+
+		public void putInt(final int i) throws IOException {
+			ensure(4);
+			buffer.putInt(i);
+		}
+
+		public void putLong(final long l) throws IOException {
+			ensure(8);
+			buffer.putLong(l);
+		}
+
+		/** writes a length (-1 for null) followed by UTF-8 bytes */
+		public void putString(final String s) throws IOException {
+			if (s == null) {
+				putInt(-1);
+				return;
+			}
+			final byte[] bytes = s.getBytes(UTF8);
+			putInt(bytes.length);
+			for (int offset = 0; offset < bytes.length;) {
+				ensure(1);
+				final int length = Math.min(buffer.remaining(), bytes.length
+						- offset);
+				buffer.put(bytes, offset, length);
+				offset += length;
+			}
+		}
+	}
+
+	/**
+	 * Reads primitive values from a channel through a direct buffer.
+	 */
+	private static class Input {
+		private final FileChannel channel;
+
+		private final ByteBuffer buffer = ByteBuffer
+				.allocateDirect(BUFFER_SIZE);
+
+		public Input(final FileChannel channel) {
+			this.channel = channel;
+			buffer.flip();
+		}
+
+		private void ensure(final int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				buffer.compact();
+				while (buffer.position() < bytes) {
+					if (channel.read(buffer) < 0) {
+						throw new EOFException("truncated snapshot");
+					}
+				}
+				buffer.flip();
+			}
+		}
+
+		public byte getByte() throws IOException {
+			ensure(1);
+			return buffer.get();
+		}
+
+		public int getInt() throws IOException {
+			ensure(4);
+			return buffer.getInt();
+		}
+
+		public long getLong() throws IOException {
+			ensure(8);
+			return buffer.getLong();
+		}
+
+		public String getString() throws IOException {
+			final int length = getInt();
+			if (length < 0) {
+				return null;
+			}
+			final byte[] bytes = new byte[length];
+			for (int offset = 0; offset < length;) {
+				ensure(1);
+				final int chunk = Math.min(buffer.remaining(), length - offset);
+				buffer.get(bytes, offset, chunk);
+				offset += chunk;
+			}
+			return new String(bytes, UTF8);
+		}
+	}
+}
@@ -0,0 +1,158 @@
+//package cmsc420.meeshquest.part2;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Element;
+
+/**
+ * Records how many times each command runs, how many of those runs report an
+ * error, and how long they take. Also records the time spent parsing commands
+ * and serializing results. Commands are instrumented by wrapping the handlers
+ * of a registry with {@link CommandRegistry#wrapAll}; the reader and the
+ * result sink are instrumented with the wrap methods below.
+ * <p>
+ * Statistics for every command are created when the handlers are wrapped, so
+ * recording a command only updates counters and can be done from several
+ * threads at once.
+ */
+public class CommandStatistics implements CommandRegistry.HandlerWrapper {
+	/** statistics for each wrapped command, sorted by name */
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/** time from the end of one command read to the end of the next */
+	private final LatencyHistogram parse = new LatencyHistogram();
+
+	/** time spent writing each result */
+	private final LatencyHistogram serialize = new LatencyHistogram();
+
+	/** time statistics started being collected */
+	private final long start = System.nanoTime();
+
+	/**
+	 * Statistics for one command.
+	 */
+	private static class Entry {
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		final AtomicLong errors = new AtomicLong();
+	}
+
+	public CommandHandler wrap(final String name, final CommandHandler handler) {
+		final Entry entry = new Entry();
+		entries.put(name, entry);
+		return new CommandHandler() {
+			public void process(final Command command, final Element node)
+					throws IOException, ParserConfigurationException,
+					TransformerException {
+				final int errorCount = command.getErrorCount();
+				final long begin = System.nanoTime();
+				boolean failed = true;
+				try {
+					handler.process(command, node);
+					failed = false;
+				} finally {
+					entry.latency.record(System.nanoTime() - begin);
+					if (failed || command.getErrorCount() != errorCount) {
+						entry.errors.incrementAndGet();
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Wraps a command reader listener so the time spent reading each command
+	 * is recorded.
+	 *
+	 * @param listener
+	 *            listener to be wrapped
+	 * @return listener to pass to the reader in its place
+	 */
+	public CommandReader.Listener wrap(final CommandReader.Listener listener) {
+		return new CommandReader.Listener() {
+			private long readStart = System.nanoTime();
+
+			public void commandRead(final Element commandNode)
+					throws IOException, ParserConfigurationException,
+					TransformerException {
+				parse.record(System.nanoTime() - readStart);
+				try {
+					listener.commandRead(commandNode);
+				} finally {
+					readStart = System.nanoTime();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Wraps a result sink so the time spent writing each result is recorded.
+	 *
+	 * @param sink
+	 *            result sink to be wrapped
+	 * @return result sink to use in its place
+	 */
+	public ResultSink wrap(final ResultSink sink) {
+		return new ResultSink() {
+			public void addResult(final Element result) {
+				final long begin = System.nanoTime();
+				try {
+					sink.addResult(result);
+				} finally {
+					serialize.record(System.nanoTime() - begin);
+				}
+			}
+
+			public void addFatalError() {
+				sink.addFatalError();
+			}
+
+			public void close() throws XMLStreamException {
+				sink.close();
+			}
+		};
+	}
+
+	/**
+	 * Prints a table with the count, error count and latency percentiles of
+	 * each command that has run, followed by parse and serialize times and
+	 * the overall throughput. Latencies are in microseconds.
+	 *
+	 * @param out
+	 *            stream to print to
+	 */
+	public void print(final PrintStream out) {
+		out.printf("%-20s %9s %9s %10s %10s %10s %10s%n", "command", "count",
+				"errors", "p50 us", "p99 us", "p999 us", "max us");
+		long commands = 0;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			final Entry entry = e.getValue();
+			if (entry.latency.getCount() > 0) {
+				print(out, e.getKey(), entry.latency, entry.errors.get());
+				commands += entry.latency.getCount();
+			}
+		}
+		print(out, "(parse)", parse, 0);
+		print(out, "(serialize)", serialize, 0);
+
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		out.printf("%d commands in %.3f s (%.1f commands/s)%n", commands,
+				seconds, commands / seconds);
+	}
+
+	private static void print(final PrintStream out, final String name,
+			final LatencyHistogram latency, final long errors) {
+		out.printf("%-20s %9d %9d %10.1f %10.1f %10.1f %10.1f%n", name, latency
+				.getCount(), errors, latency.getPercentile(0.5) / 1e3, latency
+				.getPercentile(0.99) / 1e3, latency.getPercentile(0.999) / 1e3,
+				latency.getMax() / 1e3);
+	}
+}
@@ -0,0 +1,692 @@
+//package cmsc420.heptatrie;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.StampedLock;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * HeptaTrie that any number of threads may read while another writes it.
+ * <p>
+ * Readers take no locks. Every guide and leaf node has a latch, whose version
+ * a lookup reads optimistically on the way down: it reads the version of a
+ * child before validating the version of its parent, and starts again from
+ * the root if a writer changed a node it passed through. After a few failed
+ * attempts a reader waits for the writer instead.
+ * <p>
+ * Writers hold the writer latch of the trie, so there is one at a time, and
+ * latch only the nodes their change can reach: the leaf, each ancestor that
+ * may split or lose a child, and the siblings a child may borrow from or merge
+ * with. Readers elsewhere in the trie are never turned back.
+ * <p>
+ * Iterators are weakly consistent by default. They copy the entries of one
+ * leaf at a time and move to the next leaf with the same coupling, so they
+ * return keys in order, never twice, and return every entry present for the
+ * whole iteration. In linearizable mode an iterator instead copies its whole
+ * range as it was at a single instant. Entries of either write through to the
+ * trie with put.
+ */
+public class ConcurrentHeptaTrie<K, V> extends HeptaTrie<K, V> {
+	/** optimistic attempts before a reader waits for the writer */
+	private static final int OPTIMISTIC_ATTEMPTS = 4;
+
+	/** held by the writer; whole-trie reads validate against it */
+	private final StampedLock writer = new StampedLock();
+
+	/** true if iterators copy their range at a single instant */
+	private final boolean linearizable;
+
+	/**
+	 * Creates an empty trie.
+	 *
+	 * @param linearizable
+	 *            true if iterators copy their range at a single instant; false
+	 *            if they are weakly consistent
+	 */
+	public ConcurrentHeptaTrie(Comparator<K> comparator, int leafOrder,
+			boolean linearizable) {
+		this(comparator, leafOrder, DEFAULT_GUIDE_ORDER, linearizable);
+	}
+
+	/**
+	 * Creates an empty trie whose guide nodes hold up to a number of
+	 * children.
+	 */
+	public ConcurrentHeptaTrie(Comparator<K> comparator, int leafOrder,
+			int guideOrder, boolean linearizable) {
+		super(comparator, leafOrder, guideOrder, true);
+		this.linearizable = linearizable;
+	}
+
+	public boolean isLinearizable() {
+		return linearizable;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		final K k = (K) key;
+		final Seek seek = new Seek();
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			try {
+				if (seek.to(k)) {
+					final int index = seek.leaf.indexOf(k);
+					final V value = index >= 0 ? seek.leaf.values[index] : null;
+					if (seek.leaf.latch.validate(seek.stamp)) {
+						root.counters.operated();
+						return value;
+					}
+				}
+			} catch (RuntimeException e) {
+				/* read a node in the middle of a change; try again */
+			}
+		}
+
+		final long stamp = writer.readLock();
+		try {
+			return super.get(key);
+		} finally {
+			writer.unlockRead(stamp);
+		}
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	public V put(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+
+		final long stamp = writer.writeLock();
+		final Latches<K, V> latches = new Latches<K, V>();
+		try {
+			final List<Node<K, V>> path = path(key);
+			final LeafNode<K, V> leaf = (LeafNode<K, V>) path
+					.get(path.size() - 1);
+			latches.add(leaf);
+			if (leaf.indexOf(key) < 0) {
+				/* each full node splits into its parent */
+				int i = path.size() - 1;
+				while (i >= 0 && path.get(i).isFull()) {
+					latches.add(--i >= 0 ? path.get(i) : root);
+				}
+			}
+			return super.put(key, value);
+		} finally {
+			latches.release();
+			writer.unlockWrite(stamp);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+
+		final long stamp = writer.writeLock();
+		final Latches<K, V> latches = new Latches<K, V>();
+		try {
+			final List<Node<K, V>> path = path((K) key);
+			final LeafNode<K, V> leaf = (LeafNode<K, V>) path
+					.get(path.size() - 1);
+			if (leaf.indexOf((K) key) < 0) {
+				return null;
+			}
+			latches.add(leaf);
+			/* a node that falls under half full borrows from or merges
+			 * with a sibling, and its parent loses a guide or a child */
+			int i = path.size() - 1;
+			while (i > 0 && !path.get(i).canLend()) {
+				final GuideNode<K, V> parent = (GuideNode<K, V>) path
+						.get(i - 1);
+				final int index = parent.kidIndex((K) key);
+				latches.add(parent);
+				if (index > 0) {
+					latches.add(parent.getKid(index - 1));
+				}
+				if (index < parent.size() - 1) {
+					latches.add(parent.getKid(index + 1));
+				}
+				i--;
+			}
+			if (i == 0 && path.size() > 1) {
+				/* the root guide may be left with one child */
+				latches.add(root);
+			}
+			return super.remove(key);
+		} finally {
+			latches.release();
+			writer.unlockWrite(stamp);
+		}
+	}
+
+	public void clear() {
+		final long stamp = writer.writeLock();
+		final Latches<K, V> latches = new Latches<K, V>();
+		try {
+			latches.add(root);
+			latches.add(root.getMe());
+			super.clear();
+		} finally {
+			latches.release();
+			writer.unlockWrite(stamp);
+		}
+	}
+
+	public void bulkLoad(
+			Iterator<? extends Map.Entry<? extends K, ? extends V>> entries,
+			double fillFactor) {
+		final long stamp = writer.writeLock();
+		final Latches<K, V> latches = new Latches<K, V>();
+		try {
+			latches.add(root);
+			latches.add(root.getMe());
+			super.bulkLoad(entries, fillFactor);
+		} finally {
+			latches.release();
+			writer.unlockWrite(stamp);
+		}
+	}
+
+	public int size() {
+		return read(new Read<Integer>() {
+			public Integer read() {
+				return ConcurrentHeptaTrie.super.size();
+			}
+		});
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public K firstKey() {
+		return read(new Read<K>() {
+			public K read() {
+				return ConcurrentHeptaTrie.super.firstKey();
+			}
+		});
+	}
+
+	public K lastKey() {
+		return read(new Read<K>() {
+			public K read() {
+				return ConcurrentHeptaTrie.super.lastKey();
+			}
+		});
+	}
+
+	public boolean containsValue(final Object value) {
+		return read(new Read<Boolean>() {
+			public Boolean read() {
+				return ConcurrentHeptaTrie.super.containsValue(value);
+			}
+		});
+	}
+
+	public int hashCode() {
+		return read(new Read<Integer>() {
+			public Integer read() {
+				return ConcurrentHeptaTrie.super.hashCode();
+			}
+		});
+	}
+
+	protected int count(final K lo, final K hi) {
+		return read(new Read<Integer>() {
+			public Integer read() {
+				return ConcurrentHeptaTrie.super.count(lo, hi);
+			}
+		});
+	}
+
+	protected K lastKeyBelow(final K hi) {
+		return read(new Read<K>() {
+			public K read() {
+				return ConcurrentHeptaTrie.super.lastKeyBelow(hi);
+			}
+		});
+	}
+
+	public HeptaTrieStatistics getStatistics() {
+		return read(new Read<HeptaTrieStatistics>() {
+			public HeptaTrieStatistics read() {
+				return ConcurrentHeptaTrie.super.getStatistics();
+			}
+		});
+	}
+
+	/**
+	 * Versions are not supported: copying shared nodes would relink nodes
+	 * that readers are walking. Linearizable iterators give readers a
+	 * consistent view instead.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             always
+	 */
+	public HeptaTrieVersion<K, V> snapshot() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void addToXmlDoc(Document doc, Element parentNode) {
+		final long stamp = writer.readLock();
+		try {
+			super.addToXmlDoc(doc, parentNode);
+		} finally {
+			writer.unlockRead(stamp);
+		}
+	}
+
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return entryIterator(null, null);
+			}
+
+			public int size() {
+				return ConcurrentHeptaTrie.this.size();
+			}
+
+			public boolean isEmpty() {
+				return ConcurrentHeptaTrie.this.isEmpty();
+			}
+
+			public boolean contains(Object entry) {
+				if (entry instanceof Map.Entry) {
+					Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+					V value = get(e.getKey());
+					return value != null && value.equals(e.getValue());
+				}
+				return false;
+			}
+
+			public boolean remove(Object entry) {
+				return contains(entry)
+						&& ConcurrentHeptaTrie.this.remove(
+								((Map.Entry<?, ?>) entry).getKey()) != null;
+			}
+
+			public void clear() {
+				ConcurrentHeptaTrie.this.clear();
+			}
+		};
+	}
+
+	protected Iterator<Map.Entry<K, V>> entryIterator(K lo, K hi) {
+		return linearizable ? new Cursor(lo, hi, copy(lo, hi)) : new Cursor(
+				lo, hi, false);
+	}
+
+	protected Iterator<K> keyIterator(K lo, K hi) {
+		final Iterator<Map.Entry<K, V>> entries = entryIterator(lo, hi);
+		return new Iterator<K>() {
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			public K next() {
+				return entries.next().getKey();
+			}
+
+			public void remove() {
+				entries.remove();
+			}
+		};
+	}
+
+	protected Iterator<V> valueIterator(K lo, K hi) {
+		final Iterator<Map.Entry<K, V>> entries = entryIterator(lo, hi);
+		return new Iterator<V>() {
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			public V next() {
+				return entries.next().getValue();
+			}
+
+			public void remove() {
+				entries.remove();
+			}
+		};
+	}
+
+	/**
+	 * Copies the entries within bounds as they were at a single instant.
+	 */
+	private List<Map.Entry<K, V>> copy(K lo, K hi) {
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			final long stamp = writer.tryOptimisticRead();
+			if (stamp != 0) {
+				final List<Map.Entry<K, V>> entries = drain(new Cursor(lo, hi,
+						false));
+				if (writer.validate(stamp)) {
+					return entries;
+				}
+			}
+		}
+
+		final long stamp = writer.readLock();
+		try {
+			return drain(new Cursor(lo, hi, true));
+		} finally {
+			writer.unlockRead(stamp);
+		}
+	}
+
+	private static <T> List<T> drain(Iterator<T> iterator) {
+		final List<T> list = new ArrayList<T>();
+		while (iterator.hasNext()) {
+			list.add(iterator.next());
+		}
+		return list;
+	}
+
+	/**
+	 * Gets the nodes from the root down to the leaf whose range holds a key.
+	 * Only the writer may call this.
+	 */
+	private List<Node<K, V>> path(K key) {
+		final List<Node<K, V>> path = new ArrayList<Node<K, V>>();
+		Node<K, V> node = root.getMe();
+		path.add(node);
+		while (node.getType() == Node.NodeType.GUIDE) {
+			final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+			node = guide.getKid(guide.kidIndex(key));
+			path.add(node);
+		}
+		return path;
+	}
+
+	/**
+	 * Read of the trie as a whole, such as one that walks the leaf chain.
+	 */
+	private interface Read<T> {
+		T read();
+	}
+
+	/**
+	 * Performs a read of the trie as a whole, optimistically if no writer
+	 * runs during it, or else while holding off the writer.
+	 */
+	private <T> T read(Read<T> read) {
+		for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+			final long stamp = writer.tryOptimisticRead();
+			if (stamp == 0) {
+				continue;
+			}
+			try {
+				final T result = read.read();
+				if (writer.validate(stamp)) {
+					return result;
+				}
+			} catch (RuntimeException e) {
+				if (writer.validate(stamp)) {
+					/* the trie did not change, so the exception is real */
+					throw e;
+				}
+			}
+		}
+
+		final long stamp = writer.readLock();
+		try {
+			return read.read();
+		} finally {
+			writer.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Nodes latched by the writer, released together once the change is
+	 * made.
+	 */
+	private static class Latches<K, V> {
+		private final List<Node<K, V>> nodes = new ArrayList<Node<K, V>>();
+
+		private long[] stamps = new long[8];
+
+		public void add(Node<K, V> node) {
+			if (!node.latch.isWriteLocked()) {
+				if (nodes.size() == stamps.length) {
+					stamps = Arrays.copyOf(stamps, stamps.length * 2);
+				}
+				stamps[nodes.size()] = node.latch.writeLock();
+				nodes.add(node);
+			}
+		}
+
+		public void release() {
+			for (int i = 0; i < nodes.size(); i++) {
+				nodes.get(i).latch.unlockWrite(stamps[i]);
+			}
+			nodes.clear();
+		}
+	}
+
+	/**
+	 * Optimistic descent to a leaf. Each node's version is read before its
+	 * parent's is validated, so a leaf reached this way was where the descent
+	 * found it at some instant.
+	 */
+	private class Seek {
+		/** leaf reached */
+		private LeafNode<K, V> leaf;
+
+		/** version of the leaf when it was reached */
+		private long stamp;
+
+		/**
+		 * Descends to the leaf whose range holds a key.
+		 *
+		 * @param key
+		 *            key to descend to; null for the first leaf
+		 * @return false if a writer changed a node on the way
+		 */
+		public boolean to(K key) {
+			Node<K, V> parent = root;
+			long parentStamp = root.latch.tryOptimisticRead();
+			Node<K, V> node = root.getMe();
+			while (true) {
+				final long nodeStamp = node.latch.tryOptimisticRead();
+				if (!parent.latch.validate(parentStamp)) {
+					return false;
+				}
+				if (node.getType() == Node.NodeType.LEAF) {
+					leaf = (LeafNode<K, V>) node;
+					stamp = nodeStamp;
+					return nodeStamp != 0;
+				}
+				final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+				parent = guide;
+				parentStamp = nodeStamp;
+				node = guide.kids[key == null ? 0 : guide.kidIndex(key)];
+			}
+		}
+	}
+
+	/**
+	 * Entry copied from a leaf. setValue writes through to the trie.
+	 */
+	private class CopiedEntry extends AbstractMap.SimpleEntry<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		public CopiedEntry(K key, V value) {
+			super(key, value);
+		}
+
+		public V setValue(V value) {
+			put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+
+	/**
+	 * Iterator over a range of entries that copies one leaf at a time. Each
+	 * copy is validated against the leaf's version, and the version of the
+	 * next leaf is read before that, so the iterator moves along the leaf
+	 * chain as a descent moves down the trie. When a leaf has changed, the
+	 * iterator descends again to the keys after the last one copied.
+	 */
+	private class Cursor implements Iterator<Map.Entry<K, V>> {
+		/** lowest key in range, inclusive; null if unbounded */
+		private final K lo;
+
+		/** key above the range, exclusive; null if unbounded */
+		private final K hi;
+
+		/** true if the caller holds off the writer */
+		private final boolean locked;
+
+		private final Comparator<? super K> comparator = comparator();
+
+		/** entries copied and not yet returned, from index on */
+		private final List<Map.Entry<K, V>> copied;
+
+		private int index;
+
+		/** last key copied; null before the first */
+		private K after;
+
+		/** next leaf to copy and its version; null to descend again */
+		private LeafNode<K, V> next;
+
+		private long nextStamp;
+
+		/** true once the range has been copied */
+		private boolean done;
+
+		/** key of the entry last returned, until it is removed */
+		private K lastKey;
+
+		public Cursor(K lo, K hi, boolean locked) {
+			this.lo = lo;
+			this.hi = hi;
+			this.locked = locked;
+			this.copied = new ArrayList<Map.Entry<K, V>>();
+		}
+
+		/**
+		 * Creates an iterator over entries already copied.
+		 */
+		public Cursor(K lo, K hi, List<Map.Entry<K, V>> copied) {
+			this.lo = lo;
+			this.hi = hi;
+			this.locked = false;
+			this.copied = copied;
+			this.done = true;
+		}
+
+		public boolean hasNext() {
+			while (index == copied.size() && !done) {
+				copied.clear();
+				index = 0;
+				copyNextLeaf();
+			}
+			return index < copied.size();
+		}
+
+		public Map.Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			final Map.Entry<K, V> entry = copied.get(index++);
+			lastKey = entry.getKey();
+			return entry;
+		}
+
+		public void remove() {
+			if (lastKey == null) {
+				throw new IllegalStateException();
+			}
+			ConcurrentHeptaTrie.this.remove(lastKey);
+			lastKey = null;
+		}
+
+		private void copyNextLeaf() {
+			for (int attempt = 0; !locked && attempt < OPTIMISTIC_ATTEMPTS;
+					attempt++) {
+				try {
+					if (copy()) {
+						return;
+					}
+				} catch (RuntimeException e) {
+					/* read a leaf in the middle of a change; try again */
+				}
+				copied.clear();
+				next = null;
+			}
+
+			if (locked) {
+				copy();
+				return;
+			}
+			final long stamp = writer.readLock();
+			try {
+				copy();
+			} finally {
+				writer.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * Copies the entries in range of the next leaf.
+		 *
+		 * @return false if a writer changed the leaf
+		 */
+		private boolean copy() {
+			LeafNode<K, V> leaf = next;
+			long stamp = nextStamp;
+			if (leaf == null) {
+				final Seek seek = new Seek();
+				if (!seek.to(after != null ? after : lo)) {
+					return false;
+				}
+				leaf = seek.leaf;
+				stamp = seek.stamp;
+			}
+
+			boolean end = false;
+			for (int i = 0; i < leaf.size; i++) {
+				final K key = leaf.getKey(i);
+				if (after != null ? comparator.compare(key, after) <= 0
+						: lo != null && comparator.compare(key, lo) < 0) {
+					continue;
+				}
+				if (hi != null && comparator.compare(key, hi) >= 0) {
+					end = true;
+					break;
+				}
+				copied.add(new CopiedEntry(key, leaf.values[i]));
+			}
+			final Node<K, V> right = leaf.getRight();
+			end = end || right.getType() != Node.NodeType.LEAF;
+			final long rightStamp = end ? 0 : right.latch.tryOptimisticRead();
+			if (!leaf.latch.validate(stamp)) {
+				return false;
+			}
+
+			next = end ? null : (LeafNode<K, V>) right;
+			nextStamp = rightStamp;
+			done = end;
+			if (!copied.isEmpty()) {
+				after = copied.get(copied.size() - 1).getKey();
+			}
+			return true;
+		}
+	}
+}
@@ -33,6 +33,12 @@ public class Dijkstranator {
 	/** road adjacency list stores all the roads connected to each city */
 	protected RoadAdjacencyList roads;
 
+	/**
+	 * extra roads searched along with the road adjacency list, e.g. roads to
+	 * portals built for one query; may be <code>null</code>
+	 */
+	protected RoadAdjacencyList overlay;
+
 	/**
 	 * Constructs a new object to implement Dijkstra's algorithm.
 	 * 
@@ -40,7 +46,22 @@ public class Dijkstranator {
 	 *            road adjacency list
 	 */
 	public Dijkstranator(final RoadAdjacencyList roads) {
+		this(roads, null);
+	}
+
+	/**
+	 * Constructs a new object to implement Dijkstra's algorithm over the roads
+	 * in two adjacency lists. Neither list is modified.
+	 * 
+	 * @param roads
+	 *            road adjacency list
+	 * @param overlay
+	 *            extra roads, or <code>null</code>
+	 */
+	public Dijkstranator(final RoadAdjacencyList roads,
+			final RoadAdjacencyList overlay) {
 		this.roads = roads;
+		this.overlay = overlay;
 	}
 
 	/**
@@ -68,13 +89,14 @@ public class Dijkstranator {
 		 */
 		final PriorityQueue<DijkstraCity> unsettledCities;
 
-		if (roads.getNumberOfCities() > 0) {
+		final int numberOfCities = roads.getNumberOfCities()
+				+ (overlay == null ? 0 : overlay.getNumberOfCities());
+		if (numberOfCities > 0) {
 			/*
 			 * initialize a priority queue with an initial capacity of the
 			 * number of cities for efficiency purposes
 			 */
-			unsettledCities = new PriorityQueue<DijkstraCity>(roads
-					.getNumberOfCities());
+			unsettledCities = new PriorityQueue<DijkstraCity>(numberOfCities);
 		} else {
 			/*
 			 * PriorityQueue reports an error if initialCapacity is set to 0.
@@ -101,6 +123,11 @@ public class Dijkstranator {
 		for (City c : roads.getCitySet()) {
 			shortestDistanceFound.put(c, Double.POSITIVE_INFINITY);
 		}
+		if (overlay != null) {
+			for (City c : overlay.getCitySet()) {
+				shortestDistanceFound.put(c, Double.POSITIVE_INFINITY);
+			}
+		}
 
 		/*
 		 * add the start city name to priority queue of unsettled cities (has
@@ -135,38 +162,12 @@ public class Dijkstranator {
 				 * relax the neighbors of the city to be settled by looking at
 				 * the roads connected to it
 				 */
-				for (Road road : roads.getRoadSet(cityToSettle.getCity())) {
-					/* get the adjacent city */
-					final City adjacentCity = road
-							.getOtherCity(cityToSettleName);
-					final String adjacentCityName = adjacentCity.getName();
-
-					if (!settledCities.containsKey(adjacentCityName)) {
-						/*
-						 * if the adjacent city has not been settled, get its
-						 * distance to the start city
-						 */
-						final double adjacentCityDistance = shortestDistanceFound
-								.get(adjacentCity);
-						final double distanceViaCityToSettle = shortestDistanceFound
-								.get(cityToSettle.getCity())
-								+ road.getDistance();
-
-						if (adjacentCityDistance > distanceViaCityToSettle) {
-							/*
-							 * if this new distance is smaller, update the
-							 * shortest distance found for the adjacent city
-							 */
-							shortestDistanceFound.put(adjacentCity,
-									distanceViaCityToSettle);
-
-							/* update the other data structures */
-							previousCity.put(adjacentCity, cityToSettle
-									.getCity());
-							unsettledCities.offer(new DijkstraCity(
-									adjacentCity, distanceViaCityToSettle));
-						}
-					}
+				relax(cityToSettle, roads, settledCities,
+						shortestDistanceFound, previousCity, unsettledCities);
+				if (overlay != null) {
+					relax(cityToSettle, overlay, settledCities,
+							shortestDistanceFound, previousCity,
+							unsettledCities);
 				}
 			}
 		}
@@ -188,6 +189,55 @@ public class Dijkstranator {
 		}
 	}
 
+	/**
+	 * Relaxes the neighbors of a city that is being settled, looking at the
+	 * roads connected to it in one adjacency list.
+	 * 
+	 * @param cityToSettle
+	 *            city with the shortest distance from the start city
+	 * @param adjacencyList
+	 *            roads to be looked at
+	 */
+	private void relax(final DijkstraCity cityToSettle,
+			final RoadAdjacencyList adjacencyList,
+			final TreeMap<String, Double> settledCities,
+			final TreeMap<City, Double> shortestDistanceFound,
+			final TreeMap<City, City> previousCity,
+			final PriorityQueue<DijkstraCity> unsettledCities) {
+		final String cityToSettleName = cityToSettle.getName();
+		for (Road road : adjacencyList.getRoadSet(cityToSettle.getCity())) {
+			/* get the adjacent city */
+			final City adjacentCity = road.getOtherCity(cityToSettleName);
+			final String adjacentCityName = adjacentCity.getName();
+
+			if (!settledCities.containsKey(adjacentCityName)) {
+				/*
+				 * if the adjacent city has not been settled, get its distance
+				 * to the start city
+				 */
+				final double adjacentCityDistance = shortestDistanceFound
+						.get(adjacentCity);
+				final double distanceViaCityToSettle = shortestDistanceFound
+						.get(cityToSettle.getCity())
+						+ road.getDistance();
+
+				if (adjacentCityDistance > distanceViaCityToSettle) {
+					/*
+					 * if this new distance is smaller, update the shortest
+					 * distance found for the adjacent city
+					 */
+					shortestDistanceFound.put(adjacentCity,
+							distanceViaCityToSettle);
+
+					/* update the other data structures */
+					previousCity.put(adjacentCity, cityToSettle.getCity());
+					unsettledCities.offer(new DijkstraCity(adjacentCity,
+							distanceViaCityToSettle));
+				}
+			}
+		}
+	}
+
 	/**
 	 * A city used in Dijkstra's algorithm. Stores the name of a city and its
 	 * distance from the start city.
@@ -0,0 +1,19 @@
+//package cmsc420.meeshquest.part2;
+
+import org.w3c.dom.Element;
+
+/**
+ * Result sink that throws every result away. Used when commands are run only
+ * for their effect on the data structures, such as when replaying a journal
+ * or benchmarking.
+ */
+public class DiscardingResultSink implements ResultSink {
+	public void addResult(final Element result) {
+	}
+
+	public void addFatalError() {
+	}
+
+	public void close() {
+	}
+}
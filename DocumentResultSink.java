@@ -0,0 +1,53 @@
+//package cmsc420.xml;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Collects results under a results node in a DOM Document tree. The whole
+ * tree is kept in memory until it is written out with {@link XmlUtility}.
+ */
+public class DocumentResultSink implements ResultSink {
+	/** output DOM Document tree */
+	protected final Document results;
+
+	/** root node of results document */
+	protected Element resultsNode;
+
+	/**
+	 * Creates the root results node in the given document.
+	 * 
+	 * @param results
+	 *            DOM Document tree
+	 */
+	public DocumentResultSink(final Document results) {
+		this.results = results;
+		resultsNode = results.createElement("results");
+		results.appendChild(resultsNode);
+	}
+
+	/**
+	 * Gets the DOM Document tree holding the results.
+	 * 
+	 * @return DOM Document tree
+	 */
+	public Document getDocument() {
+		return results;
+	}
+
+	public void addResult(Element result) {
+		if (result.getOwnerDocument() != results) {
+			result = (Element) results.importNode(result, true);
+		}
+		resultsNode.appendChild(result);
+	}
+
+	public void addFatalError() {
+		results.removeChild(results.getDocumentElement());
+		resultsNode = null;
+		results.appendChild(results.createElement("fatalError"));
+	}
+
+	public void close() {
+	}
+}
@@ -8,7 +8,7 @@ public class EndNode<K, V> extends Node<K, V> {
 		super(null, NodeType.END);
 	}
 
-	public void put(K key, V value) {
+	public V put(K key, V value) {
 		throw new UnsupportedOperationException();
 	}
 
@@ -1,214 +1,315 @@
 //package cmsc420.heptatrie;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ArrayList;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 public class GuideNode<K, V> extends Node<K, V> {
-	protected LinkedList<K> guides;
+	/**
+	 * separators; guides[i] is above every key under kids[i] and at or below
+	 * every key under kids[i + 1]
+	 */
+	protected K[] guides;
 
-	protected LinkedList<Node<K, V>> kids;
+	/** children; one more than the guides, plus a slot for overflow */
+	protected Node<K, V>[] kids;
 
-	protected static final int order = 7;
+	/** number of children */
+	protected int size;
 
-	public GuideNode(Comparator<K> comparator) {
+	/** most children the node holds */
+	protected final int order;
+
+	@SuppressWarnings("unchecked")
+	public GuideNode(Comparator<K> comparator, int order) {
 		super(comparator, NodeType.GUIDE);
-		this.guides = new LinkedList<K>();
-		this.kids = new LinkedList<Node<K, V>>();
+		this.order = order;
+		this.guides = (K[]) new Object[order];
+		this.kids = (Node<K, V>[]) new Node<?, ?>[order + 1];
 	}
 
-	protected GuideNode(Comparator<K> comparator, List<K> guides,
-			List<Node<K, V>> kids) {
-		super(comparator, NodeType.GUIDE);
-		this.guides = new LinkedList<K>(guides);
-		this.kids = new LinkedList<Node<K, V>>(kids);
+	/**
+	 * Creates a guide node holding a copy of a range of another guide node's
+	 * children, and the guides between them.
+	 */
+	protected GuideNode(Comparator<K> comparator, int order, K[] guides,
+			Node<K, V>[] kids, int from, int to) {
+		this(comparator, order);
+		this.size = to - from;
+		System.arraycopy(guides, from, this.guides, 0, size - 1);
+		System.arraycopy(kids, from, this.kids, 0, size);
 	}
 
 	public int size() {
-		return kids.size();
+		return size;
 	}
 
 	public boolean isFull() {
-		return kids.size() == order;
+		return size == order;
 	}
 
 	protected boolean isOverFull() {
-		return kids.size() > order;
+		return size > order;
+	}
+
+	protected boolean isUnderHalfFull() {
+		return size*2 < order;
+	}
+
+	protected boolean canLend() {
+		return (size - 1) * 2 >= order;
 	}
-	
-	private boolean isUnderHalfFull() {
-		return kids.size()*2 < order;
-	}	
 
+	public K getGuide(int index) {
+		return guides[index];
+	}
+
+	public Node<K, V> getKid(int index) {
+		return kids[index];
+	}
+
+	/**
+	 * Gets a read-only view of the guides of the node.
+	 */
 	public List<K> getGuides() {
-		return guides;
+		return Collections.unmodifiableList(Arrays.asList(guides).subList(0,
+				Math.max(0, size - 1)));
 	}
-	
+
+	/**
+	 * Gets a read-only view of the children of the node.
+	 */
 	public List<Node<K, V>> getKids() {
-		return kids;
+		return Collections.unmodifiableList(Arrays.asList(kids).subList(0,
+				size));
 	}
 
-	public void put(K key, V value) {
-		int index = kidIndex(key);
-
-		kids.get(index).put(key, value);
+	public V put(K key, V value) {
+		return kids[kidIndex(key)].put(key, value);
 	}
-	
+
 	public void updateKeyByIndex(int index, K key) {
-		guides.set(index, key);
+		guides[index] = key;
 	}
 
-
 	public V get(K key) {
-		return kids.get(kidIndex(key)).get(key);
+		return kids[kidIndex(key)].get(key);
 	}
 
+	/**
+	 * Removes a key from the subtree, then borrows for or merges the child
+	 * it was removed from if that child fell under half full.
+	 */
 	public V remove(K key) {
-		return kids.get(kidIndex(key)).remove(key);
+		final int index = kidIndex(key);
+		final V result = kids[index].remove(key);
+		if (result != null && kids[index].isUnderHalfFull()) {
+			rebalance(index);
+		}
+		return result;
+	}
+
+	/**
+	 * Restores a child that fell under half full by borrowing from a sibling
+	 * that can spare an entry, or else by merging it with a sibling.
+	 */
+	private void rebalance(int index) {
+		final Node<K, V> kid = kids[index];
+		if (index > 0 && kids[index - 1].canLend()) {
+			guides[index - 1] = kid.borrowFromLeft(kids[index - 1],
+					guides[index - 1]);
+			counters.borrows++;
+		} else if (index < size - 1 && kids[index + 1].canLend()) {
+			guides[index] = kid.borrowFromRight(kids[index + 1], guides[index]);
+			counters.borrows++;
+		} else if (index > 0) {
+			kids[index - 1].absorb(kid, guides[index - 1]);
+			removeSlots(index - 1, index);
+			counters.merges++;
+		} else if (size > 1) {
+			kid.absorb(kids[1], guides[0]);
+			removeSlots(0, 1);
+			counters.merges++;
+		}
+	}
+
+	protected LeafNode<K, V> findLeaf(K key) {
+		return kids[kidIndex(key)].findLeaf(key);
 	}
-	
-	private LeafNode getFirstLeaf() {
-		Node<K,V> firstChild = getKids().get(0);
+
+	protected LeafNode<K, V> getFirstLeaf() {
+		Node<K,V> firstChild = kids[0];
 		while (firstChild.getType() == NodeType.GUIDE) {
-			firstChild = (Node<K,V>)((GuideNode)firstChild).getKids().get(0);
+			firstChild = ((GuideNode<K, V>)firstChild).kids[0];
 		}
-		LeafNode firstLeaf = (LeafNode<K,V>)firstChild;
-		return firstLeaf;
+		return (LeafNode<K,V>)firstChild;
 	}
 
-	private LeafNode getLastLeaf() {
-		Node<K,V> lastChild = getKids().get(size()-1);
+	protected LeafNode<K, V> getLastLeaf() {
+		Node<K,V> lastChild = kids[size - 1];
 		while (lastChild.getType() == NodeType.GUIDE) {
-			lastChild = (Node<K,V>)((GuideNode)lastChild).getKids().get(((GuideNode)lastChild).size()-1);
+			GuideNode<K, V> guide = (GuideNode<K, V>)lastChild;
+			lastChild = guide.kids[guide.size - 1];
 		}
-		LeafNode lastLeaf = (LeafNode<K,V>)lastChild;
-		return lastLeaf;
-	}	
-	
+		return (LeafNode<K,V>)lastChild;
+	}
+
+	/**
+	 * Moves the upper half of the children to a new guide node to the right
+	 * of this one, and passes the guide between the halves up to the parent.
+	 */
 	protected void split() {
-		int halfGuides = guides.size() / 2;
+		int halfGuides = (size - 1) / 2;
 		int halfKids = halfGuides + 1;
-		GuideNode<K, V> left = new GuideNode<K, V>(comparator, guides.subList(
-				0, halfGuides), kids.subList(0, halfKids));
-		GuideNode<K, V> right = new GuideNode<K, V>(comparator, guides.subList(
-				halfGuides + 1, guides.size()), kids.subList(halfKids,
-				kids.size()));
-		left.setLeft(getLeft());
-		left.setRight(right);
-		getLeft().setRight(left);
-		left.setParent(getParent());
-		for (Node<K, V> kid : left.kids) {
-			kid.setParent(left);
+		K promoted = guides[halfGuides];
+		GuideNode<K, V> right = new GuideNode<K, V>(comparator, order, guides,
+				kids, halfKids, size);
+		right.latch = newLatch();
+		right.epoch = epoch;
+		right.counters = counters;
+		counters.splits++;
+		for (int i = 0; i < right.size; i++) {
+			right.kids[i].setParent(right);
 		}
+		Arrays.fill(guides, halfGuides, guides.length, null);
+		Arrays.fill(kids, halfKids, size, null);
+		size = halfKids;
 
-		right.setLeft(left);
+		right.setLeft(this);
 		right.setRight(getRight());
 		getRight().setLeft(right);
 		right.setParent(getParent());
-		for (Node<K, V> kid : right.kids) {
-			kid.setParent(right);
-		}
-		
-		parent.insertKid(this, guides.get(halfGuides), left, right);
-	}
-	
-	private void addChild(Node<K,V> node, Node<K,V> child) {
-		if (child.getType() == NodeType.LEAF) {
-			LeafNode leaf = (LeafNode)child;
-			for (int i=0; i<leaf.size(); i++) {
-				node.put((K)leaf.getKeys().get(i), (V)leaf.getValues().get(i));
-			}
-		} else if (child.getType() == NodeType.GUIDE) {
-			GuideNode guide = (GuideNode)child;
-			for (int i=0; i<guide.size(); i++) {
-				addChild(node, (Node<K,V>)guide.getKids().get(i));						
-			}
-		}		
-	}
-	protected void merge() {
-		if (parent != null) {
-			parent.deleteKid(this);
-			Node<K,V> prev = null;
-			Node<K,V> temp = parent;
-			while (temp != null && temp.getType() != NodeType.ROOT) {
-				prev = temp;
-				temp = temp.getParent();
-			}
-			if (prev != null) {
-				for (int i=0; i<size(); i++) {
-					Node<K,V> child = kids.get(i);
-					addChild(prev, child);
-				}		
-			}
+		setRight(right);
+
+		parent.insertKid(this, promoted, this, right);
+	}
+
+	protected K borrowFromLeft(Node<K, V> node, K separator) {
+		final GuideNode<K, V> left = (GuideNode<K, V>) node;
+		System.arraycopy(guides, 0, guides, 1, size - 1);
+		System.arraycopy(kids, 0, kids, 1, size);
+		guides[0] = separator;
+		kids[0] = left.kids[left.size - 1];
+		kids[0].setParent(this);
+		size++;
+
+		final K promoted = left.guides[left.size - 2];
+		left.removeSlots(left.size - 2, left.size - 1);
+		return promoted;
+	}
+
+	protected K borrowFromRight(Node<K, V> node, K separator) {
+		final GuideNode<K, V> right = (GuideNode<K, V>) node;
+		guides[size - 1] = separator;
+		kids[size] = right.kids[0];
+		kids[size].setParent(this);
+		size++;
+
+		final K promoted = right.guides[0];
+		right.removeSlots(0, 0);
+		return promoted;
+	}
+
+	protected void absorb(Node<K, V> node, K separator) {
+		final GuideNode<K, V> right = (GuideNode<K, V>) node;
+		guides[size - 1] = separator;
+		System.arraycopy(right.guides, 0, guides, size, right.size - 1);
+		System.arraycopy(right.kids, 0, kids, size, right.size);
+		for (int i = 0; i < right.size; i++) {
+			right.kids[i].setParent(this);
 		}
+		size += right.size;
+		setRight(right.getRight());
+		right.getRight().setLeft(this);
 	}
 
 	protected void insertKid(Node<K, V> old, K key, Node<K, V> left,
 			Node<K, V> right) {
-		int ind = kids.indexOf(old);
+		/* the split key falls in the range of the node that split */
+		int ind = kidIndex(key);
+		if (ind >= size || kids[ind] != old) {
+			ind = slotOf(old);
+		}
 		if (ind < 0) {
 			// when the root splits, the two new nodes are added to the dummy
 			// new root
-			kids.add(left);
-			kids.add(right);
-			guides.add(key);
+			guides[Math.max(0, size - 1)] = key;
+			kids[size++] = left;
+			kids[size++] = right;
 			return;
 		}
 
-		kids.set(ind, left);
-		kids.add(ind + 1, right);
-		guides.add(ind, key);
+		System.arraycopy(guides, ind, guides, ind + 1, size - 1 - ind);
+		System.arraycopy(kids, ind + 1, kids, ind + 2, size - 1 - ind);
+		kids[ind] = left;
+		kids[ind + 1] = right;
+		guides[ind] = key;
+		size++;
 
 		if (isOverFull()) {
 			split();
 		}
 	}
-	
-	public void deleteKid(Node<K,V> obj) {
-		int index = kids.indexOf(obj);
-		if (index == 0) {		
-			guides.remove(index);
-			kids.remove(index);
-		} else if (index > 0) {
-			guides.remove(index-1);
-			kids.remove(index);			
+
+	/**
+	 * Removes one guide and one child, closing up the gaps.
+	 */
+	private void removeSlots(int guide, int kid) {
+		if (size > 1) {
+			System.arraycopy(guides, guide + 1, guides, guide, size - 2 - guide);
+			guides[size - 2] = null;
+		}
+		System.arraycopy(kids, kid + 1, kids, kid, size - 1 - kid);
+		kids[--size] = null;
+	}
+
+	/**
+	 * Finds the slot holding a child.
+	 *
+	 * @return index of the child, or -1 if it is not a child of this node
+	 */
+	private int slotOf(Node<K, V> kid) {
+		for (int i = 0; i < size; i++) {
+			if (kids[i] == kid) {
+				return i;
+			}
 		}
-		if (isUnderHalfFull()) {
-			merge();
-		}		
-	}		
-	
+		return -1;
+	}
+
+	/**
+	 * Binary searches the guides for the child whose range holds a key.
+	 *
+	 * @return index of the first guide greater than the key
+	 */
 	protected int kidIndex(K key) {
-		int i = 0;
-		for (K g : guides) {
-			if (cmp(key, g) < 0) {
-				break;
+		int low = 0;
+		int high = size - 1;
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (cmp(key, guides[mid]) < 0) {
+				high = mid;
+			} else {
+				low = mid + 1;
 			}
-			++i;
 		}
-		return i;
+		return low;
 	}
-		
 
 	public void addToXmlDoc(Document doc, Element parent) {
 		Element thisNode = doc.createElement("guide");
-		Iterator<K> guideItr = guides.iterator();
-		Iterator<Node<K, V>> kidItr = kids.iterator();
-		while (guideItr.hasNext()) {
-			assert (kidItr.hasNext());
-			kidItr.next().addToXmlDoc(doc, thisNode);
+		for (int i = 0; i < size - 1; i++) {
+			kids[i].addToXmlDoc(doc, thisNode);
 			Element key = doc.createElement("key");
-			key.setAttribute("value", guideItr.next().toString());
+			key.setAttribute("value", guides[i].toString());
 			thisNode.appendChild(key);
 		}
-		assert (kidItr.hasNext());
 		// Remember to add the last child.
-		kidItr.next().addToXmlDoc(doc, thisNode);
+		kids[size - 1].addToXmlDoc(doc, thisNode);
 		parent.appendChild(thisNode);
 	}
-	
+
 }
\ No newline at end of file
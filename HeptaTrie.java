@@ -1,27 +1,51 @@
 //package cmsc420.heptatrie;
 
 import java.lang.reflect.Array;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 public class HeptaTrie<K, V> implements SortedMap<K, V> {
-	private RootNode<K,V> root;
+	final RootNode<K,V> root;
 
 	private int size = 0;
 
+	/** guide order of a trie made without one */
+	public static final int DEFAULT_GUIDE_ORDER = 7;
+
 	private final int leafOrder;
 
+	/** most children of a guide node */
+	private final int guideOrder;
+
 	protected int modCount = Integer.MIN_VALUE;
 
+	/** epoch given to nodes made now; each snapshot starts a new epoch */
+	private int epoch;
+
+	/** epochs of the versions not yet released */
+	private final TreeSet<Integer> versions = new TreeSet<Integer>();
+
+	/** epoch of the newest live version, or -1 if there is none */
+	private volatile int sharedEpoch = -1;
+
 	class DefaultComparator implements Comparator<K> {
 		@SuppressWarnings("unchecked")
 		public int compare(K o1, K o2) {
@@ -42,11 +66,59 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 	}
 
 	public HeptaTrie(Comparator<K> comparator, int leafOrder) {
+		this(comparator, leafOrder, DEFAULT_GUIDE_ORDER);
+	}
+
+	/**
+	 * Creates a trie whose guide nodes hold up to a number of children.
+	 * Wider guides make a shorter trie, at the cost of more guides searched
+	 * in each.
+	 *
+	 * @param guideOrder
+	 *            most children of a guide node, at least 3
+	 */
+	public HeptaTrie(Comparator<K> comparator, int leafOrder, int guideOrder) {
+		this(comparator, leafOrder, guideOrder, false);
+	}
+
+	/**
+	 * Creates a trie whose nodes may be latched.
+	 *
+	 * @param latched
+	 *            true if every node of the trie is given a latch
+	 */
+	protected HeptaTrie(Comparator<K> comparator, int leafOrder,
+			int guideOrder, boolean latched) {
 		this.leafOrder = leafOrder;
+		this.guideOrder = checkGuideOrder(guideOrder);
 		if (comparator == null) {
 			comparator = new DefaultComparator();
 		}
-		root = new RootNode(comparator, leafOrder);
+		root = new RootNode(new LeafNode<K, V>(comparator, leafOrder), latched);
+	}
+
+	/**
+	 * Creates a trie whose leaves are all made like an empty leaf, so a
+	 * subclass can keep its entries in a leaf of its own.
+	 *
+	 * @param blank
+	 *            empty leaf, copied for each new leaf of the trie
+	 */
+	protected HeptaTrie(LeafNode<K, V> blank, int guideOrder) {
+		this.leafOrder = blank.leafOrder;
+		this.guideOrder = checkGuideOrder(guideOrder);
+		root = new RootNode(blank, false);
+	}
+
+	/**
+	 * Checks that a guide node of an order can split into two nodes at
+	 * least half full.
+	 */
+	private static int checkGuideOrder(int guideOrder) {
+		if (guideOrder < 3) {
+			throw new IllegalArgumentException("guide order " + guideOrder);
+		}
+		return guideOrder;
 	}
 
 	public Comparator<? super K> comparator() {
@@ -58,11 +130,11 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 			throw new NoSuchElementException();
 		}
 
-		return root.getFirstLeaf().getKeys().get(0);
+		return root.getFirstLeaf().getKey(0);
 	}
 
-	public SortedMap<K, V> headMap(Object arg0) {
-		throw new UnsupportedOperationException();
+	public SortedMap<K, V> headMap(K toKey) {
+		return new SubMap(null, checkKey(toKey));
 	}
 
 	public K lastKey() {
@@ -71,19 +143,156 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		}
 
 		LeafNode<K, V> l = root.getLastLeaf();
-		return l.getKeys().get(l.size() - 1);
+		return l.getKey(l.size() - 1);
+	}
+
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return new SubMap(checkKey(fromKey), checkKey(toKey));
+	}
+
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return new SubMap(checkKey(fromKey), null);
+	}
+
+	/**
+	 * Gets a view of the entries whose keys start with a prefix, in key
+	 * order. The view is the range from the prefix up to the next string
+	 * that does not start with it, so it is found in one descent and read
+	 * along the leaf chain. The trie must order its keys as
+	 * String.compareTo does.
+	 *
+	 * @param trie
+	 *            trie with string keys
+	 * @param prefix
+	 *            prefix of the keys in the view
+	 * @return view of the entries whose keys start with the prefix
+	 */
+	public static <V> SortedMap<String, V> prefixMap(HeptaTrie<String, V> trie,
+			String prefix) {
+		/* the first string after every string with the prefix */
+		int end = prefix.length();
+		while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+			end--;
+		}
+		if (end == 0) {
+			return trie.tailMap(prefix);
+		}
+		String limit = prefix.substring(0, end - 1)
+				+ (char) (prefix.charAt(end - 1) + 1);
+		return trie.subMap(prefix, limit);
+	}
+
+	private static <K> K checkKey(K key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		return key;
+	}
+
+	private int cmp(K k1, K k2) {
+		return root.getComparator().compare(k1, k2);
+	}
+
+	/**
+	 * Checks whether a key lies within bounds.
+	 *
+	 * @param lo
+	 *            lowest key in range, inclusive; null if unbounded
+	 * @param hi
+	 *            key above the range, exclusive; null if unbounded
+	 */
+	private boolean inRange(K key, K lo, K hi) {
+		return (lo == null || cmp(key, lo) >= 0)
+				&& (hi == null || cmp(key, hi) < 0);
+	}
+
+	/**
+	 * Gets the slot of the first key in a leaf at or above a key.
+	 */
+	private static <K, V> int ceilingIndex(LeafNode<K, V> leaf, K key) {
+		int index = leaf.indexOf(key);
+		return index >= 0 ? index : -(index + 1);
+	}
+
+	/**
+	 * Counts the keys within bounds, adding up whole leaves between the
+	 * first and last leaf of the range.
+	 */
+	protected int count(K lo, K hi) {
+		if (lo == null && hi == null) {
+			return size;
+		}
+		int count = 0;
+		LeafNode<K, V> leaf = lo == null ? root.getFirstLeaf() : root
+				.findLeaf(lo);
+		int from = lo == null ? 0 : ceilingIndex(leaf, lo);
+		for (; leaf != null; from = 0, leaf = nextLeaf(leaf)) {
+			int to = leaf.size();
+			if (hi != null && to > 0 && cmp(leaf.getKey(to - 1), hi) >= 0) {
+				return count + ceilingIndex(leaf, hi) - from;
+			}
+			count += to - from;
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the last key below a bound.
+	 *
+	 * @param hi
+	 *            exclusive bound; null if unbounded
+	 * @return last key below the bound, or null if there is none
+	 */
+	protected K lastKeyBelow(K hi) {
+		LeafNode<K, V> leaf;
+		int index;
+		if (hi == null) {
+			leaf = root.getLastLeaf();
+			index = leaf.size() - 1;
+		} else {
+			leaf = root.findLeaf(hi);
+			index = ceilingIndex(leaf, hi) - 1;
+		}
+		while (index < 0) {
+			Node<K, V> left = leaf.getLeft();
+			if (left.getType() != Node.NodeType.LEAF) {
+				return null;
+			}
+			leaf = (LeafNode<K, V>) left;
+			index = leaf.size() - 1;
+		}
+		return leaf.getKey(index);
+	}
+
+	/**
+	 * Gets an iterator over the entries within bounds, for the views.
+	 *
+	 * @param lo
+	 *            lowest key in range, inclusive; null if unbounded
+	 * @param hi
+	 *            key above the range, exclusive; null if unbounded
+	 */
+	protected Iterator<Map.Entry<K, V>> entryIterator(K lo, K hi) {
+		return new EntryIterator(lo, hi);
 	}
 
-	public SortedMap<K, V> subMap(K arg0, K arg1) {
-		throw new UnsupportedOperationException();
+	/**
+	 * Gets an iterator over the keys within bounds, for the views.
+	 */
+	protected Iterator<K> keyIterator(K lo, K hi) {
+		return new KeyIterator(lo, hi);
 	}
 
-	public SortedMap<K, V> tailMap(K arg0) {
-		throw new UnsupportedOperationException();
+	/**
+	 * Gets an iterator over the values of the keys within bounds, for the
+	 * views.
+	 */
+	protected Iterator<V> valueIterator(K lo, K hi) {
+		return new ValueIterator(lo, hi);
 	}
 
 	public void clear() {
-		root = new RootNode(root.getComparator(), leafOrder);
+		root.reset();
 		size = 0;
 		modCount++;
 	}
@@ -94,18 +303,33 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 			throw new NullPointerException();
 		}
 
+		root.counters.operated();
 		return root.contains((K) key);
 	}
 
 	public boolean containsValue(Object arg0) {
-		for (Map.Entry<K, V> entry : entrySet()) {
-			if (arg0.equals(entry.getValue())) {
-				return true;
+		for (LeafNode<K, V> leaf = root.getFirstLeaf(); leaf != null;
+				leaf = nextLeaf(leaf)) {
+			for (int i = 0; i < leaf.size(); i++) {
+				if (arg0.equals(leaf.values[i])) {
+					return true;
+				}
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * Gets the next leaf along the leaf chain.
+	 *
+	 * @return next leaf, or null after the last leaf
+	 */
+	private static <K, V> LeafNode<K, V> nextLeaf(LeafNode<K, V> leaf) {
+		Node<K, V> right = leaf.getRight();
+		return right.getType() == Node.NodeType.LEAF ? (LeafNode<K, V>) right
+				: null;
+	}
+
 	public Set<Map.Entry<K, V>> entrySet() {
 		return new EntrySet();
 	}
@@ -115,6 +339,7 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		if (key == null) {
 			throw new NullPointerException();
 		}
+		root.counters.operated();
 		return root.get((K) key);
 	}
 
@@ -123,20 +348,30 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 	}
 
 	public Set<K> keySet() {
-		throw new UnsupportedOperationException();
+		return new KeySet(null, null);
 	}
 
+	/**
+	 * Associates a value with a key in a single descent of the trie.
+	 *
+	 * @return the previous value of the key, or null if the key was absent
+	 * @throws NullPointerException
+	 *             the key or the value is null. A null value could not be
+	 *             told apart from an absent key.
+	 */
 	public V put(K key, V value) {
-		if (key == null) {
+		if (key == null || value == null) {
 			throw new NullPointerException();
 		}
 
-		V oldVal = get(key);
-		if (!root.contains(key) && size != Integer.MAX_VALUE) {
+		root.counters.operated();
+		if (sharedEpoch >= 0) {
+			unshare(key, false);
+		}
+		V oldVal = root.put(key, value);
+		if (oldVal == null && size != Integer.MAX_VALUE) {
 			size++;
 		}
-
-		root.put(key, value);
 		modCount++;
 		return oldVal;
 	}
@@ -147,18 +382,61 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		}
 	}
 
+	/**
+	 * Loads an empty trie from entries in ascending key order. The leaves are
+	 * filled in turn and each guide level is then built over the level below,
+	 * so no node is ever split. Every node is filled to the fill factor, and
+	 * never under half full; the last two nodes of a level share their
+	 * entries when the last would otherwise be under half full.
+	 *
+	 * @param entries
+	 *            entries in strictly ascending key order
+	 * @param fillFactor
+	 *            fraction of each leaf and guide node to fill, greater than 0
+	 *            and at most 1
+	 * @throws IllegalStateException
+	 *             the trie is not empty
+	 * @throws IllegalArgumentException
+	 *             the fill factor is out of range, or the keys are not in
+	 *             strictly ascending order. The trie is left empty.
+	 * @throws NullPointerException
+	 *             a key or a value is null. The trie is left empty.
+	 */
+	public void bulkLoad(
+			Iterator<? extends Map.Entry<? extends K, ? extends V>> entries,
+			double fillFactor) {
+		if (size != 0) {
+			throw new IllegalStateException("trie is not empty");
+		}
+		if (!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("fill factor " + fillFactor);
+		}
+
+		size = root.load(entries, fillFactor);
+		modCount++;
+	}
+
+	/**
+	 * Removes a key in a single descent of the trie.
+	 *
+	 * @return the value of the key, or null if the key was absent
+	 */
+	@SuppressWarnings("unchecked")
 	public V remove(Object arg0) {
 		K key = (K)arg0;
 		if (key == null) {
 			throw new NullPointerException();
 		}
-		
-		if (root.contains(key) || size > 0) {
-			size--;			
+
+		root.counters.operated();
+		if (sharedEpoch >= 0) {
+			unshare(key, true);
 		}
-		
 		V oldVal = root.remove(key);
-		modCount++;
+		if (oldVal != null) {
+			size--;
+			modCount++;
+		}
 		return oldVal;
 	}
 
@@ -166,8 +444,127 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		return size;
 	}
 
+	/**
+	 * Takes a read-only version of the trie as it is now. Taking it copies
+	 * nothing. Until it is released, each change to the trie first copies the
+	 * nodes it would change that the version shares, so a change allocates
+	 * O(log n) nodes and the version never changes. A version may be read by
+	 * other threads while the trie goes on changing, once it has been safely
+	 * published to them, but must be taken while the trie is not changing.
+	 *
+	 * @return version of the trie, readable until it is released
+	 */
+	public HeptaTrieVersion<K, V> snapshot() {
+		synchronized (versions) {
+			versions.add(epoch);
+			sharedEpoch = epoch;
+		}
+		HeptaTrieVersion<K, V> version = new HeptaTrieVersion<K, V>(this,
+				epoch, root.getMe(), size, root.getComparator());
+		epoch++;
+		return version;
+	}
+
+	/**
+	 * Releases a version, after which its nodes may change in place.
+	 */
+	void release(int version) {
+		synchronized (versions) {
+			versions.remove(version);
+			sharedEpoch = versions.isEmpty() ? -1 : versions.last();
+		}
+	}
+
+	/**
+	 * Copies the nodes shared with a live version that a change at a key can
+	 * reach: the nodes on the path to the key's leaf and, for a removal, the
+	 * siblings a node falling under half full may borrow from or merge with.
+	 * Only the links of a shared node are changed; versions never read them.
+	 */
+	private void unshare(K key, boolean removal) {
+		final int shared = sharedEpoch;
+		if (root.me.epoch <= shared) {
+			root.me = copy(root.me);
+		}
+		Node<K, V> node = root.me;
+		while (node.getType() == Node.NodeType.GUIDE) {
+			final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+			final int index = guide.kidIndex(key);
+			if (removal && !guide.kids[index].canLend()) {
+				if (index > 0 && guide.kids[index - 1].epoch <= shared) {
+					guide.kids[index - 1] = copy(guide.kids[index - 1]);
+				}
+				if (index < guide.size - 1
+						&& guide.kids[index + 1].epoch <= shared) {
+					guide.kids[index + 1] = copy(guide.kids[index + 1]);
+				}
+			}
+			if (guide.kids[index].epoch <= shared) {
+				guide.kids[index] = copy(guide.kids[index]);
+			}
+			node = guide.kids[index];
+		}
+	}
+
+	/**
+	 * Copies a node of the current epoch in its place in its level, and
+	 * makes it the parent of the node's children.
+	 *
+	 * @return the copy, which the caller puts in place in the parent
+	 */
+	private Node<K, V> copy(Node<K, V> node) {
+		final Node<K, V> copy;
+		if (node.getType() == Node.NodeType.LEAF) {
+			final LeafNode<K, V> leaf = (LeafNode<K, V>) node;
+			copy = leaf.copyOf(0, leaf.size);
+		} else {
+			final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+			final GuideNode<K, V> guideCopy = new GuideNode<K, V>(guide
+					.getComparator(), guide.order, guide.guides, guide.kids, 0,
+					guide.size);
+			for (int i = 0; i < guideCopy.size; i++) {
+				guideCopy.kids[i].setParent(guideCopy);
+			}
+			copy = guideCopy;
+		}
+		copy.epoch = epoch;
+		copy.counters = node.counters;
+		copy.setParent(node.getParent());
+		copy.setLeft(node.getLeft());
+		copy.setRight(node.getRight());
+		node.getLeft().setRight(copy);
+		node.getRight().setLeft(copy);
+		return copy;
+	}
+
+	public int getLeafOrder() {
+		return leafOrder;
+	}
+
+	public int getGuideOrder() {
+		return guideOrder;
+	}
+
+	/**
+	 * Turns counting comparisons and operations on or off. Counting costs a
+	 * little on every lookup, so it is off until turned on. Splits, borrows
+	 * and merges are always counted.
+	 */
+	public void setCounting(boolean counting) {
+		root.counters.counting = counting;
+	}
+
+	/**
+	 * Takes statistics of the shape of the trie and of the work it has done
+	 * since it was made.
+	 */
+	public HeptaTrieStatistics getStatistics() {
+		return new HeptaTrieStatistics(root.getMe(), leafOrder, guideOrder,
+				root.counters);
+	}
+
 	public Collection<V> values() {
-		throw new UnsupportedOperationException();
+		return new Values(null, null);
 	}
 
 	public boolean equals(Object arg0) {
@@ -180,7 +577,14 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 	}
 
 	public int hashCode() {
-		return entrySet().hashCode();
+		int hashCode = 0;
+		for (LeafNode<K, V> leaf = root.getFirstLeaf(); leaf != null;
+				leaf = nextLeaf(leaf)) {
+			for (int i = 0; i < leaf.size(); i++) {
+				hashCode += leaf.getKey(i).hashCode() ^ leaf.values[i].hashCode();
+			}
+		}
+		return hashCode;
 	}
 
 	public void addToXmlDoc(Document doc, Element parentNode) {
@@ -191,7 +595,7 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		parentNode.appendChild(heptaTrie);
 	}
 
-	private class RootNode<K,V> extends Node<K, V> {
+	class RootNode<K,V> extends Node<K, V> {
 		private Node<K, V> me;
 
 		private EndNode<K, V> first;
@@ -202,10 +606,28 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		
 		private int height = 1;
 
-		public RootNode(Comparator<K> comparator, int leafOrder) {
-			super(comparator, NodeType.ROOT);
-			this.leafOrder = leafOrder;
-			LeafNode<K, V> tmp = new LeafNode<K, V>(comparator, this.leafOrder);
+		/** empty leaf copied for each leaf made by the root */
+		private final LeafNode<K, V> blank;
+
+		public RootNode(LeafNode<K, V> blank, boolean latched) {
+			super(blank.getComparator(), NodeType.ROOT);
+			this.leafOrder = blank.leafOrder;
+			this.blank = blank;
+			if (latched) {
+				latch = new StampedLock();
+			}
+			counters = new HeptaTrieCounters();
+			reset();
+		}
+
+		/**
+		 * Replaces the nodes with a single empty leaf.
+		 */
+		public void reset() {
+			LeafNode<K, V> tmp = blank.copyOf(0, 0);
+			tmp.latch = newLatch();
+			tmp.epoch = HeptaTrie.this.epoch;
+			tmp.counters = counters;
 			this.first = new EndNode<K, V>();
 			this.last = new EndNode<K, V>();
 			this.first.setRight(tmp);
@@ -213,36 +635,47 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 			tmp.setLeft(first);
 			tmp.setRight(last);
 			this.me = tmp;
+			this.height = 1;
 		}
 		
 		public Node<K,V> getMe() {
 			return me;
 		}
 
+		protected LeafNode<K, V> findLeaf(K key) {
+			return me.findLeaf(key);
+		}
+
 		public V get(K key) {
 			return me.get(key);
 		}
 
 		public V remove(K key) {
 			V obj = me.remove(key);
-			if (me.getParent() == null && me.getType() == NodeType.GUIDE && ((GuideNode)me).size() == 1) {
-				me = (Node<K,V>)((GuideNode)me).getKids().get(0);
+			/* a root guide left with one child is replaced by that child */
+			if (me.getType() == NodeType.GUIDE && me.size() == 1) {
+				me = ((GuideNode<K, V>)me).getKid(0);
 				me.setParent(null);
+				height--;
 			}
 			return obj;
 		}
 
-		public void put(K key, V value) {
+		public V put(K key, V value) {
+			V oldVal;
 			if (me.isFull()) {
 				// dummy new root
 				GuideNode<K, V> newRoot = new GuideNode<K, V>(
-						me.getComparator());
+						me.getComparator(), guideOrder);
+				newRoot.latch = newLatch();
+				newRoot.epoch = me.epoch;
+				newRoot.counters = counters;
 				newRoot.setLeft(new EndNode<K, V>());
 				newRoot.setRight(new EndNode<K, V>());
 				newRoot.getLeft().setRight(newRoot);
 				newRoot.getRight().setLeft(newRoot);
 				me.setParent(newRoot);
-				me.put(key, value);
+				oldVal = me.put(key, value);
 				if (newRoot.size() > 0) {
 					me = newRoot;
 					height++;
@@ -250,8 +683,145 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 					me.setParent(null);
 				}
 			} else {			
-				me.put(key, value);
+				oldVal = me.put(key, value);
 			}
+			return oldVal;
+		}
+
+		/**
+		 * Replaces the nodes with ones built bottom-up from sorted entries.
+		 * Nothing is replaced if the entries are rejected.
+		 *
+		 * @return number of entries loaded
+		 */
+		@SuppressWarnings("unchecked")
+		public int load(
+				Iterator<? extends Map.Entry<? extends K, ? extends V>> entries,
+				double fillFactor) {
+			final int leafMin = (leafOrder + 1) / 2;
+			final int leafFill = Math.max(leafMin, Math.min(leafOrder,
+					(int) Math.ceil(leafOrder * fillFactor)));
+			final List<Node<K, V>> leaves = new ArrayList<Node<K, V>>();
+			final Comparator<K> comparator = getComparator();
+			LeafNode<K, V> leaf = null;
+			K previous = null;
+			int count = 0;
+			while (entries.hasNext()) {
+				final Map.Entry<? extends K, ? extends V> entry = entries.next();
+				final K key = entry.getKey();
+				final V value = entry.getValue();
+				if (key == null || value == null) {
+					throw new NullPointerException();
+				}
+				if (previous != null && comparator.compare(previous, key) >= 0) {
+					throw new IllegalArgumentException("key " + key
+							+ " is not after " + previous);
+				}
+				if (leaf == null || leaf.size() == leafFill) {
+					leaf = blank.copyOf(0, 0);
+					leaves.add(leaf);
+				}
+				leaf.insert(leaf.size(), key, value);
+				previous = key;
+				count++;
+			}
+			if (count == 0) {
+				return 0;
+			}
+
+			if (leaf.size() < leafMin && leaves.size() > 1) {
+				/* share the entries of the last two leaves */
+				final LeafNode<K, V> last = (LeafNode<K, V>) leaves
+						.get(leaves.size() - 2);
+				final int total = last.size() + leaf.size();
+				if (total <= leafOrder) {
+					for (int i = 0; i < leaf.size(); i++) {
+						last.insert(last.size(), leaf.getKey(i), leaf.values[i]);
+					}
+					leaves.remove(leaves.size() - 1);
+				} else {
+					while (last.size() > total / 2) {
+						final int end = last.size() - 1;
+						leaf.insert(0, last.getKey(end), last.values[end]);
+						last.delete(end);
+					}
+				}
+			}
+			for (Node<K, V> node : leaves) {
+				node.latch = newLatch();
+				node.epoch = HeptaTrie.this.epoch;
+				node.counters = counters;
+			}
+			link(leaves, first, last);
+
+			/* the guide before each node of the level; the first has none */
+			List<K> mins = new ArrayList<K>(leaves.size());
+			mins.add(null);
+			for (int i = 1; i < leaves.size(); i++) {
+				mins.add(((LeafNode<K, V>) leaves.get(i))
+						.separator((LeafNode<K, V>) leaves.get(i - 1)));
+			}
+
+			final int guideMin = (guideOrder + 1) / 2;
+			final int guideFill = Math.max(guideMin, Math.min(guideOrder,
+					(int) Math.ceil(guideOrder * fillFactor)));
+			List<Node<K, V>> level = leaves;
+			height = 1;
+			while (level.size() > 1) {
+				final int kids = level.size();
+				final int groups = Math.max(1, Math.min((kids + guideFill - 1)
+						/ guideFill, kids / guideMin));
+				final Node<K, V>[] levelKids = level
+						.toArray((Node<K, V>[]) new Node<?, ?>[kids]);
+				final K[] levelGuides = (K[]) new Object[kids];
+				for (int i = 1; i < kids; i++) {
+					levelGuides[i - 1] = mins.get(i);
+				}
+
+				final List<Node<K, V>> guides = new ArrayList<Node<K, V>>(groups);
+				final List<K> guideMins = new ArrayList<K>(groups);
+				int from = 0;
+				for (int g = 0; g < groups; g++) {
+					final int to = from + kids / groups
+							+ (g < kids % groups ? 1 : 0);
+					final GuideNode<K, V> guide = new GuideNode<K, V>(
+							comparator, guideOrder, levelGuides, levelKids,
+							from, to);
+					guide.latch = newLatch();
+					guide.epoch = HeptaTrie.this.epoch;
+					guide.counters = counters;
+					for (int i = from; i < to; i++) {
+						levelKids[i].setParent(guide);
+					}
+					guides.add(guide);
+					guideMins.add(mins.get(from));
+					from = to;
+				}
+				link(guides, new EndNode<K, V>(), new EndNode<K, V>());
+				level = guides;
+				mins = guideMins;
+				height++;
+			}
+
+			me = level.get(0);
+			me.setParent(null);
+			return count;
+		}
+
+		/**
+		 * Links the nodes of a level to each other, and the ends of the level
+		 * to end nodes.
+		 */
+		private void link(List<Node<K, V>> level, EndNode<K, V> first,
+				EndNode<K, V> last) {
+			Node<K, V> previous = first;
+			for (Node<K, V> node : level) {
+				node.setLeft(previous);
+				previous.setRight(node);
+				previous = node;
+			}
+			previous.setRight(last);
+			last.setLeft(previous);
 		}
 
 		public LeafNode<K, V> getFirstLeaf() {
@@ -268,13 +838,21 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 	}
 
 
+	/**
+	 * Entry read from a leaf slot. setValue writes through to the slot while
+	 * the entry is still there, and otherwise to wherever the key is now. If
+	 * the key has since been removed, only the entry changes, as with
+	 * TreeMap.
+	 */
 	private class Entry implements Map.Entry<K, V> {
-		private K key;
-		private EntrySet.EntryIterator srcItr;
-
-		public Entry(K key, EntrySet.EntryIterator srcItr) {
-			this.key = key;
-			this.srcItr = srcItr;
+		private final K key;
+		private V value;
+		private final LeafNode<K, V> leaf;
+
+		public Entry(LeafNode<K, V> leaf, int index) {
+			this.leaf = leaf;
+			this.key = leaf.getKey(index);
+			this.value = leaf.values[index];
 		}
 
 		public K getKey() {
@@ -282,16 +860,30 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		}
 
 		public V getValue() {
-		return get(key);
+			return value;
 		}
 
 		public V setValue(V arg0) {
-			if (srcItr == null) {
-				throw new IllegalStateException(
-						"this entry is readonly because it is not created by an iterator");
+			if (arg0 == null) {
+				throw new NullPointerException();
 			}
-			V ret = put(key, arg0);
-			srcItr.setModCount(HeptaTrie.this.modCount);
+			V ret = value;
+			/* a leaf merged away or replaced by a copy is no longer its left
+			 * sibling's right */
+			int index = leaf.getLeft().getRight() == leaf ? leaf.indexOf(key)
+					: -1;
+			if (index >= 0 && leaf.epoch > sharedEpoch) {
+				leaf.values[index] = arg0;
+			} else if (root.findLeaf(key).indexOf(key) >= 0) {
+				/* the entry has since moved to another leaf, or the leaf is
+				 * shared with a version */
+				if (sharedEpoch >= 0) {
+					unshare(key, false);
+				}
+				final LeafNode<K, V> current = root.findLeaf(key);
+				current.values[current.indexOf(key)] = arg0;
+			}
+			value = arg0;
 			return ret;
 		}
 
@@ -299,16 +891,17 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 			if (arg0 instanceof Map.Entry) {
 				@SuppressWarnings("unchecked")
 				Map.Entry<K, V> e2 = (Map.Entry<K, V>) arg0;
-				return (key == null ? e2.getKey() == null : key.equals(e2.getKey()))
-						&& (getValue() == null ? e2.getValue() == null
-								: getValue().equals(e2.getValue()));
+				return key.equals(e2.getKey()) && value.equals(e2.getValue());
 			}
 			return false;
 		}
 
 		public int hashCode() {
-			return (key == null ? 0 : key.hashCode())
-					^ (getValue() == null ? 0 : getValue().hashCode());
+			return key.hashCode() ^ value.hashCode();
+		}
+
+		public String toString() {
+			return key + "=" + value;
 		}
 	}
 
@@ -349,13 +942,12 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		}
 
 		public Iterator<Map.Entry<K, V>> iterator() {
-			return new EntryIterator();
+			return entryIterator(null, null);
 		}
 
-		@SuppressWarnings("unchecked")
 		public boolean remove(Object entry) {
-			if (entry instanceof Map.Entry) {
-				return HeptaTrie.this.remove(((Entry) entry).getKey()) != null;
+			if (contains(entry)) {
+				return HeptaTrie.this.remove(((Map.Entry<?, ?>) entry).getKey()) != null;
 			}
 			return false;
 		}
@@ -369,7 +961,7 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		}
 
 		public boolean retainAll(Collection<?> entries) {
-			Iterator<Map.Entry<K, V>> it = new EntryIterator();
+			Iterator<Map.Entry<K, V>> it = iterator();
 			boolean flag = false;
 			while (it.hasNext()) {
 				if (!entries.contains(it.next())) {
@@ -386,7 +978,7 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 
 		public Object[] toArray() {
 			Object[] arr = new Object[size()];
-			Iterator<Map.Entry<K, V>> it = new EntryIterator();
+			Iterator<Map.Entry<K, V>> it = iterator();
 			for (int i = 0; it.hasNext(); i++) {
 				arr[i] = it.next();
 			}
@@ -399,7 +991,7 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 				array = (T[]) Array.newInstance(array.getClass()
 						.getComponentType(), size());
 
-			Iterator<Map.Entry<K, V>> it = new EntryIterator();
+			Iterator<Map.Entry<K, V>> it = iterator();
 			for (int i = 0; it.hasNext(); i++) {
 				array[i] = (T) it.next();
 			}
@@ -426,90 +1018,474 @@ public class HeptaTrie<K, V> implements SortedMap<K, V> {
 		}
 
 		public int hashCode() {
-			int hashCode = 0;
-			for (Map.Entry<K, V> entry : this) {
-				hashCode += entry.hashCode();
+			return HeptaTrie.this.hashCode();
+		}
+
+		public Spliterator<Map.Entry<K, V>> spliterator() {
+			return new EntrySpliterator();
+		}
+	}
+
+	/**
+	 * Cursor over a range of the entries, walking the leaf chain from a leaf
+	 * slot.
+	 */
+	private abstract class LeafCursor<T> implements Iterator<T> {
+		/** leaf holding the next entry; null at the end */
+		private LeafNode<K, V> leaf;
+
+		/** slot of the next entry in the leaf */
+		private int index;
+
+		/** key above the range, exclusive; null if unbounded */
+		private final K hi;
+
+		/** key of the entry last returned, until it is removed */
+		private K lastKey;
+
+		private int modCount = HeptaTrie.this.modCount;
+
+		/**
+		 * Positions the cursor at the first key of a range.
+		 *
+		 * @param lo
+		 *            lowest key in range, inclusive; null if unbounded
+		 * @param hi
+		 *            key above the range, exclusive; null if unbounded
+		 */
+		public LeafCursor(K lo, K hi) {
+			this.hi = hi;
+			if (lo == null) {
+				leaf = root.getFirstLeaf();
+			} else {
+				leaf = root.findLeaf(lo);
+				index = ceilingIndex(leaf, lo);
 			}
-			return hashCode;
+			skipExhausted();
 		}
 
-		private class EntryIterator implements Iterator<Map.Entry<K, V>> {
-			private Entry curr, prev;
-			private LeafNode<K, V> currNode;
-			private Iterator<K> it;
-			private int modCount = HeptaTrie.this.modCount;
+		/**
+		 * Moves along the leaf chain past leaves with no entries left, and
+		 * ends the cursor at the upper bound.
+		 */
+		private void skipExhausted() {
+			while (leaf != null && index >= leaf.size()) {
+				leaf = nextLeaf(leaf);
+				index = 0;
+			}
+			if (leaf != null && hi != null && cmp(leaf.getKey(index), hi) >= 0) {
+				leaf = null;
+			}
+		}
 
-			public EntryIterator() {
-				if (HeptaTrie.this.isEmpty())
-					return;
+		/**
+		 * Gets the element of the cursor at a leaf slot.
+		 */
+		protected abstract T element(LeafNode<K, V> leaf, int index);
 
-				this.currNode = root.getFirstLeaf();
-				this.it = currNode.leafKeyIterator();
+		public boolean hasNext() {
+			if (modCount != HeptaTrie.this.modCount) {
+				throw new ConcurrentModificationException();
+			}
+			return leaf != null;
+		}
 
-				while (curr == null
-						|| HeptaTrie.this.comparator().compare(curr.getKey(),
-								HeptaTrie.this.firstKey()) < 0) {
-					if (!it.hasNext()) {
-						if (currNode.getRight() instanceof EndNode)
-							return;
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T element = element(leaf, index);
+			lastKey = leaf.getKey(index);
+			index++;
+			skipExhausted();
+			return element;
+		}
 
-						currNode = (LeafNode<K, V>) currNode.getRight();
-						it = currNode.leafKeyIterator();
-						continue;
-					}
+		public void remove() {
+			if (lastKey == null) {
+				throw new IllegalStateException();
+			}
+			if (modCount != HeptaTrie.this.modCount) {
+				throw new ConcurrentModificationException();
+			}
+			/* rebalancing may move entries between leaves, so find the next
+			 * entry again by its key */
+			K nextKey = leaf == null ? null : leaf.getKey(index);
+			HeptaTrie.this.remove(lastKey);
+			lastKey = null;
+			modCount = HeptaTrie.this.modCount;
+			if (nextKey != null) {
+				leaf = root.findLeaf(nextKey);
+				index = leaf.indexOf(nextKey);
+			}
+		}
+	}
 
-					curr = new Entry(it.next(), this);
-				}
+	private class EntryIterator extends LeafCursor<Map.Entry<K, V>> {
+		public EntryIterator(K lo, K hi) {
+			super(lo, hi);
+		}
+
+		protected Map.Entry<K, V> element(LeafNode<K, V> leaf, int index) {
+			return new Entry(leaf, index);
+		}
+	}
+
+	private class KeyIterator extends LeafCursor<K> {
+		public KeyIterator(K lo, K hi) {
+			super(lo, hi);
+		}
+
+		protected K element(LeafNode<K, V> leaf, int index) {
+			return leaf.getKey(index);
+		}
+	}
+
+	private class ValueIterator extends LeafCursor<V> {
+		public ValueIterator(K lo, K hi) {
+			super(lo, hi);
+		}
+
+		protected V element(LeafNode<K, V> leaf, int index) {
+			return leaf.values[index];
+		}
+	}
+
+	/**
+	 * View of the keys within bounds.
+	 */
+	private class KeySet extends AbstractSet<K> {
+		private final K lo, hi;
+
+		public KeySet(K lo, K hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		public Iterator<K> iterator() {
+			return keyIterator(lo, hi);
+		}
+
+		public int size() {
+			return count(lo, hi);
+		}
+
+		public boolean isEmpty() {
+			return !iterator().hasNext();
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean contains(Object key) {
+			return inRange((K) key, lo, hi) && containsKey(key);
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean remove(Object key) {
+			return inRange((K) key, lo, hi)
+					&& HeptaTrie.this.remove(key) != null;
+		}
+	}
+
+	/**
+	 * View of the values of the keys within bounds, in key order.
+	 */
+	private class Values extends AbstractCollection<V> {
+		private final K lo, hi;
+
+		public Values(K lo, K hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		public Iterator<V> iterator() {
+			return valueIterator(lo, hi);
+		}
+
+		public int size() {
+			return count(lo, hi);
+		}
+
+		public boolean isEmpty() {
+			return !iterator().hasNext();
+		}
+	}
+
+	/**
+	 * View of the entries with keys within bounds. Reads and writes go
+	 * through to the trie.
+	 */
+	private class SubMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+		/** lowest key in the view, inclusive; null if unbounded */
+		private final K lo;
+
+		/** key above the view, exclusive; null if unbounded */
+		private final K hi;
+
+		public SubMap(K lo, K hi) {
+			if (lo != null && hi != null && cmp(lo, hi) > 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
 			}
+			this.lo = lo;
+			this.hi = hi;
+		}
 
-			public boolean hasNext() {
-				if (modCount != HeptaTrie.this.modCount) {
-					throw new ConcurrentModificationException();
-				}
-				return curr != null;
+		@SuppressWarnings("unchecked")
+		private boolean inRange(Object key) {
+			return HeptaTrie.this.inRange((K) key, lo, hi);
+		}
+
+		/**
+		 * Checks the lower bound of a view of this view, which must lie in
+		 * this view's range.
+		 */
+		private K checkFrom(K key) {
+			if (!inRange(checkKey(key))) {
+				throw new IllegalArgumentException("fromKey out of range");
+			}
+			return key;
+		}
+
+		/**
+		 * Checks the upper bound of a view of this view, which may also equal
+		 * this view's upper bound.
+		 */
+		private K checkTo(K key) {
+			checkKey(key);
+			if ((lo != null && cmp(key, lo) < 0)
+					|| (hi != null && cmp(key, hi) > 0)) {
+				throw new IllegalArgumentException("toKey out of range");
+			}
+			return key;
+		}
+
+		public Comparator<? super K> comparator() {
+			return HeptaTrie.this.comparator();
+		}
+
+		public SortedMap<K, V> subMap(K fromKey, K toKey) {
+			return new SubMap(checkFrom(fromKey), checkTo(toKey));
+		}
+
+		public SortedMap<K, V> headMap(K toKey) {
+			return new SubMap(lo, checkTo(toKey));
+		}
+
+		public SortedMap<K, V> tailMap(K fromKey) {
+			return new SubMap(checkFrom(fromKey), hi);
+		}
+
+		public K firstKey() {
+			Iterator<K> it = keyIterator(lo, hi);
+			if (!it.hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return it.next();
+		}
+
+		public K lastKey() {
+			K key = lastKeyBelow(hi);
+			if (key == null || (lo != null && cmp(key, lo) < 0)) {
+				throw new NoSuchElementException();
+			}
+			return key;
+		}
+
+		public int size() {
+			return count(lo, hi);
+		}
+
+		public boolean isEmpty() {
+			return !keyIterator(lo, hi).hasNext();
+		}
+
+		public boolean containsKey(Object key) {
+			return inRange(checkKey(key)) && HeptaTrie.this.containsKey(key);
+		}
+
+		public V get(Object key) {
+			return inRange(checkKey(key)) ? HeptaTrie.this.get(key) : null;
+		}
+
+		public V put(K key, V value) {
+			if (!inRange(checkKey(key))) {
+				throw new IllegalArgumentException("key out of range");
 			}
+			return HeptaTrie.this.put(key, value);
+		}
+
+		public V remove(Object key) {
+			return inRange(checkKey(key)) ? HeptaTrie.this.remove(key) : null;
+		}
+
+		public Set<K> keySet() {
+			return new KeySet(lo, hi);
+		}
 
-			public Map.Entry<K, V> next() {
-				if (modCount != HeptaTrie.this.modCount)
-					throw new ConcurrentModificationException();
+		public Collection<V> values() {
+			return new Values(lo, hi);
+		}
 
-				if (curr == null)
-					throw new NoSuchElementException();
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new AbstractSet<Map.Entry<K, V>>() {
+				public Iterator<Map.Entry<K, V>> iterator() {
+					return entryIterator(lo, hi);
+				}
 
-				if (!it.hasNext() && !(currNode.getRight() instanceof EndNode)) {
-					currNode = (LeafNode<K, V>) currNode.getRight();
-					it = currNode.leafKeyIterator();
-					return next();
+				public int size() {
+					return SubMap.this.size();
 				}
-				prev = curr;
-				if (it.hasNext() && curr != null
-						&& HeptaTrie.this.lastKey() != null
-						&& cmp(curr.getKey(), HeptaTrie.this.lastKey()) < 0)
-					curr = new Entry(it.next(), this);
-				else
-					curr = null;
 
-				return prev;
+				public boolean isEmpty() {
+					return SubMap.this.isEmpty();
+				}
+
+				public boolean contains(Object entry) {
+					if (entry instanceof Map.Entry) {
+						Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+						return containsKey(e.getKey())
+								&& get(e.getKey()).equals(e.getValue());
+					}
+					return false;
+				}
+
+				public boolean remove(Object entry) {
+					return contains(entry)
+							&& SubMap.this.remove(((Map.Entry<?, ?>) entry)
+									.getKey()) != null;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Spliterator over the entries. Splits divide the children of a guide
+	 * node, so every part is a run of whole leaves, and each part walks its
+	 * leaves along the leaf chain.
+	 */
+	private class EntrySpliterator implements Spliterator<Map.Entry<K, V>> {
+		/** guide node whose children from and up to to are not yet split off */
+		private GuideNode<K, V> guide;
+
+		private int from, to;
+
+		/** next leaf to traverse, once traversal has begun */
+		private LeafNode<K, V> leaf;
+
+		private int index;
+
+		/** last leaf to traverse */
+		private LeafNode<K, V> lastLeaf;
+
+		private long estimate;
+
+		/** true until the first split, while the estimate is exact */
+		private boolean exact;
+
+		private final int modCount = HeptaTrie.this.modCount;
+
+		public EntrySpliterator() {
+			Node<K, V> me = root.getMe();
+			if (me.getType() == Node.NodeType.GUIDE) {
+				guide = (GuideNode<K, V>) me;
+				to = guide.size();
+			} else {
+				leaf = lastLeaf = (LeafNode<K, V>) me;
 			}
+			estimate = size;
+			exact = true;
+		}
 
-			public void remove() {
-				if (modCount != HeptaTrie.this.modCount) {
-					throw new ConcurrentModificationException();
+		private EntrySpliterator(GuideNode<K, V> guide, int from, int to,
+				long estimate) {
+			this.guide = guide;
+			this.from = from;
+			this.to = to;
+			this.estimate = estimate;
+		}
+
+		public Spliterator<Map.Entry<K, V>> trySplit() {
+			if (guide == null) {
+				return null;
+			}
+			while (to - from == 1) {
+				Node<K, V> kid = guide.getKid(from);
+				if (kid.getType() != Node.NodeType.GUIDE) {
+					return null;
 				}
-				HeptaTrie.this.remove(prev.getKey());
-				modCount = HeptaTrie.this.modCount;
+				guide = (GuideNode<K, V>) kid;
+				from = 0;
+				to = guide.size();
 			}
+			int mid = (from + to) >>> 1;
+			long prefix = estimate * (mid - from) / (to - from);
+			EntrySpliterator split = new EntrySpliterator(guide, from, mid,
+					prefix);
+			from = mid;
+			estimate -= prefix;
+			exact = false;
+			return split;
+		}
 
-			public void setModCount(int modCount) {
-				this.modCount = modCount;
+		/**
+		 * Turns the unsplit children into a run of leaves to traverse.
+		 */
+		private void begin() {
+			if (guide != null) {
+				leaf = firstLeaf(guide.getKid(from));
+				lastLeaf = lastLeaf(guide.getKid(to - 1));
+				guide = null;
 			}
+		}
 
-			private int cmp(K k1, K k2) {
-				return HeptaTrie.this.comparator().compare(k1, k2);
+		public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+			begin();
+			while (leaf != null && index >= leaf.size()) {
+				leaf = leaf == lastLeaf ? null : (LeafNode<K, V>) leaf.getRight();
+				index = 0;
 			}
+			if (leaf == null) {
+				return false;
+			}
+			action.accept(new Entry(leaf, index++));
+			if (modCount != HeptaTrie.this.modCount) {
+				throw new ConcurrentModificationException();
+			}
+			return true;
+		}
+
+		public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+			begin();
+			for (; leaf != null; index = 0, leaf = leaf == lastLeaf ? null
+					: (LeafNode<K, V>) leaf.getRight()) {
+				for (; index < leaf.size(); index++) {
+					action.accept(new Entry(leaf, index));
+				}
+			}
+			if (modCount != HeptaTrie.this.modCount) {
+				throw new ConcurrentModificationException();
+			}
+		}
+
+		public long estimateSize() {
+			return estimate;
+		}
+
+		public int characteristics() {
+			return Spliterator.ORDERED | Spliterator.DISTINCT
+					| Spliterator.NONNULL | (exact ? Spliterator.SIZED : 0);
 		}
 	}
-	
+
+	private static <K, V> LeafNode<K, V> firstLeaf(Node<K, V> node) {
+		return node.getType() == Node.NodeType.LEAF ? (LeafNode<K, V>) node
+				: ((GuideNode<K, V>) node).getFirstLeaf();
+	}
+
+	private static <K, V> LeafNode<K, V> lastLeaf(Node<K, V> node) {
+		return node.getType() == Node.NodeType.LEAF ? (LeafNode<K, V>) node
+				: ((GuideNode<K, V>) node).getLastLeaf();
+	}
+
         public static void main(String[] args) {
 
 			HeptaTrie tree = new HeptaTrie<String, City>(new StringComparator(), 8);
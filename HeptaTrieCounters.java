@@ -0,0 +1,40 @@
+//package cmsc420.heptatrie;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the work done by a HeptaTrie; shared by every node of the trie.
+ * Splits, borrows and merges are counted as the writer makes them.
+ * Comparisons and operations happen on every read, so they are counted only
+ * while counting is turned on, and may be counted by several readers at once.
+ */
+class HeptaTrieCounters {
+	/** true if comparisons and operations are counted */
+	volatile boolean counting;
+
+	final LongAdder comparisons = new LongAdder();
+
+	/** gets, puts and removes */
+	final LongAdder operations = new LongAdder();
+
+	/** nodes split in two */
+	long splits;
+
+	/** entries or children moved between siblings */
+	long borrows;
+
+	/** nodes merged into a sibling */
+	long merges;
+
+	void compared() {
+		if (counting) {
+			comparisons.increment();
+		}
+	}
+
+	void operated() {
+		if (counting) {
+			operations.increment();
+		}
+	}
+}
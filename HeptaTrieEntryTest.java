@@ -0,0 +1,121 @@
+//package cmsc420.heptatrie;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that an entry of a HeptaTrie writes its value to the trie after the
+ * leaf it was read from has been merged away or copied for a version, and
+ * that it leaves the trie alone once its key has been removed.
+ * <p>
+ * Usage: <code>java HeptaTrieEntryTest</code>; prints OK, or throws at the
+ * first check that fails.
+ */
+public class HeptaTrieEntryTest {
+	/** keys put in each trie */
+	private static final int KEYS = 60;
+
+	public static void main(final String[] args) {
+		acrossMerges();
+		acrossRemoval();
+		acrossVersion();
+		System.out.println("OK");
+	}
+
+	/**
+	 * Removes every other key, merging most leaves into their left siblings,
+	 * then sets the value of each key left through an entry read before.
+	 */
+	private static void acrossMerges() {
+		final HeptaTrie<String, String> trie = newTrie();
+		final List<Map.Entry<String, String>> entries = entries(trie);
+		for (int i = 0; i < KEYS; i += 2) {
+			trie.remove(key(i));
+		}
+		for (int i = 1; i < KEYS; i += 2) {
+			entries.get(i).setValue("set" + i);
+		}
+		for (int i = 1; i < KEYS; i += 2) {
+			check(("set" + i).equals(trie.get(key(i))), "value of " + key(i)
+					+ " set after a merge was lost");
+		}
+		checkSize(trie, KEYS / 2);
+	}
+
+	/**
+	 * Sets the value of an entry whose key has been removed.
+	 */
+	private static void acrossRemoval() {
+		final HeptaTrie<String, String> trie = newTrie();
+		final List<Map.Entry<String, String>> entries = entries(trie);
+		trie.remove(key(10));
+		entries.get(10).setValue("set");
+		check(entries.get(10).getValue().equals("set"),
+				"entry did not take its value");
+		check(!trie.containsKey(key(10)), key(10)
+				+ " was put back by setting the value of its entry");
+		checkSize(trie, KEYS - 1);
+	}
+
+	/**
+	 * Sets values through entries whose leaves are shared with a version,
+	 * and again once the version has been released.
+	 */
+	private static void acrossVersion() {
+		final HeptaTrie<String, String> trie = newTrie();
+		final List<Map.Entry<String, String>> entries = entries(trie);
+		final HeptaTrieVersion<String, String> version = trie.snapshot();
+		entries.get(20).setValue("set");
+		check("set".equals(trie.get(key(20))), "value set while a version "
+				+ "shares the leaf was lost");
+		check(version.get(key(20)).equals("v20"), "version changed");
+		version.release();
+		entries.get(20).setValue("again");
+		check("again".equals(trie.get(key(20))), "value set after the "
+				+ "version was released was lost");
+		checkSize(trie, KEYS);
+	}
+
+	private static HeptaTrie<String, String> newTrie() {
+		final HeptaTrie<String, String> trie = new HeptaTrie<String, String>(
+				new StringComparator(), 3);
+		for (int i = 0; i < KEYS; i++) {
+			trie.put(key(i), "v" + i);
+		}
+		return trie;
+	}
+
+	/**
+	 * Reads the entries of a trie in key order.
+	 */
+	private static List<Map.Entry<String, String>> entries(
+			final HeptaTrie<String, String> trie) {
+		return new ArrayList<Map.Entry<String, String>>(trie.entrySet());
+	}
+
+	private static String key(final int i) {
+		return String.format("k%03d", i);
+	}
+
+	/**
+	 * Checks that the size of a trie and the number of entries it iterates
+	 * over agree.
+	 */
+	private static void checkSize(final HeptaTrie<String, String> trie,
+			final int size) {
+		int iterated = 0;
+		for (@SuppressWarnings("unused")
+		Map.Entry<String, String> entry : trie.entrySet()) {
+			iterated++;
+		}
+		check(trie.size() == size && iterated == size, "size " + trie.size()
+				+ " and " + iterated + " entries, expected " + size);
+	}
+
+	private static void check(final boolean condition, final String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
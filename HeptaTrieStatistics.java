@@ -0,0 +1,202 @@
+//package cmsc420.heptatrie;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Shape of a HeptaTrie and the work it has done, as of when the statistics
+ * were taken. The fill of a node is its number of entries or children over
+ * its order. The least fill leaves out the root, which alone may be under
+ * half full, unless the root is the only node of its kind.
+ */
+public class HeptaTrieStatistics {
+	private final int size;
+
+	private final int height;
+
+	private final int leafOrder;
+
+	private final int guideOrder;
+
+	private final int leaves;
+
+	private final int guides;
+
+	private final double averageLeafFill;
+
+	private final double minLeafFill;
+
+	private final double averageGuideFill;
+
+	private final double minGuideFill;
+
+	private final long splits;
+
+	private final long borrows;
+
+	private final long merges;
+
+	private final long comparisons;
+
+	private final long operations;
+
+	/**
+	 * Walks a trie level by level from its root.
+	 */
+	<K, V> HeptaTrieStatistics(Node<K, V> root, int leafOrder,
+			int guideOrder, HeptaTrieCounters counters) {
+		this.leafOrder = leafOrder;
+		this.guideOrder = guideOrder;
+		int height = 1;
+		int guides = 0;
+		long kids = 0;
+		int minKids = Integer.MAX_VALUE;
+		List<Node<K, V>> level = Collections.singletonList(root);
+		while (level.get(0).getType() == Node.NodeType.GUIDE) {
+			final List<Node<K, V>> below = new ArrayList<Node<K, V>>();
+			for (Node<K, V> node : level) {
+				final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+				below.addAll(guide.getKids());
+				guides++;
+				kids += guide.size();
+				if (guide != root) {
+					minKids = Math.min(minKids, guide.size());
+				}
+			}
+			level = below;
+			height++;
+		}
+
+		int size = 0;
+		int minSize = Integer.MAX_VALUE;
+		for (Node<K, V> leaf : level) {
+			size += leaf.size();
+			if (leaf != root) {
+				minSize = Math.min(minSize, leaf.size());
+			}
+		}
+		this.height = height;
+		this.size = size;
+		this.guides = guides;
+		this.leaves = level.size();
+		this.averageLeafFill = size / ((double) leaves * leafOrder);
+		this.minLeafFill = minSize == Integer.MAX_VALUE ? averageLeafFill
+				: minSize / (double) leafOrder;
+		this.averageGuideFill = guides == 0 ? 0 : kids
+				/ ((double) guides * guideOrder);
+		this.minGuideFill = minKids == Integer.MAX_VALUE ? averageGuideFill
+				: minKids / (double) guideOrder;
+		this.splits = counters.splits;
+		this.borrows = counters.borrows;
+		this.merges = counters.merges;
+		this.comparisons = counters.comparisons.sum();
+		this.operations = counters.operations.sum();
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Gets the number of levels, leaves included.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	public int getLeafOrder() {
+		return leafOrder;
+	}
+
+	public int getGuideOrder() {
+		return guideOrder;
+	}
+
+	public int getLeaves() {
+		return leaves;
+	}
+
+	public int getGuides() {
+		return guides;
+	}
+
+	public double getAverageLeafFill() {
+		return averageLeafFill;
+	}
+
+	public double getMinLeafFill() {
+		return minLeafFill;
+	}
+
+	public double getAverageGuideFill() {
+		return averageGuideFill;
+	}
+
+	public double getMinGuideFill() {
+		return minGuideFill;
+	}
+
+	public long getSplits() {
+		return splits;
+	}
+
+	public long getBorrows() {
+		return borrows;
+	}
+
+	public long getMerges() {
+		return merges;
+	}
+
+	/**
+	 * Gets the number of comparisons counted while counting was on.
+	 */
+	public long getComparisons() {
+		return comparisons;
+	}
+
+	/**
+	 * Gets the number of gets, puts and removes counted while counting was
+	 * on.
+	 */
+	public long getOperations() {
+		return operations;
+	}
+
+	/**
+	 * Gets the comparisons per operation counted, or 0 if none were.
+	 */
+	public double getComparisonsPerOperation() {
+		return operations == 0 ? 0 : comparisons / (double) operations;
+	}
+
+	public void addToXmlDoc(Document doc, Element parent) {
+		final DecimalFormat decimalFormat = new DecimalFormat("#0.000");
+		final Element stats = doc.createElement("HeptaTrieStats");
+		stats.setAttribute("cardinality", Integer.toString(size));
+		stats.setAttribute("height", Integer.toString(height));
+		stats.setAttribute("leafOrder", Integer.toString(leafOrder));
+		stats.setAttribute("guideOrder", Integer.toString(guideOrder));
+		stats.setAttribute("leaves", Integer.toString(leaves));
+		stats.setAttribute("guides", Integer.toString(guides));
+		stats.setAttribute("averageLeafFill", decimalFormat
+				.format(averageLeafFill));
+		stats.setAttribute("minLeafFill", decimalFormat.format(minLeafFill));
+		stats.setAttribute("averageGuideFill", decimalFormat
+				.format(averageGuideFill));
+		stats.setAttribute("minGuideFill", decimalFormat.format(minGuideFill));
+		stats.setAttribute("splits", Long.toString(splits));
+		stats.setAttribute("borrows", Long.toString(borrows));
+		stats.setAttribute("merges", Long.toString(merges));
+		stats.setAttribute("comparisons", Long.toString(comparisons));
+		stats.setAttribute("operations", Long.toString(operations));
+		stats.setAttribute("comparisonsPerOperation", decimalFormat
+				.format(getComparisonsPerOperation()));
+		parent.appendChild(stats);
+	}
+}
@@ -0,0 +1,276 @@
+//package cmsc420.heptatrie;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Recommends leaf and guide orders for a HeptaTrie of string keys by timing a
+ * trie of each pair of orders on a set of keys. Each trie is built by putting
+ * the keys in turn and is then looked up at keys drawn at random; after the
+ * timed iterations, one more pass of lookups counts their comparisons.
+ * <p>
+ * Every lookup searches the guide nodes, so the pair recommended is the one
+ * with the least time per operation among those whose guide nodes, with the
+ * keys in them, fit in the core cache, or the fastest pair if none fit. A
+ * guide node is estimated to take 64 bytes plus 8 for each slot, and a key 40
+ * bytes plus one for each char. Timings are of the machine the tuner runs on.
+ * <p>
+ * Usage: <code>java HeptaTrieTuner [name=value ...]</code>, where the
+ * parameters are
+ * <ul>
+ * <li>size: number of keys (default 100000)</li>
+ * <li>keys: random, sequential or prefixed keys (default random); prefixed
+ * keys share a few stems, as place names do</li>
+ * <li>keyLength: chars in a random key (default 12)</li>
+ * <li>file: file of keys, one to a line, read instead of generating keys</li>
+ * <li>cache: size of the core cache in KB (default 256)</li>
+ * <li>writes: fraction of operations that are puts (default 0.1)</li>
+ * <li>leafOrder: leaf orders to try (default 4,8,16,32,64,128)</li>
+ * <li>guideOrder: guide orders to try (default 7,15,31,63,127)</li>
+ * <li>lookups: lookups timed by each iteration (default 100000)</li>
+ * <li>warmup: untimed iterations run first (default 3)</li>
+ * <li>iterations: timed iterations (default 5)</li>
+ * <li>seed: seed of the random number generator (default 420)</li>
+ * </ul>
+ * leafOrder and guideOrder accept a comma-separated list; every pair is run.
+ */
+public class HeptaTrieTuner {
+	/** stems shared by prefixed keys */
+	private static final String[] STEMS = { "North ", "South ", "East ",
+			"West ", "New ", "Port ", "Fort ", "Lake ", "Mount ", "San ",
+			"Santa ", "Saint ", "Glen ", "Spring", "River", "Oak" };
+
+	private final String[] keys;
+
+	/** index of the key looked up by each lookup */
+	private final int[] lookups;
+
+	private final int warmup;
+
+	private final int iterations;
+
+	/** chars in the keys, on average */
+	private final double keyLength;
+
+	/**
+	 * Timing of one pair of orders.
+	 */
+	private static class Result {
+		int leafOrder;
+
+		int guideOrder;
+
+		HeptaTrieStatistics statistics;
+
+		/** nanoseconds per put and per lookup */
+		double put, get;
+
+		/** estimated bytes of the guide nodes and their keys */
+		long guideBytes;
+	}
+
+	public HeptaTrieTuner(final String[] keys, final int lookups,
+			final int warmup, final int iterations, final Random random) {
+		this.keys = keys;
+		this.lookups = new int[lookups];
+		for (int i = 0; i < lookups; i++) {
+			this.lookups[i] = random.nextInt(keys.length);
+		}
+		this.warmup = warmup;
+		this.iterations = iterations;
+		long chars = 0;
+		for (String key : keys) {
+			chars += key.length();
+		}
+		keyLength = (double) chars / keys.length;
+	}
+
+	/**
+	 * Times a trie of a pair of orders.
+	 */
+	private Result run(final int leafOrder, final int guideOrder) {
+		long putNanos = 0;
+		long getNanos = 0;
+		HeptaTrie<String, String> trie = null;
+		for (int iteration = 0; iteration < warmup + iterations; iteration++) {
+			trie = new HeptaTrie<String, String>(new StringComparator(),
+					leafOrder, guideOrder);
+			final long begin = System.nanoTime();
+			for (String key : keys) {
+				trie.put(key, key);
+			}
+			final long built = System.nanoTime();
+			lookUp(trie);
+			final long end = System.nanoTime();
+			if (iteration >= warmup) {
+				putNanos += built - begin;
+				getNanos += end - built;
+			}
+		}
+		trie.setCounting(true);
+		lookUp(trie);
+
+		final Result result = new Result();
+		result.leafOrder = leafOrder;
+		result.guideOrder = guideOrder;
+		result.statistics = trie.getStatistics();
+		result.put = (double) putNanos / iterations / keys.length;
+		result.get = (double) getNanos / iterations / lookups.length;
+		final HeptaTrieStatistics statistics = result.statistics;
+		final long guideKeys = Math.round(statistics.getAverageGuideFill()
+				* guideOrder * statistics.getGuides())
+				- statistics.getGuides();
+		result.guideBytes = statistics.getGuides() * (64 + 8L * guideOrder)
+				+ Math.round(guideKeys * (40 + keyLength));
+		return result;
+	}
+
+	private void lookUp(final HeptaTrie<String, String> trie) {
+		for (int index : lookups) {
+			if (trie.get(keys[index]) == null) {
+				throw new IllegalStateException("key " + keys[index]
+						+ " was not found");
+			}
+		}
+	}
+
+	/**
+	 * Generates distinct keys.
+	 *
+	 * @param kind
+	 *            random, sequential or prefixed
+	 */
+	private static String[] generate(final String kind, final int size,
+			final int keyLength, final Random random) {
+		final Set<String> keys = new LinkedHashSet<String>();
+		final int digits = Integer.toString(size).length();
+		while (keys.size() < size) {
+			final StringBuilder key = new StringBuilder();
+			if (kind.equals("sequential")) {
+				key.append(String.format("key%0" + digits + "d", keys.size()));
+			} else if (kind.equals("prefixed")) {
+				key.append(STEMS[random.nextInt(STEMS.length)]);
+				key.append((char) ('A' + random.nextInt(26)));
+				for (int i = 3 + random.nextInt(6); i > 0; i--) {
+					key.append((char) ('a' + random.nextInt(26)));
+				}
+				if (random.nextInt(4) == 0) {
+					key.append(' ').append(random.nextInt(100));
+				}
+			} else {
+				for (int i = 0; i < keyLength; i++) {
+					key.append((char) ('a' + random.nextInt(26)));
+				}
+			}
+			keys.add(key.toString());
+		}
+		return keys.toArray(new String[size]);
+	}
+
+	/**
+	 * Reads the distinct non-empty lines of a file, in file order.
+	 */
+	private static String[] read(final String file) throws IOException {
+		final Set<String> keys = new LinkedHashSet<String>();
+		final BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), Charset.forName("UTF-8")));
+		try {
+			for (String line = in.readLine(); line != null; line = in
+					.readLine()) {
+				if (line.length() > 0) {
+					keys.add(line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return keys.toArray(new String[keys.size()]);
+	}
+
+	public static void main(final String[] args) throws IOException {
+		final Map<String, String> parameters = new LinkedHashMap<String, String>();
+		parameters.put("size", "100000");
+		parameters.put("keys", "random");
+		parameters.put("keyLength", "12");
+		parameters.put("file", null);
+		parameters.put("cache", "256");
+		parameters.put("writes", "0.1");
+		parameters.put("leafOrder", "4,8,16,32,64,128");
+		parameters.put("guideOrder", "7,15,31,63,127");
+		parameters.put("lookups", "100000");
+		parameters.put("warmup", "3");
+		parameters.put("iterations", "5");
+		parameters.put("seed", "420");
+		for (String arg : args) {
+			final int equals = arg.indexOf('=');
+			if (equals < 0 || !parameters.containsKey(arg.substring(0, equals))) {
+				System.err.println("unknown parameter " + arg);
+				System.exit(-1);
+			}
+			parameters.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		final String kind = parameters.get("keys");
+		if (!kind.equals("random") && !kind.equals("sequential")
+				&& !kind.equals("prefixed")) {
+			System.err.println("unknown keys " + kind);
+			System.exit(-1);
+		}
+
+		final Random random = new Random(Long.parseLong(parameters.get("seed")));
+		final String[] keys = parameters.get("file") != null ? read(parameters
+				.get("file")) : generate(kind, Integer.parseInt(parameters
+				.get("size")), Integer.parseInt(parameters.get("keyLength")),
+				random);
+		final long cache = Long.parseLong(parameters.get("cache")) * 1024;
+		final double writes = Double.parseDouble(parameters.get("writes"));
+		final HeptaTrieTuner tuner = new HeptaTrieTuner(keys, Integer
+				.parseInt(parameters.get("lookups")), Integer
+				.parseInt(parameters.get("warmup")), Integer
+				.parseInt(parameters.get("iterations")), random);
+
+		System.out.printf("%9s %10s %6s %7s %9s %7s %8s %8s%n", "leafOrder",
+				"guideOrder", "height", "guides", "guide KB", "cmp/get",
+				"put ns", "get ns");
+		final List<Result> results = new ArrayList<Result>();
+		for (String leafOrder : parameters.get("leafOrder").split(",")) {
+			for (String guideOrder : parameters.get("guideOrder").split(",")) {
+				final Result result = tuner.run(Integer.parseInt(leafOrder),
+						Integer.parseInt(guideOrder));
+				final HeptaTrieStatistics statistics = result.statistics;
+				System.out.printf("%9d %10d %6d %7d %9.1f %7.2f %8.1f %8.1f%n",
+						result.leafOrder, result.guideOrder, statistics
+								.getHeight(), statistics.getGuides(),
+						result.guideBytes / 1024.0, statistics
+								.getComparisonsPerOperation(), result.put,
+						result.get);
+				results.add(result);
+			}
+		}
+
+		Result best = null;
+		boolean bestFits = false;
+		for (Result result : results) {
+			final boolean fits = result.guideBytes <= cache;
+			final double cost = writes * result.put + (1 - writes) * result.get;
+			if (best == null || (fits && !bestFits)
+					|| (fits == bestFits && cost < writes * best.put
+							+ (1 - writes) * best.get)) {
+				best = result;
+				bestFits = fits;
+			}
+		}
+		System.out.printf("recommended leafOrder=%d guideOrder=%d%s%n",
+				best.leafOrder, best.guideOrder, bestFits ? ""
+						: " (no guide levels fit in the cache)");
+	}
+}
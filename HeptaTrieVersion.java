@@ -0,0 +1,366 @@
+//package cmsc420.heptatrie;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Read-only version of a HeptaTrie, taken with HeptaTrie.snapshot. The
+ * version holds the root of the trie as it was, and the trie copies any node
+ * it shares with the version before changing it, so the version keeps the
+ * same entries however the trie changes. Lookups descend from the root, and
+ * iteration walks down the guides rather than along the leaf chain, whose
+ * links belong to the trie.
+ * <p>
+ * Release a version once it is no longer read, so the trie stops copying the
+ * nodes it shares with it. The views of a version are released with it.
+ */
+public class HeptaTrieVersion<K, V> extends AbstractMap<K, V> implements
+		SortedMap<K, V> {
+	private final HeptaTrie<K, V> trie;
+
+	/** epoch of the trie when the version was taken */
+	private final int epoch;
+
+	private final Node<K, V> root;
+
+	/** number of entries in the whole version */
+	private final int size;
+
+	private final Comparator<K> comparator;
+
+	/** lowest key in the view, inclusive; null if unbounded */
+	private final K lo;
+
+	/** key above the view, exclusive; null if unbounded */
+	private final K hi;
+
+	/** shared by a version and its views; true once released */
+	private final AtomicBoolean released;
+
+	HeptaTrieVersion(HeptaTrie<K, V> trie, int epoch, Node<K, V> root,
+			int size, Comparator<K> comparator) {
+		this(trie, epoch, root, size, comparator, null, null,
+				new AtomicBoolean());
+	}
+
+	private HeptaTrieVersion(HeptaTrie<K, V> trie, int epoch,
+			Node<K, V> root, int size, Comparator<K> comparator, K lo, K hi,
+			AtomicBoolean released) {
+		if (lo != null && hi != null && comparator.compare(lo, hi) > 0) {
+			throw new IllegalArgumentException("fromKey > toKey");
+		}
+		this.trie = trie;
+		this.epoch = epoch;
+		this.root = root;
+		this.size = size;
+		this.comparator = comparator;
+		this.lo = lo;
+		this.hi = hi;
+		this.released = released;
+	}
+
+	/**
+	 * Releases the version and its views. Releasing it again does nothing.
+	 */
+	public void release() {
+		if (released.compareAndSet(false, true)) {
+			trie.release(epoch);
+		}
+	}
+
+	public boolean isReleased() {
+		return released.get();
+	}
+
+	private void checkLive() {
+		if (released.get()) {
+			throw new IllegalStateException("version released");
+		}
+	}
+
+	private static <K> K checkKey(K key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		return key;
+	}
+
+	private boolean inRange(K key) {
+		return (lo == null || comparator.compare(key, lo) >= 0)
+				&& (hi == null || comparator.compare(key, hi) < 0);
+	}
+
+	/**
+	 * Gets the slot of the first key in a leaf at or above a key.
+	 */
+	private static <K, V> int ceilingIndex(LeafNode<K, V> leaf, K key) {
+		int index = leaf.indexOf(key);
+		return index >= 0 ? index : -(index + 1);
+	}
+
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		checkLive();
+		final K k = (K) checkKey(key);
+		if (!inRange(k)) {
+			return null;
+		}
+		Node<K, V> node = root;
+		while (node.getType() == Node.NodeType.GUIDE) {
+			final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+			node = guide.kids[guide.kidIndex(k)];
+		}
+		final LeafNode<K, V> leaf = (LeafNode<K, V>) node;
+		final int index = leaf.indexOf(k);
+		return index >= 0 ? leaf.values[index] : null;
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	public int size() {
+		checkLive();
+		if (lo == null && hi == null) {
+			return size;
+		}
+		int count = 0;
+		for (Iterator<Map.Entry<K, V>> it = new Cursor(); it.hasNext(); it
+				.next()) {
+			count++;
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		checkLive();
+		return !new Cursor().hasNext();
+	}
+
+	public K firstKey() {
+		checkLive();
+		final Cursor cursor = new Cursor();
+		if (!cursor.hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return cursor.next().getKey();
+	}
+
+	public K lastKey() {
+		checkLive();
+		final K key = lastBelow(root, hi);
+		if (key == null || (lo != null && comparator.compare(key, lo) < 0)) {
+			throw new NoSuchElementException();
+		}
+		return key;
+	}
+
+	/**
+	 * Finds the last key of a subtree below a bound.
+	 *
+	 * @param hi
+	 *            exclusive bound; null if unbounded
+	 * @return last key below the bound, or null if there is none
+	 */
+	private K lastBelow(Node<K, V> node, K hi) {
+		if (node.getType() == Node.NodeType.LEAF) {
+			final LeafNode<K, V> leaf = (LeafNode<K, V>) node;
+			final int index = hi == null ? leaf.size - 1 : ceilingIndex(leaf,
+					hi) - 1;
+			return index >= 0 ? leaf.getKey(index) : null;
+		}
+		final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+		final int last = hi == null ? guide.size - 1 : guide.kidIndex(hi);
+		for (int i = last; i >= 0; i--) {
+			/* children before the bound's child lie wholly below it */
+			final K key = lastBelow(guide.kids[i], i == last ? hi : null);
+			if (key != null) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the lower bound of a view of this view, which must lie in this
+	 * view's range.
+	 */
+	private K checkFrom(K key) {
+		if (!inRange(checkKey(key))) {
+			throw new IllegalArgumentException("fromKey out of range");
+		}
+		return key;
+	}
+
+	/**
+	 * Checks the upper bound of a view of this view, which may also equal
+	 * this view's upper bound.
+	 */
+	private K checkTo(K key) {
+		checkKey(key);
+		if ((lo != null && comparator.compare(key, lo) < 0)
+				|| (hi != null && comparator.compare(key, hi) > 0)) {
+			throw new IllegalArgumentException("toKey out of range");
+		}
+		return key;
+	}
+
+	private SortedMap<K, V> view(K lo, K hi) {
+		return new HeptaTrieVersion<K, V>(trie, epoch, root, size,
+				comparator, lo, hi, released);
+	}
+
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return view(checkFrom(fromKey), checkTo(toKey));
+	}
+
+	public SortedMap<K, V> headMap(K toKey) {
+		return view(lo, checkTo(toKey));
+	}
+
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return view(checkFrom(fromKey), hi);
+	}
+
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+			public Iterator<Map.Entry<K, V>> iterator() {
+				checkLive();
+				return new Cursor();
+			}
+
+			public int size() {
+				return HeptaTrieVersion.this.size();
+			}
+
+			public boolean isEmpty() {
+				return HeptaTrieVersion.this.isEmpty();
+			}
+
+			public boolean contains(Object entry) {
+				if (entry instanceof Map.Entry) {
+					Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+					V value = get(e.getKey());
+					return value != null && value.equals(e.getValue());
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Adds the whole version to an XML document in the form of
+	 * HeptaTrie.addToXmlDoc.
+	 */
+	public void addToXmlDoc(Document doc, Element parentNode) {
+		checkLive();
+		Element heptaTrie = doc.createElement("HeptaTrie");
+		heptaTrie.setAttribute("cardinality", Integer.toString(size));
+		heptaTrie.setAttribute("leafOrder", Integer.toString(trie
+				.getLeafOrder()));
+		root.addToXmlDoc(doc, heptaTrie);
+		parentNode.appendChild(heptaTrie);
+	}
+
+	/**
+	 * Iterator over the entries in range. It keeps the guides from the root
+	 * down to the current leaf, and the slot taken in each, and moves to the
+	 * next leaf by going up to the nearest guide with a later child.
+	 */
+	private class Cursor implements Iterator<Map.Entry<K, V>> {
+		private GuideNode<K, V>[] guides;
+
+		private int[] slots;
+
+		/** number of guides above the leaf */
+		private int depth;
+
+		private LeafNode<K, V> leaf;
+
+		private int index;
+
+		/** entry to be returned next; null at the end */
+		private Map.Entry<K, V> next;
+
+		@SuppressWarnings("unchecked")
+		public Cursor() {
+			int height = 0;
+			for (Node<K, V> node = root; node.getType() == Node.NodeType.GUIDE;
+					node = ((GuideNode<K, V>) node).kids[0]) {
+				height++;
+			}
+			guides = (GuideNode<K, V>[]) new GuideNode<?, ?>[height];
+			slots = new int[height];
+
+			Node<K, V> node = root;
+			while (node.getType() == Node.NodeType.GUIDE) {
+				final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+				guides[depth] = guide;
+				slots[depth] = lo == null ? 0 : guide.kidIndex(lo);
+				node = guide.kids[slots[depth++]];
+			}
+			leaf = (LeafNode<K, V>) node;
+			index = lo == null ? 0 : ceilingIndex(leaf, lo);
+			findNext();
+		}
+
+		/**
+		 * Finds the entry at or after the leaf slot, ending at the upper
+		 * bound.
+		 */
+		private void findNext() {
+			while (index >= leaf.size) {
+				while (depth > 0
+						&& slots[depth - 1] + 1 >= guides[depth - 1].size) {
+					depth--;
+				}
+				if (depth == 0) {
+					next = null;
+					return;
+				}
+				Node<K, V> node = guides[depth - 1].kids[++slots[depth - 1]];
+				while (node.getType() == Node.NodeType.GUIDE) {
+					final GuideNode<K, V> guide = (GuideNode<K, V>) node;
+					guides[depth] = guide;
+					slots[depth++] = 0;
+					node = guide.kids[0];
+				}
+				leaf = (LeafNode<K, V>) node;
+				index = 0;
+			}
+			final K key = leaf.getKey(index);
+			next = hi != null && comparator.compare(key, hi) >= 0 ? null
+					: new AbstractMap.SimpleImmutableEntry<K, V>(key,
+							leaf.values[index]);
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Map.Entry<K, V> next() {
+			checkLive();
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			final Map.Entry<K, V> entry = next;
+			index++;
+			findNext();
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+//package cmsc420.meeshquest.part2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds. Buckets are log-linear: values below
+ * 64 have a bucket each, and every power of two above that is split into 32
+ * equal buckets, so any reported percentile is within about 3% of the value
+ * actually recorded.
+ * <p>
+ * All counters are allocated up front and updated atomically, so recording
+ * does not allocate and can be done from several threads at once.
+ */
+public class LatencyHistogram {
+	/** number of bits used to split each power of two into buckets */
+	private static final int SUB_BITS = 5;
+
+	/** number of buckets in each power of two */
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	/** enough buckets for any positive long */
+	private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+	/** number of values recorded in each bucket */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+	/** number of values recorded */
+	private final AtomicLong count = new AtomicLong();
+
+	/** sum of the values recorded */
+	private final AtomicLong total = new AtomicLong();
+
+	/** largest value recorded */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param nanos
+	 *            latency in nanoseconds; negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Gets the number of latencies recorded.
+	 *
+	 * @return number of latencies recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the sum of the latencies recorded.
+	 *
+	 * @return sum of the latencies in nanoseconds
+	 */
+	public long getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * Gets the largest latency recorded.
+	 *
+	 * @return largest latency in nanoseconds, or 0 if none were recorded
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Gets the latency below which a fraction of the recorded latencies fall.
+	 *
+	 * @param fraction
+	 *            fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+	 * @return latency in nanoseconds, or 0 if none were recorded
+	 */
+	public long getPercentile(final double fraction) {
+		final long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Gets the bucket a value is counted in.
+	 *
+	 * @param value
+	 *            non-negative value
+	 * @return index of the bucket
+	 */
+	private static int bucket(final long value) {
+		if (value < 2 * SUB_COUNT) {
+			return (int) value;
+		}
+		final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return shift * SUB_COUNT + (int) (value >>> shift);
+	}
+
+	/**
+	 * Gets the largest value counted in a bucket.
+	 *
+	 * @param bucket
+	 *            index of the bucket
+	 * @return largest value counted in the bucket
+	 */
+	private static long highestValue(final int bucket) {
+		if (bucket < 2 * SUB_COUNT) {
+			return bucket;
+		}
+		final int shift = bucket / SUB_COUNT - 1;
+		final long sub = bucket % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -1,6 +1,8 @@
 //package cmsc420.heptatrie;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
@@ -9,142 +11,322 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 public class LeafNode<K, V> extends Node<K, V> {
-	protected List<K> keys;
+	/** smallest number of slots allocated for a leaf */
+	private static final int INITIAL_CAPACITY = 8;
 
-	protected List<V> values;
+	/**
+	 * sorted keys; slots at and after size are null. Null in a subclass that
+	 * keeps the keys in its own form.
+	 */
+	protected K[] keys;
+
+	/** values, parallel to keys */
+	protected V[] values;
+
+	/** number of entries in the leaf */
+	protected int size;
 
 	protected int leafOrder;
 
 	public LeafNode(Comparator<K> comparator, int leafOrder) {
 		super(comparator, NodeType.LEAF);
-		this.keys = new ArrayList<K>();
-		this.values = new ArrayList<V>();
 		this.leafOrder = leafOrder;
+		this.keys = newArray(Math.min(leafOrder + 1, INITIAL_CAPACITY));
+		this.values = newArray(keys.length);
 	}
 
-	protected LeafNode(Comparator<K> comparator, int leafOrder, List<K> keys,
-			List<V> values) {
+	/**
+	 * Creates a leaf holding a copy of a range of another leaf's entries.
+	 */
+	protected LeafNode(Comparator<K> comparator, int leafOrder, K[] keys,
+			V[] values, int from, int to) {
+		this(comparator, leafOrder, values, from, to);
+		this.keys = newArray(this.values.length);
+		System.arraycopy(keys, from, this.keys, 0, size);
+	}
+
+	/**
+	 * Creates a leaf holding a copy of a range of values, for a subclass that
+	 * keeps the keys in its own form.
+	 */
+	protected LeafNode(Comparator<K> comparator, int leafOrder, V[] values,
+			int from, int to) {
 		super(comparator, NodeType.LEAF);
-		this.keys = new ArrayList<K>(keys);
-		this.values = new ArrayList<V>(values);
 		this.leafOrder = leafOrder;
+		this.size = to - from;
+		this.values = newArray(Math.min(leafOrder + 1, Math.max(size,
+				INITIAL_CAPACITY)));
+		System.arraycopy(values, from, this.values, 0, size);
+	}
+
+	/**
+	 * Creates a leaf of the same kind as this one holding a copy of a range
+	 * of its entries.
+	 */
+	protected LeafNode<K, V> copyOf(int from, int to) {
+		return new LeafNode<K, V>(comparator, leafOrder, keys, values, from,
+				to);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T[] newArray(int length) {
+		return (T[]) new Object[length];
 	}
 
 	public int size() {
-		return keys.size();
+		return size;
 	}
 
 	public boolean isFull() {
-		return keys.size() == leafOrder;
+		return size == leafOrder;
 	}
 
 	protected boolean isOverFull() {
-		return keys.size() > leafOrder;
+		return size > leafOrder;
 	}
-	
-	private boolean isUnderHalfFull() {
-		return keys.size()*2 < leafOrder;
+
+	protected boolean isUnderHalfFull() {
+		return size * 2 < leafOrder;
 	}
-		
+
+	protected boolean canLend() {
+		return (size - 1) * 2 >= leafOrder;
+	}
+
+	public K getKey(int index) {
+		return keys[index];
+	}
+
+	public V getValue(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Gets a read-only view of the keys of the leaf.
+	 */
 	public List<K> getKeys() {
-		return keys;
+		return new AbstractList<K>() {
+			public K get(int index) {
+				if (index >= size) {
+					throw new IndexOutOfBoundsException();
+				}
+				return getKey(index);
+			}
+
+			public int size() {
+				return size;
+			}
+		};
 	}
 
+	/**
+	 * Gets a read-only view of the values of the leaf.
+	 */
 	public List<V> getValues() {
-		return values;
-	}	
-	
-	public void put(K key, V value) {
-		int ind = 0;
-		K guide = null;
-		for (K k : keys) {
-			if (cmp(key, k) <= 0) {
-				guide = k;
-				break;
+		return Collections.unmodifiableList(Arrays.asList(values).subList(0,
+				size));
+	}
+
+	/**
+	 * Binary searches the leaf for a key.
+	 *
+	 * @return index of the key, or (-(insertion point) - 1) if it is absent
+	 */
+	protected int indexOf(K key) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int compare = cmp(keys[mid], key);
+			if (compare < 0) {
+				low = mid + 1;
+			} else if (compare > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
 			}
-			++ind;
 		}
+		return -(low + 1);
+	}
 
-		int compare = (guide == null) ? -1 : cmp(key, guide);
-		if (compare != 0) {
-			keys.add(ind, key);
-			values.add(ind, value);
-		} else {
-			values.set(ind, value);
+	public V put(K key, V value) {
+		final int ind = indexOf(key);
+		if (ind >= 0) {
+			final V oldVal = values[ind];
+			values[ind] = value;
+			return oldVal;
 		}
 
+		insert(-(ind + 1), key, value);
 		if (isOverFull()) {
 			split();
 		}
+		return null;
 	}
 
-	public V get(K key) {
-		if (keys.contains(key)) {
-			return values.get(keys.indexOf(key));
+	/**
+	 * Inserts an entry at an index, growing the arrays if they are full.
+	 */
+	protected void insert(int ind, K key, V value) {
+		ensureCapacity(size + 1);
+		insertKey(ind, key);
+		System.arraycopy(values, ind, values, ind + 1, size - ind);
+		values[ind] = value;
+		size++;
+	}
+
+	/**
+	 * Removes the entry at an index, closing up the gap.
+	 */
+	protected void delete(int ind) {
+		deleteKey(ind);
+		System.arraycopy(values, ind + 1, values, ind, size - ind - 1);
+		size--;
+		values[size] = null;
+	}
+
+	/**
+	 * Grows the arrays, if needed, to hold a number of entries.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity > values.length) {
+			values = Arrays.copyOf(values, Math.max(capacity, Math.min(
+					leafOrder + 1, values.length * 2)));
+			growKeys(values.length);
 		}
-		return null;
+	}
+
+	/*
+	 * The keys are kept by getKey, indexOf, copyOf and the five methods
+	 * below, so a subclass can keep them in its own form. Each of the five
+	 * is called before size changes.
+	 */
+
+	/**
+	 * Grows the key slots to a capacity.
+	 */
+	protected void growKeys(int capacity) {
+		keys = Arrays.copyOf(keys, capacity);
+	}
+
+	/**
+	 * Shifts the keys at and after an index up one slot and puts a key in
+	 * the slot.
+	 */
+	protected void insertKey(int ind, K key) {
+		System.arraycopy(keys, ind, keys, ind + 1, size - ind);
+		keys[ind] = key;
+	}
+
+	/**
+	 * Removes the key at an index, shifting the later keys down one slot.
+	 */
+	protected void deleteKey(int ind) {
+		System.arraycopy(keys, ind + 1, keys, ind, size - ind - 1);
+		keys[size - 1] = null;
+	}
+
+	/**
+	 * Drops the keys at and after an index.
+	 */
+	protected void truncateKeys(int newSize) {
+		Arrays.fill(keys, newSize, size, null);
+	}
+
+	/**
+	 * Drops every key and the slots that held them.
+	 */
+	protected void dropKeys() {
+		keys = newArray(0);
+	}
+
+	/**
+	 * Gets the guide to put between the leaf to the left and this one. It
+	 * lies above every key on the left and at or below every key here.
+	 */
+	protected K separator(LeafNode<K, V> left) {
+		return getKey(0);
+	}
+
+	protected LeafNode<K, V> findLeaf(K key) {
+		return this;
+	}
+
+	public V get(K key) {
+		final int ind = indexOf(key);
+		return ind >= 0 ? values[ind] : null;
 	}
 
 	public V remove(K key) {
-		V result = null;
-		int ind = 0;
-		K guide = null;
-		for (K k : keys) {
-			if (cmp(key, k) <= 0) {
-				guide = k;
-				break;
-			}
-			++ind;
-		}
-		int compare = (guide == null) ? -1 : cmp(key, guide);
-		if (compare != 0) {
-			result = null;
-		} else {
-			keys.remove(ind);
-			result = values.remove(ind);
-		}
-				
-		if (isUnderHalfFull()){
-			merge();
+		final int ind = indexOf(key);
+		if (ind < 0) {
+			return null;
 		}
+
+		final V result = values[ind];
+		delete(ind);
 		return result;
-	}	
+	}
 
+	/**
+	 * Moves the upper half of the entries to a new leaf to the right of this
+	 * one.
+	 */
 	protected void split() {
-		int halfKeys = keys.size() / 2;
-		LeafNode<K, V> left = new LeafNode<K, V>(comparator, leafOrder,
-				keys.subList(0, halfKeys), values.subList(0, halfKeys));
-		LeafNode<K, V> right = new LeafNode<K, V>(comparator, leafOrder,
-				keys.subList(halfKeys, keys.size()), values.subList(halfKeys,
-						values.size()));
-		left.setLeft(getLeft());
-		left.setRight(right);
-		getLeft().setRight(left);
-		left.setParent(getParent());
-		right.setLeft(left);
+		int halfKeys = size / 2;
+		LeafNode<K, V> right = copyOf(halfKeys, size);
+		right.latch = newLatch();
+		right.epoch = epoch;
+		right.counters = counters;
+		counters.splits++;
+		truncateKeys(halfKeys);
+		Arrays.fill(values, halfKeys, size, null);
+		size = halfKeys;
+
+		right.setLeft(this);
 		right.setRight(getRight());
 		getRight().setLeft(right);
 		right.setParent(getParent());
-		parent.insertKid(this, right.keys.get(0), left, right);
-	}
-	
-	protected void merge() {
-		if (parent != null) {
-			parent.deleteKid(this);
-			Node<K,V> prev = null;
-			Node<K,V> temp = parent;
-			while (temp != null && temp.getType() != NodeType.ROOT) {
-				prev = temp;
-				temp = temp.getParent();
-			}
-			if (prev != null) {				
-				for (int j=0; j<size(); j++) {
-					prev.put((K)keys.get(j), (V)values.get(j));
-				}
-			}
+		setRight(right);
+		parent.insertKid(this, right.separator(this), this, right);
+	}
+
+	protected K borrowFromLeft(Node<K, V> node, K separator) {
+		final LeafNode<K, V> left = (LeafNode<K, V>) node;
+		final int last = left.size - 1;
+		insert(0, left.getKey(last), left.values[last]);
+		left.delete(last);
+		return separator(left);
+	}
+
+	protected K borrowFromRight(Node<K, V> node, K separator) {
+		final LeafNode<K, V> right = (LeafNode<K, V>) node;
+		insert(size, right.getKey(0), right.values[0]);
+		right.delete(0);
+		return right.separator(this);
+	}
+
+	protected void absorb(Node<K, V> node, K separator) {
+		final LeafNode<K, V> right = (LeafNode<K, V>) node;
+		ensureCapacity(size + right.size);
+		for (int i = 0; i < right.size; i++) {
+			insert(size, right.getKey(i), right.values[i]);
 		}
+		setRight(right.getRight());
+		right.getRight().setLeft(this);
+		right.discard();
 	}
-		
+
+	/**
+	 * Empties a leaf that has been merged into its left sibling, so an entry
+	 * still holding the leaf finds no key in it.
+	 */
+	private void discard() {
+		dropKeys();
+		values = newArray(0);
+		size = 0;
+	}
+
 	protected Iterator<K> leafKeyIterator() {
 		return new LeafKeyIterator();
 	}
@@ -153,11 +335,11 @@ public class LeafNode<K, V> extends Node<K, V> {
 		private int entryNum = 0;
 
 		public boolean hasNext() {
-			return entryNum < keys.size();
+			return entryNum < size;
 		}
 
 		public K next() {
-			return keys.get(entryNum++);
+			return getKey(entryNum++);
 		}
 
 		public void remove() {
@@ -165,17 +347,17 @@ public class LeafNode<K, V> extends Node<K, V> {
 	}
 
 	public void addToXmlDoc(Document doc, Element parent) {
-		Element thisNode = doc.createElement("leaf");	
-		for (int i = 0; i < keys.size(); ++i) {
+		Element thisNode = doc.createElement("leaf");
+		for (int i = 0; i < size; ++i) {
 			Element entry = doc.createElement("entry");
-			entry.setAttribute("key", keys.get(i).toString());
-			entry.setAttribute("value", values.get(i).toString());
+			entry.setAttribute("key", getKey(i).toString());
+			entry.setAttribute("value", values[i].toString());
 			thisNode.appendChild(entry);
 		}
 		parent.appendChild(thisNode);
 	}
-	
+
 	public String toString() {
-		return keys.toString();
+		return getKeys().toString();
 	}
 }
@@ -1,16 +1,16 @@
 //package cmsc420.meeshquest.part2;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 /*
@@ -27,13 +27,53 @@ public class MeeshQuest {
 
 	private File xmlOutput;
 
-	/* output DOM Document tree */
+	/* DOM Document tree used to create result elements */
 	private Document results;
 
+	/* writes the result of each command to the output file */
+	private ResultSink resultSink;
+
 	/* processes each command */
 	private Command command;
 
+	/* maps each command name to its handler */
+	private final CommandRegistry registry = CommandRegistry.createDefault();
+
+	/* number of threads running read-only commands; 1 runs everything in order */
+	private final int threads = Integer.getInteger("meeshquest.threads", 1);
+
+	/* runs read-only commands in parallel when more than one thread is used */
+	private ParallelCommandExecutor executor;
+
+	/* per-command counts and latencies, printed at exit; null when disabled */
+	private final CommandStatistics statistics = Boolean
+			.getBoolean("meeshquest.stats") ? new CommandStatistics() : null;
+
+	/* state is restored from and saved to this file when it is set */
+	private final File snapshot = System.getProperty("meeshquest.snapshot") == null ? null
+			: new File(System.getProperty("meeshquest.snapshot"));
+
+	/* mutating commands are journaled to this file when it is set */
+	private final File journalFile = System.getProperty("meeshquest.journal") == null ? null
+			: new File(System.getProperty("meeshquest.journal"));
+
+	/* journal of mutating commands; null when disabled */
+	private CommandJournal journal;
+
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("-server")) {
+			/* stay resident and read command documents from a local socket */
+			final int port = args.length > 1 ? Integer.parseInt(args[1])
+					: MeeshQuestServer.DEFAULT_PORT;
+			try {
+				new MeeshQuestServer(port).serve();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+			return;
+		}
+
 		final MeeshQuest m = new MeeshQuest();
 		m.processInput();
 	}
@@ -48,35 +88,59 @@ public class MeeshQuest {
 			final String testName = "portal";
 			xmlInput = new File(testName + ".input.xml");
 			xmlOutput = new File("my."+testName + ".output.xml");
+			resultSink = new TeeResultSink(new StreamingResultSink(
+					new FileOutputStream(xmlOutput)), new StreamingResultSink(
+					System.out, false));
+
+			/* continue from the state of a previous run, if any */
+			if (journalFile != null) {
+				journal = new CommandJournal(journalFile, snapshot, Long
+						.getLong("meeshquest.checkpoint", 100000), Long
+						.getLong("meeshquest.journal.flush", 10));
+				command = journal.recover();
+				registry.wrapAll(journal);
+			} else if (snapshot != null && snapshot.exists()) {
+				command = CommandSnapshot.load(snapshot);
+			}
+			/* a resumed state keeps its own map size and orders */
+			final boolean resumed = command != null;
 
-			/* validate document */
-			Document doc = XmlUtility.validateNoNamespace(xmlInput);
-			
-			
-			int leafOrder;
-			//Read the order values.
-			Element docElement = doc.getDocumentElement();
-			leafOrder = Integer.parseInt(docElement.getAttribute("leafOrder"));
-			command = new Command(leafOrder);
-			
-			/* create output */
-			results = XmlUtility.getDocumentBuilder().newDocument();
-			command.setResults(results);
-
-			
-
-			/* process commands element */
-			Element commandNode = doc.getDocumentElement();
-			processCommand(commandNode);
+			if (statistics != null) {
+				registry.wrapAll(statistics);
+				resultSink = statistics.wrap(resultSink);
+			}
 
-			/* process each command */
-			final NodeList nl = commandNode.getChildNodes();
-			for (int i = 0; i < nl.getLength(); i++) {
-				if (nl.item(i).getNodeType() == Document.ELEMENT_NODE) {
-					/* need to check if Element (ignore comments) */
-					commandNode = (Element) nl.item(i);
+			/* validate and process each command as soon as it is read */
+			CommandReader.Listener listener = new CommandReader.Listener() {
+				public void commandRead(final Element commandNode)
+						throws IOException, ParserConfigurationException,
+						TransformerException {
+					if (results == null) {
+						if (!resumed) {
+							/* commands node: read the order values */
+							command = Command.forCommands(commandNode);
+						}
+
+						/* create output */
+						results = XmlUtility.getDocumentBuilder().newDocument();
+						command.setResults(results, resultSink);
+						if (threads > 1) {
+							executor = new ParallelCommandExecutor(registry,
+									command, resultSink, threads);
+						}
+						if (resumed) {
+							return;
+						}
+					}
 					processCommand(commandNode);
 				}
+			};
+			if (statistics != null) {
+				listener = statistics.wrap(listener);
+			}
+			CommandReader.read(xmlInput, listener);
+			if (executor != null) {
+				executor.flush();
 			}
 		} catch (SAXException e) {
 			e.printStackTrace();
@@ -90,70 +154,59 @@ public class MeeshQuest {
 		} catch (TransformerException e) {
 			e.printStackTrace();
 			addFatalError();
+		} catch (XMLStreamException e) {
+			/* output file could not be opened */
+			e.printStackTrace();
+			System.exit(-1);
 		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
 			try {
-				/* print results to XML */
-				XmlUtility.write(results, xmlOutput);
-				XmlUtility.print(results);
-			} catch (TransformerException e) {
+				/* finish the results document */
+				if (resultSink != null) {
+					resultSink.close();
+				}
+			} catch (XMLStreamException e) {
 				System.exit(-1);
-			} catch (FileNotFoundException e) {
+			}
+			try {
+				if (journal != null) {
+					if (snapshot != null && command != null) {
+						journal.checkpoint(command);
+					}
+					journal.close();
+				} else if (snapshot != null && command != null) {
+					CommandSnapshot.save(command, snapshot);
+				}
+			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			if (statistics != null) {
+				statistics.print(System.err);
+			}
 		}
 	}
 
 	private void addFatalError() {
-		try {
-			results = XmlUtility.getDocumentBuilder().newDocument();
-			final Element fatalError = results.createElement("fatalError");
-			results.appendChild(fatalError);
-		} catch (ParserConfigurationException e) {
-			System.exit(-1);
+		if (resultSink != null) {
+			resultSink.addFatalError();
 		}
 	}
 
 	private void processCommand(final Element commandNode) throws IOException,
 			ParserConfigurationException, TransformerException {
-		final String name = commandNode.getNodeName();
-
-		if (name.equals("commands")) {
-			command.processCommands(commandNode);
-		} else if (name.equals("createCity")) {
-			command.processCreateCity(commandNode);
-		} else if (name.equals("deleteCity")) {
-			command.processDeleteCity(commandNode);
-		} else if (name.equals("clearAll")) {
-			command.processClearAll(commandNode);
-		} else if (name.equals("listCities")) {
-			command.processListCities(commandNode);
-		} else if (name.equals("printHeptaTrie")) {
-			command.processPrintHeptaTrie(commandNode);
-		} else if (name.equals("mapRoad")) {
-			command.processMapRoad(commandNode);
-		} else if (name.equals("mapPortal")) {
-			command.processMapPortal(commandNode);
-		} else if (name.equals("unmapRoad")) {
-			command.processUnmapRoad(commandNode);
-		} else if (name.equals("unmapPortal")) {
-			command.processUnmapPortal(commandNode);
-		} else if (name.equals("printPMQuadtree")) {
-			command.processPrintPMQuadtree(commandNode);
-		} else if (name.equals("saveMap")) {
-			command.processSaveMap(commandNode);
-		} else if (name.equals("rangeCities")) {
-			command.processRangeCities(commandNode);
-		} else if (name.equals("rangeRoads")) {
-			command.processRangeRoads(commandNode);
-		} else if (name.equals("nearestCity")) {
-			command.processNearestCity(commandNode);
-		} else if (name.equals("nearestPortal")) {
-			command.processNearestPortal(commandNode);
-		} else if (name.equals("shortestPath")) {
-			command.processShortestPath(commandNode);
-		} else {
+		final CommandHandler handler = registry.getHandler(commandNode
+				.getNodeName());
+
+		if (handler == null) {
 			/* problem with the Validator */
 			System.exit(-1);
 		}
+		if (executor != null) {
+			executor.execute(handler, commandNode);
+		} else {
+			handler.process(command, commandNode);
+		}
 	}
 }
@@ -0,0 +1,291 @@
+//package cmsc420.meeshquest.part2;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+/**
+ * Long-running MeeshQuest server. Keeps the dictionary, PM Quadtrees and road
+ * adjacency list resident between command documents, so clients do not pay
+ * for JVM startup and warmup on every batch.
+ * <p>
+ * The server listens on a port of the loopback interface. A client connects,
+ * sends one command document, shuts down its output, and reads the results
+ * document, which is streamed back as each command completes. The first
+ * document received sets the map size and the leaf and guide orders for the
+ * life of the server.
+ * <p>
+ * Connections are served concurrently. Read-only commands hold a shared lock
+ * and run at the same time; all other commands hold the single writer lock.
+ */
+public class MeeshQuestServer {
+	/** port used when none is given */
+	public static final int DEFAULT_PORT = 4200;
+
+	private final int port;
+
+	/** maps each command name to its handler */
+	private final CommandRegistry registry = CommandRegistry.createDefault();
+
+	/** read-only commands share the read lock; others take the write lock */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** command processor holding the resident data structures */
+	private Command command;
+
+	/** state is restored from this file at startup and saved at shutdown */
+	private final File snapshot = System.getProperty("meeshquest.snapshot") == null ? null
+			: new File(System.getProperty("meeshquest.snapshot"));
+
+	/** journal of mutating commands; null when disabled */
+	private CommandJournal journal;
+
+	/** per-command counts and latencies; null when disabled */
+	private final CommandStatistics statistics = Boolean
+			.getBoolean("meeshquest.stats") ? new CommandStatistics() : null;
+
+	/**
+	 * Creates a server for a port of the loopback interface. If a snapshot
+	 * file is set with the meeshquest.snapshot property, the resident state
+	 * is restored from it and saved to it when the server is stopped. If a
+	 * journal file is set with the meeshquest.journal property, mutating
+	 * commands are journaled and the state is recovered from the snapshot and
+	 * journal. If statistics are enabled, they are printed when the server is
+	 * stopped.
+	 * 
+	 * @param port
+	 *            port to listen on
+	 * @throws IOException
+	 *             the state could not be recovered
+	 */
+	public MeeshQuestServer(final int port) throws IOException {
+		this.port = port;
+		if (System.getProperty("meeshquest.journal") != null) {
+			journal = new CommandJournal(new File(System
+					.getProperty("meeshquest.journal")), snapshot, Long
+					.getLong("meeshquest.checkpoint", 100000), Long.getLong(
+					"meeshquest.journal.flush", 10));
+			try {
+				command = journal.recover();
+			} catch (ParserConfigurationException e) {
+				throw new IOException(e);
+			} catch (TransformerException e) {
+				throw new IOException(e);
+			}
+			registry.wrapAll(journal);
+		} else if (snapshot != null && snapshot.exists()) {
+			command = CommandSnapshot.load(snapshot);
+		}
+		if (snapshot != null || journal != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					saveSnapshot();
+				}
+			});
+		}
+		if (statistics != null) {
+			registry.wrapAll(statistics);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					statistics.print(System.err);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Saves the resident state to the snapshot file, if one has been
+	 * received, and closes the journal.
+	 */
+	private void saveSnapshot() {
+		lock.writeLock().lock();
+		try {
+			if (journal != null) {
+				if (snapshot != null && command != null) {
+					journal.checkpoint(command);
+				}
+				journal.close();
+			} else if (command != null) {
+				CommandSnapshot.save(command, snapshot);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the statistics collected since the server was created.
+	 * 
+	 * @return statistics, or null if the meeshquest.stats property is not set
+	 */
+	public CommandStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Accepts connections until the process is stopped.
+	 * 
+	 * @throws IOException
+	 *             the server socket could not be opened
+	 */
+	public void serve() throws IOException {
+		final ServerSocket serverSocket = new ServerSocket(port, 50,
+				InetAddress.getLoopbackAddress());
+		final ExecutorService connections = Executors.newCachedThreadPool();
+		try {
+			while (true) {
+				final Socket socket = serverSocket.accept();
+				connections.execute(new Runnable() {
+					public void run() {
+						serve(socket);
+					}
+				});
+			}
+		} finally {
+			connections.shutdown();
+			serverSocket.close();
+		}
+	}
+
+	/**
+	 * Processes the command document sent over one connection.
+	 * 
+	 * @param socket
+	 *            connection to the client
+	 */
+	private void serve(final Socket socket) {
+		ResultSink resultSink = null;
+		try {
+			resultSink = new StreamingResultSink(socket.getOutputStream());
+			if (statistics != null) {
+				resultSink = statistics.wrap(resultSink);
+			}
+			final ResultSink sink = resultSink;
+
+			/* the parser closes its input, which must not close the socket */
+			final InputStream input = new FilterInputStream(socket
+					.getInputStream()) {
+				public void close() {
+				}
+			};
+			CommandReader.Listener listener = new CommandReader.Listener() {
+				/** view of the resident data for this connection */
+				private Command view;
+
+				public void commandRead(final Element commandNode)
+						throws IOException, ParserConfigurationException,
+						TransformerException {
+					if (view == null) {
+						view = new Command(getCommand(commandNode));
+						view.setResults(XmlUtility.newDocumentBuilder()
+								.newDocument(), sink);
+					} else {
+						process(view, commandNode);
+					}
+				}
+			};
+			if (statistics != null) {
+				listener = statistics.wrap(listener);
+			}
+			CommandReader.read(input, listener);
+		} catch (SAXException e) {
+			e.printStackTrace();
+			resultSink.addFatalError();
+		} catch (ParserConfigurationException e) {
+			e.printStackTrace();
+			resultSink.addFatalError();
+		} catch (TransformerException e) {
+			e.printStackTrace();
+			resultSink.addFatalError();
+		} catch (IllegalArgumentException e) {
+			e.printStackTrace();
+			resultSink.addFatalError();
+		} catch (XMLStreamException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				if (resultSink != null) {
+					resultSink.close();
+				}
+			} catch (XMLStreamException e) {
+				e.printStackTrace();
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Processes one command under the appropriate lock.
+	 * 
+	 * @param view
+	 *            command processor for the connection
+	 * @param commandNode
+	 *            command node to be processed
+	 */
+	private void process(final Command view, final Element commandNode)
+			throws IOException, ParserConfigurationException,
+			TransformerException {
+		final CommandHandler handler = registry.getHandler(commandNode
+				.getNodeName());
+		if (handler == null) {
+			/* problem with the Validator */
+			throw new IllegalArgumentException("unknown command "
+					+ commandNode.getNodeName());
+		}
+
+		final Lock l = registry.isReadOnly(commandNode) ? lock.readLock()
+				: lock.writeLock();
+		l.lock();
+		try {
+			handler.process(view, commandNode);
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/**
+	 * Gets the resident command processor, creating it from the first commands
+	 * node received.
+	 * 
+	 * @param commandsNode
+	 *            commands node of the document being processed
+	 * @return resident command processor
+	 */
+	private Command getCommand(final Element commandsNode) throws IOException,
+			ParserConfigurationException, TransformerException {
+		lock.writeLock().lock();
+		try {
+			if (command == null) {
+				command = Command.forCommands(commandsNode);
+				registry.getHandler("commands").process(command, commandsNode);
+			}
+			return command;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -1,6 +1,7 @@
 //package cmsc420.heptatrie;
 
 import java.util.Comparator;
+import java.util.concurrent.locks.StampedLock;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -15,6 +16,18 @@ public abstract class Node<K, V> {
 	protected GuideNode<K, V> parent;
 	protected Node<K, V> left, right;
 
+	/** versions the node in a concurrent trie; null in any other trie */
+	protected StampedLock latch;
+
+	/**
+	 * epoch of the trie when the node was made; a node no newer than a live
+	 * version of the trie is shared with it, and is copied before it changes
+	 */
+	protected int epoch;
+
+	/** counts the work done by the trie; null in a node of no trie */
+	protected HeptaTrieCounters counters;
+
 	public Node(Comparator<K> comparator, NodeType type) {
 		this.type = type;
 		this.comparator = comparator;
@@ -52,14 +65,35 @@ public abstract class Node<K, V> {
 		this.right = right;
 	}
 
+	/**
+	 * Creates the latch of a node made by this one, so nodes of a concurrent
+	 * trie are always latched.
+	 *
+	 * @return new latch, or null if this node has none
+	 */
+	protected StampedLock newLatch() {
+		return latch == null ? null : new StampedLock();
+	}
+
 	public boolean contains(K key) {
 		return get(key) != null;
 	}
 
 	protected final int cmp(K arg0, K arg1) {
+		countComparison();
 		return comparator.compare(arg0, arg1);
 	}
 
+	/**
+	 * Counts a comparison of keys, for a node that compares keys in its own
+	 * form rather than with cmp.
+	 */
+	protected final void countComparison() {
+		if (counters != null) {
+			counters.compared();
+		}
+	}
+
 	public int size() {
 		throw new UnsupportedOperationException();
 	}
@@ -72,11 +106,68 @@ public abstract class Node<K, V> {
 		throw new UnsupportedOperationException();
 	}
 
-	public abstract void put(K key, V value);
+	protected boolean isUnderHalfFull() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Checks whether the node can give an entry to a sibling and stay at
+	 * least half full.
+	 */
+	protected boolean canLend() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Moves the last entry of the left sibling to the front of this node.
+	 *
+	 * @param separator
+	 *            guide between the left sibling and this node in the parent
+	 * @return new guide between the left sibling and this node
+	 */
+	protected K borrowFromLeft(Node<K, V> left, K separator) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Moves the first entry of the right sibling to the end of this node.
+	 *
+	 * @param separator
+	 *            guide between this node and the right sibling in the parent
+	 * @return new guide between this node and the right sibling
+	 */
+	protected K borrowFromRight(Node<K, V> right, K separator) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Moves every entry of the right sibling to the end of this node and
+	 * unlinks the sibling from its level.
+	 *
+	 * @param separator
+	 *            guide between this node and the right sibling in the parent
+	 */
+	protected void absorb(Node<K, V> right, K separator) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Associates a value with a key.
+	 *
+	 * @return the previous value of the key, or null if it was absent
+	 */
+	public abstract V put(K key, V value);
 
 	public abstract V get(K key);
 
 	public abstract V remove(K key);
 
+	/**
+	 * Finds the leaf whose range holds a key.
+	 */
+	protected LeafNode<K, V> findLeaf(K key) {
+		throw new UnsupportedOperationException();
+	}
+
 	public abstract void addToXmlDoc(Document doc, Element parent);
 }
\ No newline at end of file
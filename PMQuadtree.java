@@ -2,10 +2,12 @@
 
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.LinkedList;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.Iterator;
 
@@ -678,6 +680,24 @@ public abstract class PMQuadtree {
 			}
 		}
 
+		/**
+		 * Sets the child node of this node for a quadrant. Used to restore a
+		 * saved PM Quadtree; the child is not validated.
+		 * 
+		 * @param quadrant
+		 *            quadrant number (top left is 0, top right is 1, bottom
+		 *            left is 2, bottom right is 3)
+		 * @param child
+		 *            child node
+		 */
+		public void setChild(final int quadrant, final Node child) {
+			if (quadrant < 0 || quadrant > 3) {
+				throw new IllegalArgumentException();
+			} else {
+				children[quadrant] = child;
+			}
+		}
+
 		/**
 		 * Gets the rectangular region for the specified child node of this
 		 * internal node.
@@ -752,6 +772,84 @@ public abstract class PMQuadtree {
 	public Node getRoot() {
 		return root;
 	}
+
+	/**
+	 * Creates a leaf node holding geometry that is already sorted, to restore a
+	 * saved PM Quadtree. The node is not validated.
+	 * 
+	 * @param sortedGeometry
+	 *            cities, portals and roads of the node, in geometry order
+	 * @return the new leaf node
+	 */
+	public Black newBlack(final Collection<Geometry> sortedGeometry) {
+		final Black black = new Black();
+		for (Geometry g : sortedGeometry) {
+			black.geometry.add(g);
+			if (g instanceof City) {
+				black.numPoints++;
+			}
+		}
+		return black;
+	}
+
+	/**
+	 * Creates an internal node with white children, to restore a saved PM
+	 * Quadtree.
+	 * 
+	 * @param origin
+	 *            origin of the rectangular bounds of the node
+	 * @param width
+	 *            width of the rectangular bounds of the node
+	 * @param height
+	 *            height of the rectangular bounds of the node
+	 * @return the new internal node
+	 */
+	public Gray newGray(final Point2D.Float origin, final int width, final int height) {
+		return new Gray(origin, width, height);
+	}
+
+	/**
+	 * Gets the empty leaf node shared by all empty regions.
+	 * 
+	 * @return the empty leaf node
+	 */
+	public White getWhite() {
+		return white;
+	}
+
+	/**
+	 * Replaces the contents of this PM Quadtree with a tree built from a
+	 * snapshot. Nothing is validated or partitioned; the nodes must hold
+	 * exactly the roads and portals given.
+	 * 
+	 * @param root
+	 *            root of the restored tree
+	 * @param roads
+	 *            roads mapped in the tree
+	 * @param portals
+	 *            portals mapped in the tree
+	 * @param numPortals
+	 *            portal count saved with the tree
+	 */
+	public void restore(final Node root, final Collection<Road> roads,
+			final Collection<Portal> portals, final int numPortals) {
+		clear();
+		this.root = root;
+		final Rectangle2D.Float world = new Rectangle2D.Float(spatialOrigin.x, spatialOrigin.y, spatialWidth, spatialHeight);
+		for (Road road : roads) {
+			allRoads.add(road);
+			if (Inclusive2DIntersectionVerifier.intersects(road.getStart().toPoint2D(), world)) {
+				increaseNumRoadsMap(road.getStart().getName());
+			}
+			if (Inclusive2DIntersectionVerifier.intersects(road.getEnd().toPoint2D(), world)) {
+				increaseNumRoadsMap(road.getEnd().getName());
+			}
+		}
+		for (Portal portal : portals) {
+			allPortals.put(portal.getName(), portal);
+		}
+		this.numPortals = numPortals;
+	}
 	
 	public void addRoad(final Road g) 
 			throws RoadAlreadyMappedThrowable, OutOfBoundsThrowable, RoadIntersectsAnotherRoadThrowable, RoadViolatesPMRulesThrowable {
@@ -871,6 +969,10 @@ public abstract class PMQuadtree {
 	public int getNumRoads() {
 		return allRoads.size();
 	}
+
+	public Set<Road> getRoads() {
+		return Collections.unmodifiableSet(allRoads);
+	}
 	
 	public Map<String, Portal> getAllPortals() {
 		return allPortals;
@@ -0,0 +1,26 @@
+//package cmsc420.heptatrie;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the keys or values of a PagedHeptaTrie to its pages and reads them
+ * back.
+ */
+public interface PageCodec<T> {
+	/**
+	 * Gets the number of bytes an object is written in.
+	 */
+	int size(T object);
+
+	/**
+	 * Writes an object at the position of a buffer, advancing it by the size
+	 * of the object.
+	 */
+	void write(T object, ByteBuffer buffer);
+
+	/**
+	 * Reads an object at the position of a buffer, advancing it past the
+	 * object.
+	 */
+	T read(ByteBuffer buffer);
+}
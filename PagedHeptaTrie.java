@@ -0,0 +1,1139 @@
+//package cmsc420.heptatrie;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * HeptaTrie whose nodes live in fixed-size pages of a file rather than on the
+ * heap. Keys and values are written to the pages by codecs, and a page holds
+ * as many entries as fit in it, so the fan-out follows the page size rather
+ * than a leaf order. A page splits when it overflows, and joins or shares
+ * entries with a sibling when it falls under a quarter full; an entry may
+ * take at most a quarter of a page, so both halves of a split always fit.
+ * <p>
+ * Pages are read through a BufferPool of a fixed number of pages, with clock
+ * eviction. The guide pages nearest the root are kept in the pool, in up to
+ * half of it, so a lookup reads only its leaf from the file once the guides
+ * fit in that half, and a guide and its leaf until then. Lookups and
+ * iteration return entries decoded from the pages, so values read back are
+ * copies of the values put.
+ * <p>
+ * Changed pages are written when they are evicted and on flush. The file
+ * holds a consistent trie only after flush or close, and is reopened by
+ * constructing a trie on it with the same page size and codecs. The trie is
+ * not safe for use by more than one thread.
+ */
+public class PagedHeptaTrie<K, V> extends AbstractMap<K, V> implements
+		SortedMap<K, V>, Closeable {
+	/** identifies a paged trie file ("MQPT") */
+	private static final int MAGIC = 0x4d515054;
+
+	/** version of the file layout */
+	private static final int VERSION = 1;
+
+	/**
+	 * size of the file header, at the start of page 0: magic, version, page
+	 * size, root, height, number of entries, number of pages and first free
+	 * page
+	 */
+	private static final int HEADER_SIZE = 32;
+
+	/** kinds of pages */
+	private static final byte LEAF = 0, GUIDE = 1, FREE = 2;
+
+	/** size of the head of a page: kind, number of keys and next page */
+	private static final int PAGE_HEAD = 9;
+
+	/** id standing for no page */
+	private static final int NONE = -1;
+
+	private static final int MIN_PAGE_SIZE = 128;
+
+	private static final int MAX_PAGE_SIZE = 1 << 16;
+
+	/** fewest pages in the pool; a change pins a path and a few more */
+	private static final int MIN_POOL_PAGES = 16;
+
+	private final FileChannel channel;
+
+	private final int pageSize;
+
+	/** bytes of a page after its head */
+	private final int capacity;
+
+	/** null if keys are ordered by their natural order */
+	private final Comparator<K> comparator;
+
+	private final PageCodec<K> keyCodec;
+
+	private final PageCodec<V> valueCodec;
+
+	private final BufferPool<Page<K, V>> pool;
+
+	/** buffer for reading and writing one page */
+	private final ByteBuffer buffer;
+
+	private int root;
+
+	/** number of levels, leaves included */
+	private int height;
+
+	private int size;
+
+	/** number of pages in the file, header page included */
+	private int pageCount;
+
+	/** first page of the list of free pages */
+	private int freePage;
+
+	private int modCount;
+
+	/**
+	 * Decoded page. A leaf holds keys and values and the id of the next leaf;
+	 * a guide holds the ids of its children and the keys between them, each
+	 * above every key under the child before it and at or below every key
+	 * under the child after it.
+	 */
+	static class Page<K, V> {
+		final boolean leaf;
+
+		final List<K> keys = new ArrayList<K>();
+
+		final List<V> values;
+
+		final List<Integer> kids;
+
+		/** next leaf, or NONE for the last leaf and for guides */
+		int next = NONE;
+
+		/** bytes taken after the head of the page */
+		int bytes;
+
+		Page(boolean leaf) {
+			this.leaf = leaf;
+			this.values = leaf ? new ArrayList<V>() : null;
+			this.kids = leaf ? null : new ArrayList<Integer>();
+		}
+	}
+
+	/**
+	 * Opens a paged trie, creating the file if it is empty.
+	 *
+	 * @param file
+	 *            file of pages
+	 * @param pageSize
+	 *            bytes in a page, from 128 to 65536
+	 * @param poolPages
+	 *            number of pages held in the buffer pool, at least 16
+	 * @param comparator
+	 *            comparator ordering the keys, or null for their natural
+	 *            order
+	 * @throws IOException
+	 *             the file could not be opened, or holds no trie with pages of
+	 *             that size
+	 */
+	public PagedHeptaTrie(File file, int pageSize, int poolPages,
+			Comparator<K> comparator, PageCodec<K> keyCodec,
+			PageCodec<V> valueCodec) throws IOException {
+		if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException("page size " + pageSize);
+		}
+		if (poolPages < MIN_POOL_PAGES) {
+			throw new IllegalArgumentException("pool of " + poolPages
+					+ " pages");
+		}
+		this.pageSize = pageSize;
+		this.capacity = pageSize - PAGE_HEAD;
+		this.comparator = comparator;
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		this.buffer = ByteBuffer.allocate(pageSize);
+		this.pool = new BufferPool<Page<K, V>>(
+				new BufferPool.Pager<Page<K, V>>() {
+					public Page<K, V> read(int id) {
+						return readPage(id);
+					}
+
+					public void write(int id, Page<K, V> page) {
+						writePage(id, page);
+					}
+				}, poolPages);
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		if (channel.size() == 0) {
+			reset();
+		} else {
+			readHeader();
+		}
+	}
+
+	/**
+	 * Replaces the pages with a single empty leaf.
+	 */
+	private void reset() throws IOException {
+		pool.clear();
+		pool.releaseKept();
+		channel.truncate(pageSize);
+		pageCount = 1;
+		freePage = NONE;
+		root = allocate();
+		pool.add(root, new Page<K, V>(true));
+		pool.unpin(root);
+		height = 1;
+		size = 0;
+		writeHeader();
+	}
+
+	private void readHeader() throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new EOFException("truncated paged trie header");
+			}
+		}
+		header.flip();
+		if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+			throw new IOException("not a paged trie file");
+		}
+		final int filePageSize = header.getInt();
+		if (filePageSize != pageSize) {
+			throw new IOException("file has pages of " + filePageSize
+					+ " bytes");
+		}
+		root = header.getInt();
+		height = header.getInt();
+		size = header.getInt();
+		pageCount = header.getInt();
+		freePage = header.getInt();
+	}
+
+	private void writeHeader() throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putInt(pageSize).putInt(root)
+				.putInt(height).putInt(size).putInt(pageCount).putInt(freePage);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	/**
+	 * Writes every changed page and the header, and forces the file to disk.
+	 *
+	 * @throws IOException
+	 *             the pages could not be written
+	 */
+	public void flush() throws IOException {
+		try {
+			pool.flush();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		writeHeader();
+		channel.force(true);
+	}
+
+	/**
+	 * Flushes the trie and closes its file.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads the buffer from a position of the file.
+	 *
+	 * @param length
+	 *            number of bytes to read
+	 */
+	private void read(long position, int length) throws IOException {
+		buffer.clear().limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("page at " + position
+						+ " is past the end of the file");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Writes the buffer, up to a length, to a position of the file.
+	 */
+	private void write(long position, int length) throws IOException {
+		buffer.position(0).limit(length);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	private Page<K, V> readPage(int id) {
+		try {
+			read((long) id * pageSize, pageSize);
+			final byte kind = buffer.get();
+			final int count = buffer.getInt();
+			final Page<K, V> page;
+			if (kind == LEAF) {
+				page = new Page<K, V>(true);
+				page.next = buffer.getInt();
+				for (int i = 0; i < count; i++) {
+					page.keys.add(keyCodec.read(buffer));
+					page.values.add(valueCodec.read(buffer));
+				}
+			} else if (kind == GUIDE) {
+				page = new Page<K, V>(false);
+				buffer.getInt();
+				page.kids.add(buffer.getInt());
+				for (int i = 0; i < count; i++) {
+					page.keys.add(keyCodec.read(buffer));
+					page.kids.add(buffer.getInt());
+				}
+			} else {
+				throw new IOException("corrupt paged trie: page " + id
+						+ " is of kind " + kind);
+			}
+			page.bytes = buffer.position() - PAGE_HEAD;
+			return page;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writePage(int id, Page<K, V> page) {
+		buffer.clear();
+		buffer.put(page.leaf ? LEAF : GUIDE);
+		buffer.putInt(page.keys.size());
+		buffer.putInt(page.next);
+		if (page.leaf) {
+			for (int i = 0; i < page.keys.size(); i++) {
+				keyCodec.write(page.keys.get(i), buffer);
+				valueCodec.write(page.values.get(i), buffer);
+			}
+		} else {
+			buffer.putInt(page.kids.get(0));
+			for (int i = 0; i < page.keys.size(); i++) {
+				keyCodec.write(page.keys.get(i), buffer);
+				buffer.putInt(page.kids.get(i + 1));
+			}
+		}
+		try {
+			write((long) id * pageSize, pageSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Takes a page from the free list, or else a new page at the end of the
+	 * file.
+	 */
+	private int allocate() {
+		if (freePage == NONE) {
+			return pageCount++;
+		}
+		final int id = freePage;
+		try {
+			read((long) id * pageSize, PAGE_HEAD);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		buffer.position(5);
+		freePage = buffer.getInt();
+		return id;
+	}
+
+	/**
+	 * Drops a page from the pool and puts it on the free list.
+	 */
+	private void release(int id) {
+		pool.discard(id);
+		buffer.clear();
+		buffer.put(FREE).putInt(0).putInt(freePage);
+		try {
+			write((long) id * pageSize, PAGE_HEAD);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		freePage = id;
+	}
+
+	@SuppressWarnings("unchecked")
+	private int cmp(K k1, K k2) {
+		return comparator == null ? ((Comparable<K>) k1).compareTo(k2)
+				: comparator.compare(k1, k2);
+	}
+
+	private static <K> K checkKey(K key) {
+		if (key == null) {
+			throw new NullPointerException();
+		}
+		return key;
+	}
+
+	private boolean inRange(K key, K lo, K hi) {
+		return (lo == null || cmp(key, lo) >= 0)
+				&& (hi == null || cmp(key, hi) < 0);
+	}
+
+	/**
+	 * Gets the depth to keep a page at in the pool: its depth if it is a
+	 * guide, or -1 for a leaf.
+	 */
+	private int keepDepth(int depth) {
+		return depth < height - 1 ? depth : -1;
+	}
+
+	/**
+	 * Binary searches a leaf for a key.
+	 *
+	 * @return index of the key, or (-(insertion point) - 1) if it is absent
+	 */
+	private int indexOf(Page<K, V> leaf, K key) {
+		int low = 0;
+		int high = leaf.keys.size() - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			final int compare = cmp(leaf.keys.get(mid), key);
+			if (compare < 0) {
+				low = mid + 1;
+			} else if (compare > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Gets the slot of the first key in a leaf at or above a key.
+	 */
+	private int ceilingIndex(Page<K, V> leaf, K key) {
+		final int index = indexOf(leaf, key);
+		return index >= 0 ? index : -(index + 1);
+	}
+
+	/**
+	 * Binary searches the keys of a guide for the child whose range holds a
+	 * key.
+	 *
+	 * @return index of the first key greater than the key
+	 */
+	private int kidIndex(Page<K, V> guide, K key) {
+		int low = 0;
+		int high = guide.keys.size();
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			if (cmp(key, guide.keys.get(mid)) < 0) {
+				high = mid;
+			} else {
+				low = mid + 1;
+			}
+		}
+		return low;
+	}
+
+	private Page<K, V> findLeaf(K key) {
+		int id = root;
+		for (int depth = 0; depth < height - 1; depth++) {
+			final Page<K, V> guide = pool.get(id, depth);
+			id = guide.kids.get(kidIndex(guide, key));
+		}
+		return pool.get(id, -1);
+	}
+
+	private Page<K, V> firstLeaf() {
+		int id = root;
+		for (int depth = 0; depth < height - 1; depth++) {
+			id = pool.get(id, depth).kids.get(0);
+		}
+		return pool.get(id, -1);
+	}
+
+	/**
+	 * Finds the last key of a subtree below a bound.
+	 *
+	 * @param hi
+	 *            exclusive bound; null if unbounded
+	 * @return last key below the bound, or null if there is none
+	 */
+	private K lastBelow(int id, int depth, K hi) {
+		final Page<K, V> page = pool.get(id, keepDepth(depth));
+		if (page.leaf) {
+			final int index = hi == null ? page.keys.size() - 1
+					: ceilingIndex(page, hi) - 1;
+			return index >= 0 ? page.keys.get(index) : null;
+		}
+		final int last = hi == null ? page.kids.size() - 1 : kidIndex(page,
+				hi);
+		for (int i = last; i >= 0; i--) {
+			/* children before the bound's child lie wholly below it */
+			final K key = lastBelow(page.kids.get(i), depth + 1, i == last ? hi
+					: null);
+			if (key != null) {
+				return key;
+			}
+		}
+		return null;
+	}
+
+	public Comparator<? super K> comparator() {
+		return comparator;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Gets the number of levels of pages, leaves included.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Gets the number of pages read from the file since the trie was opened.
+	 */
+	public long getPageReads() {
+		return pool.getReads();
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		final K k = (K) checkKey(key);
+		final Page<K, V> leaf = findLeaf(k);
+		final int index = indexOf(leaf, k);
+		return index >= 0 ? leaf.values.get(index) : null;
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	public V put(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+		final int keySize = keyCodec.size(key);
+		final int valueSize = valueCodec.size(value);
+		if (keySize + Math.max(valueSize, 4) > capacity / 4) {
+			throw new IllegalArgumentException("entry of " + (keySize
+					+ valueSize) + " bytes is over a quarter of a page");
+		}
+		final int[] path = new int[height];
+		final int[] slots = new int[height];
+		final List<Page<K, V>> pages = pinPath(key, path, slots);
+		try {
+			final Page<K, V> leaf = pages.get(height - 1);
+			int index = indexOf(leaf, key);
+			V oldVal = null;
+			if (index >= 0) {
+				oldVal = leaf.values.set(index, value);
+				leaf.bytes += valueSize - valueCodec.size(oldVal);
+			} else {
+				index = -(index + 1);
+				leaf.keys.add(index, key);
+				leaf.values.add(index, value);
+				leaf.bytes += keySize + valueSize;
+				size++;
+			}
+			pool.markDirty(path[height - 1]);
+			modCount++;
+			repair(path, slots, pages);
+			return oldVal;
+		} finally {
+			unpin(path);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(Object key) {
+		final K k = (K) checkKey(key);
+		final int[] path = new int[height];
+		final int[] slots = new int[height];
+		final List<Page<K, V>> pages = pinPath(k, path, slots);
+		try {
+			final Page<K, V> leaf = pages.get(height - 1);
+			final int index = indexOf(leaf, k);
+			if (index < 0) {
+				return null;
+			}
+			leaf.keys.remove(index);
+			final V oldVal = leaf.values.remove(index);
+			leaf.bytes -= keyCodec.size(k) + valueCodec.size(oldVal);
+			size--;
+			pool.markDirty(path[height - 1]);
+			modCount++;
+			repair(path, slots, pages);
+			return oldVal;
+		} finally {
+			unpin(path);
+		}
+	}
+
+	public void clear() {
+		try {
+			reset();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		modCount++;
+	}
+
+	/**
+	 * Pins the pages from the root to the leaf whose range holds a key.
+	 *
+	 * @param path
+	 *            set to the id of the page at each depth
+	 * @param slots
+	 *            set to the slot of the child taken in each guide
+	 * @return page at each depth
+	 */
+	private List<Page<K, V>> pinPath(K key, int[] path, int[] slots) {
+		final List<Page<K, V>> pages = new ArrayList<Page<K, V>>(height);
+		int id = root;
+		for (int depth = 0; depth < path.length; depth++) {
+			final Page<K, V> page = pool.pin(id, keepDepth(depth));
+			path[depth] = id;
+			pages.add(page);
+			if (!page.leaf) {
+				slots[depth] = kidIndex(page, key);
+				id = page.kids.get(slots[depth]);
+			}
+		}
+		return pages;
+	}
+
+	private void unpin(int[] path) {
+		for (int id : path) {
+			if (id != NONE) {
+				pool.unpin(id);
+			}
+		}
+	}
+
+	/**
+	 * Restores the pages along a path after its leaf changed, from the leaf
+	 * up: a page that overflows is split, and one under a quarter full joins
+	 * or shares entries with a sibling. Pages released on the way are set to
+	 * NONE in the path.
+	 */
+	private void repair(int[] path, int[] slots, List<Page<K, V>> pages) {
+		for (int depth = path.length - 1; depth >= 0; depth--) {
+			final Page<K, V> page = pages.get(depth);
+			if (page.bytes > capacity) {
+				split(path, slots, pages, depth);
+			} else if (depth > 0 && page.bytes * 4 < capacity) {
+				join(path, slots, pages, depth);
+			} else {
+				break;
+			}
+		}
+
+		if (path[0] == root && height > 1 && pages.get(0).kids.size() == 1) {
+			root = pages.get(0).kids.get(0);
+			release(path[0]);
+			path[0] = NONE;
+			height--;
+			pool.releaseKept();
+		}
+	}
+
+	/**
+	 * Moves the upper half of a page to a new page to its right, and adds the
+	 * new page to the parent, or to a new root.
+	 */
+	private void split(int[] path, int[] slots, List<Page<K, V>> pages,
+			int depth) {
+		final Page<K, V> page = pages.get(depth);
+		final int id = allocate();
+		final Page<K, V> right = new Page<K, V>(page.leaf);
+		pool.add(id, right);
+		final K separator = share(page, right, null);
+		if (page.leaf) {
+			right.next = page.next;
+			page.next = id;
+		}
+		pool.markDirty(path[depth]);
+
+		if (depth == 0) {
+			final int rootId = allocate();
+			final Page<K, V> newRoot = new Page<K, V>(false);
+			newRoot.kids.add(path[0]);
+			newRoot.keys.add(separator);
+			newRoot.kids.add(id);
+			newRoot.bytes = keyCodec.size(separator) + 8;
+			pool.add(rootId, newRoot);
+			pool.unpin(rootId);
+			root = rootId;
+			height++;
+			pool.releaseKept();
+		} else {
+			final Page<K, V> parent = pages.get(depth - 1);
+			final int slot = slots[depth - 1];
+			parent.keys.add(slot, separator);
+			parent.kids.add(slot + 1, id);
+			parent.bytes += keyCodec.size(separator) + 4;
+			pool.markDirty(path[depth - 1]);
+		}
+		pool.unpin(id);
+	}
+
+	/**
+	 * Restores a page under a quarter full by merging it with a sibling if
+	 * they fit in one page, or else by sharing the entries of both evenly.
+	 */
+	private void join(int[] path, int[] slots, List<Page<K, V>> pages,
+			int depth) {
+		final Page<K, V> page = pages.get(depth);
+		final Page<K, V> parent = pages.get(depth - 1);
+		final int slot = slots[depth - 1];
+		if (parent.kids.size() < 2) {
+			return;
+		}
+		final int left = slot > 0 ? slot - 1 : slot;
+		final int siblingId = parent.kids.get(slot > 0 ? slot - 1 : slot + 1);
+		final Page<K, V> sibling = pool.pin(siblingId, keepDepth(depth));
+		final Page<K, V> leftPage = left == slot ? page : sibling;
+		final Page<K, V> rightPage = left == slot ? sibling : page;
+		final K separator = parent.keys.get(left);
+		final int merged = leftPage.bytes + rightPage.bytes
+				+ (page.leaf ? 0 : keyCodec.size(separator));
+
+		if (merged <= capacity) {
+			if (page.leaf) {
+				leftPage.keys.addAll(rightPage.keys);
+				leftPage.values.addAll(rightPage.values);
+				leftPage.next = rightPage.next;
+			} else {
+				leftPage.keys.add(separator);
+				leftPage.keys.addAll(rightPage.keys);
+				leftPage.kids.addAll(rightPage.kids);
+			}
+			leftPage.bytes = merged;
+			parent.keys.remove(left);
+			parent.kids.remove(left + 1);
+			parent.bytes -= keyCodec.size(separator) + 4;
+			if (left == slot) {
+				pool.markDirty(path[depth]);
+				release(siblingId);
+			} else {
+				pool.markDirty(siblingId);
+				pool.unpin(siblingId);
+				release(path[depth]);
+				path[depth] = NONE;
+			}
+		} else {
+			final K newSeparator = share(leftPage, rightPage, separator);
+			parent.keys.set(left, newSeparator);
+			parent.bytes += keyCodec.size(newSeparator)
+					- keyCodec.size(separator);
+			pool.markDirty(path[depth]);
+			pool.markDirty(siblingId);
+			pool.unpin(siblingId);
+		}
+		pool.markDirty(path[depth - 1]);
+	}
+
+	/**
+	 * Moves entries between neighbouring pages so they take about the same
+	 * number of bytes.
+	 *
+	 * @param separator
+	 *            key between the pages in their parent; null if the right page
+	 *            is new
+	 * @return key to put between the pages in their parent
+	 */
+	private K share(Page<K, V> left, Page<K, V> right, K separator) {
+		final List<K> keys = new ArrayList<K>(left.keys);
+		if (left.leaf) {
+			keys.addAll(right.keys);
+			final List<V> values = new ArrayList<V>(left.values);
+			values.addAll(right.values);
+			final int[] sizes = new int[keys.size()];
+			int total = 0;
+			for (int i = 0; i < sizes.length; i++) {
+				sizes[i] = keyCodec.size(keys.get(i))
+						+ valueCodec.size(values.get(i));
+				total += sizes[i];
+			}
+			int half = sizes[0];
+			int m = 1;
+			while (m < sizes.length - 1 && (half + sizes[m]) * 2 <= total) {
+				half += sizes[m++];
+			}
+			fill(left, keys.subList(0, m), values.subList(0, m), null);
+			fill(right, keys.subList(m, keys.size()), values.subList(m, keys
+					.size()), null);
+			left.bytes = half;
+			right.bytes = total - half;
+			return right.keys.get(0);
+		}
+
+		if (separator != null) {
+			keys.add(separator);
+		}
+		keys.addAll(right.keys);
+		final List<Integer> kids = new ArrayList<Integer>(left.kids);
+		kids.addAll(right.kids);
+		final int[] sizes = new int[keys.size()];
+		int total = 4 * kids.size();
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = keyCodec.size(keys.get(i));
+			total += sizes[i];
+		}
+		/* the left page takes the kids up to m and the keys before m */
+		int half = 4;
+		int m = 0;
+		while (m < sizes.length - 1 && (half + sizes[m] + 4) * 2 <= total) {
+			half += sizes[m++] + 4;
+		}
+		fill(left, keys.subList(0, m), null, kids.subList(0, m + 1));
+		fill(right, keys.subList(m + 1, keys.size()), null, kids.subList(
+				m + 1, kids.size()));
+		left.bytes = half;
+		right.bytes = total - half - sizes[m];
+		return keys.get(m);
+	}
+
+	private static <K, V> void fill(Page<K, V> page, List<K> keys,
+			List<V> values, List<Integer> kids) {
+		page.keys.clear();
+		page.keys.addAll(keys);
+		if (page.leaf) {
+			page.values.clear();
+			page.values.addAll(values);
+		} else {
+			page.kids.clear();
+			page.kids.addAll(kids);
+		}
+	}
+
+	public K firstKey() {
+		return firstKey(null, null);
+	}
+
+	public K lastKey() {
+		return lastKey(null, null);
+	}
+
+	private K firstKey(K lo, K hi) {
+		final Iterator<Map.Entry<K, V>> it = new Cursor(lo, hi);
+		if (!it.hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return it.next().getKey();
+	}
+
+	private K lastKey(K lo, K hi) {
+		final K key = lastBelow(root, 0, hi);
+		if (key == null || (lo != null && cmp(key, lo) < 0)) {
+			throw new NoSuchElementException();
+		}
+		return key;
+	}
+
+	public SortedMap<K, V> headMap(K toKey) {
+		return new SubMap(null, checkKey(toKey));
+	}
+
+	public SortedMap<K, V> subMap(K fromKey, K toKey) {
+		return new SubMap(checkKey(fromKey), checkKey(toKey));
+	}
+
+	public SortedMap<K, V> tailMap(K fromKey) {
+		return new SubMap(checkKey(fromKey), null);
+	}
+
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new EntrySet(null, null);
+	}
+
+	/**
+	 * Entries within bounds.
+	 */
+	private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+		private final K lo, hi;
+
+		public EntrySet(K lo, K hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		public Iterator<Map.Entry<K, V>> iterator() {
+			return new Cursor(lo, hi);
+		}
+
+		public int size() {
+			if (lo == null && hi == null) {
+				return size;
+			}
+			int count = 0;
+			for (Iterator<Map.Entry<K, V>> it = iterator(); it.hasNext(); it
+					.next()) {
+				count++;
+			}
+			return count;
+		}
+
+		public boolean isEmpty() {
+			return !iterator().hasNext();
+		}
+
+		@SuppressWarnings("unchecked")
+		public boolean contains(Object entry) {
+			if (entry instanceof Map.Entry) {
+				final Map.Entry<?, ?> e = (Map.Entry<?, ?>) entry;
+				final K key = (K) checkKey(e.getKey());
+				final V value = inRange(key, lo, hi) ? get(key) : null;
+				return value != null && value.equals(e.getValue());
+			}
+			return false;
+		}
+
+		public boolean remove(Object entry) {
+			return contains(entry)
+					&& PagedHeptaTrie.this.remove(((Map.Entry<?, ?>) entry)
+							.getKey()) != null;
+		}
+	}
+
+	/**
+	 * Iterator over the entries within bounds. It copies the entries of one
+	 * leaf at a time, so it holds no page of the pool, and finds its place
+	 * again by key after a change made through it.
+	 */
+	private class Cursor implements Iterator<Map.Entry<K, V>> {
+		private final K lo, hi;
+
+		/** entries copied from the current leaf */
+		private List<K> keys;
+
+		private List<V> values;
+
+		private int index;
+
+		/** leaf after the current one */
+		private int next;
+
+		/** key of the entry last returned; null before the first */
+		private K position;
+
+		/** true if the entry last returned may be removed */
+		private boolean removable;
+
+		private int expectedModCount = modCount;
+
+		public Cursor(K lo, K hi) {
+			this.lo = lo;
+			this.hi = hi;
+			seek();
+		}
+
+		/**
+		 * Copies the entries after the position from the leaf holding it.
+		 */
+		private void seek() {
+			final K from = position != null ? position : lo;
+			final Page<K, V> leaf = from == null ? firstLeaf() : findLeaf(from);
+			int start = 0;
+			if (from != null) {
+				start = indexOf(leaf, from);
+				start = start < 0 ? -(start + 1) : position != null ? start + 1
+						: start;
+			}
+			load(leaf, start);
+		}
+
+		private void load(Page<K, V> leaf, int start) {
+			keys = new ArrayList<K>(leaf.keys.subList(start, leaf.keys.size()));
+			values = new ArrayList<V>(leaf.values.subList(start, leaf.values
+					.size()));
+			index = 0;
+			next = leaf.next;
+		}
+
+		/**
+		 * Finds the place of the cursor again after a change made through it.
+		 */
+		private void resync() {
+			expectedModCount = modCount;
+			seek();
+		}
+
+		public boolean hasNext() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			while (index == keys.size() && next != NONE) {
+				load(pool.get(next, -1), 0);
+			}
+			return index < keys.size()
+					&& (hi == null || cmp(keys.get(index), hi) < 0);
+		}
+
+		public Map.Entry<K, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			position = keys.get(index);
+			removable = true;
+			return new Entry(this, position, values.get(index++));
+		}
+
+		public void remove() {
+			if (!removable) {
+				throw new IllegalStateException();
+			}
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException();
+			}
+			PagedHeptaTrie.this.remove(position);
+			removable = false;
+			resync();
+		}
+	}
+
+	/**
+	 * Entry read from a leaf. Setting its value puts it in the trie.
+	 */
+	private class Entry extends AbstractMap.SimpleEntry<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		/** cursor that returned the entry */
+		private final Cursor cursor;
+
+		public Entry(Cursor cursor, K key, V value) {
+			super(key, value);
+			this.cursor = cursor;
+		}
+
+		public V setValue(V value) {
+			put(getKey(), value);
+			cursor.resync();
+			return super.setValue(value);
+		}
+	}
+
+	/**
+	 * View of the entries within bounds.
+	 */
+	private class SubMap extends AbstractMap<K, V> implements SortedMap<K, V> {
+		/** lowest key in the view, inclusive; null if unbounded */
+		private final K lo;
+
+		/** key above the view, exclusive; null if unbounded */
+		private final K hi;
+
+		public SubMap(K lo, K hi) {
+			if (lo != null && hi != null && cmp(lo, hi) > 0) {
+				throw new IllegalArgumentException("fromKey > toKey");
+			}
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@SuppressWarnings("unchecked")
+		private boolean inRange(Object key) {
+			return PagedHeptaTrie.this.inRange((K) key, lo, hi);
+		}
+
+		/**
+		 * Checks the lower bound of a view of this view, which must lie in
+		 * this view's range.
+		 */
+		private K checkFrom(K key) {
+			if (!inRange(checkKey(key))) {
+				throw new IllegalArgumentException("fromKey out of range");
+			}
+			return key;
+		}
+
+		/**
+		 * Checks the upper bound of a view of this view, which may also equal
+		 * this view's upper bound.
+		 */
+		private K checkTo(K key) {
+			checkKey(key);
+			if ((lo != null && cmp(key, lo) < 0)
+					|| (hi != null && cmp(key, hi) > 0)) {
+				throw new IllegalArgumentException("toKey out of range");
+			}
+			return key;
+		}
+
+		public Comparator<? super K> comparator() {
+			return comparator;
+		}
+
+		public SortedMap<K, V> subMap(K fromKey, K toKey) {
+			return new SubMap(checkFrom(fromKey), checkTo(toKey));
+		}
+
+		public SortedMap<K, V> headMap(K toKey) {
+			return new SubMap(lo, checkTo(toKey));
+		}
+
+		public SortedMap<K, V> tailMap(K fromKey) {
+			return new SubMap(checkFrom(fromKey), hi);
+		}
+
+		public K firstKey() {
+			return PagedHeptaTrie.this.firstKey(lo, hi);
+		}
+
+		public K lastKey() {
+			return PagedHeptaTrie.this.lastKey(lo, hi);
+		}
+
+		public boolean containsKey(Object key) {
+			return inRange(checkKey(key)) && PagedHeptaTrie.this.containsKey(key);
+		}
+
+		public V get(Object key) {
+			return inRange(checkKey(key)) ? PagedHeptaTrie.this.get(key) : null;
+		}
+
+		public V put(K key, V value) {
+			if (!inRange(checkKey(key))) {
+				throw new IllegalArgumentException("key out of range");
+			}
+			return PagedHeptaTrie.this.put(key, value);
+		}
+
+		public V remove(Object key) {
+			return inRange(checkKey(key)) ? PagedHeptaTrie.this.remove(key)
+					: null;
+		}
+
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new EntrySet(lo, hi);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+//package cmsc420.command;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerException;
+
+import org.w3c.dom.Element;
+
+/**
+ * Executes commands in input order, running consecutive read-only commands on
+ * a pool of threads. Each read-only command is submitted as soon as it
+ * arrives and runs on its own view of the shared data structures (see
+ * {@link Command#Command(Command)}), collecting its results privately. Results
+ * are written to the result sink in the original command order. A command
+ * that is not read-only waits until every earlier command has finished, then
+ * runs on the calling thread.
+ */
+public class ParallelCommandExecutor {
+	/** decides which commands are read-only */
+	private final CommandRegistry registry;
+
+	/** command processor that owns the data structures and the result sink */
+	private final Command command;
+
+	/** receives results in command order */
+	private final ResultSink resultSink;
+
+	private final ForkJoinPool pool;
+
+	/** maximum number of read-only commands in flight */
+	private final int window;
+
+	/** read-only commands in flight, oldest first */
+	private final LinkedList<Future<List<Element>>> pending = new LinkedList<Future<List<Element>>>();
+
+	/** document builder for each worker thread */
+	private final ThreadLocal<DocumentBuilder> documentBuilders = new ThreadLocal<DocumentBuilder>() {
+		protected DocumentBuilder initialValue() {
+			try {
+				return XmlUtility.newDocumentBuilder();
+			} catch (ParserConfigurationException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * Creates an executor with its own pool of threads.
+	 * 
+	 * @param registry
+	 *            handlers and read-only flags of the commands
+	 * @param command
+	 *            command processor; its results must already be set
+	 * @param resultSink
+	 *            the command processor's result sink
+	 * @param threads
+	 *            number of threads running read-only commands
+	 */
+	public ParallelCommandExecutor(final CommandRegistry registry,
+			final Command command, final ResultSink resultSink,
+			final int threads) {
+		this.registry = registry;
+		this.command = command;
+		this.resultSink = resultSink;
+		this.pool = new ForkJoinPool(threads);
+		this.window = threads * 64;
+	}
+
+	/**
+	 * Executes a command, or submits it if it is read-only.
+	 * 
+	 * @param handler
+	 *            handler for the command
+	 * @param node
+	 *            command node to be processed
+	 */
+	public void execute(final CommandHandler handler, final Element node)
+			throws IOException, ParserConfigurationException,
+			TransformerException {
+		if (registry.isReadOnly(node)) {
+			pending.add(pool.submit(new ReadOnlyTask(handler, node)));
+			if (pending.size() > window) {
+				writeOldest();
+			}
+		} else {
+			flush();
+			handler.process(command, node);
+		}
+	}
+
+	/**
+	 * Waits for every submitted command and writes its results.
+	 */
+	public void flush() throws IOException, ParserConfigurationException,
+			TransformerException {
+		while (!pending.isEmpty()) {
+			writeOldest();
+		}
+	}
+
+	/**
+	 * Stops the pool. Commands still in flight are abandoned.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	private void writeOldest() throws IOException,
+			ParserConfigurationException, TransformerException {
+		final List<Element> results;
+		try {
+			results = pending.remove().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof ParserConfigurationException) {
+				throw (ParserConfigurationException) cause;
+			} else if (cause instanceof TransformerException) {
+				throw (TransformerException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+		for (Element result : results) {
+			if (result == null) {
+				resultSink.addFatalError();
+			} else {
+				resultSink.addResult(result);
+			}
+		}
+	}
+
+	/**
+	 * Runs one read-only command on a private view of the data structures.
+	 */
+	private class ReadOnlyTask implements Callable<List<Element>> {
+		private final CommandHandler handler;
+
+		private final Element node;
+
+		public ReadOnlyTask(final CommandHandler handler, final Element node) {
+			this.handler = handler;
+			this.node = node;
+		}
+
+		public List<Element> call() throws Exception {
+			final BufferedResultSink buffer = new BufferedResultSink();
+			final Command view = new Command(command);
+			view.setResults(documentBuilders.get().newDocument(), buffer);
+			handler.process(view, node);
+			return buffer.results;
+		}
+	}
+
+	/**
+	 * Holds the results of one command until they can be written in order.
+	 */
+	private static class BufferedResultSink implements ResultSink {
+		/** results in order; null where a fatal error was reported */
+		private final List<Element> results = new ArrayList<Element>(1);
+
+		public void addResult(final Element result) {
+			results.add(result);
+		}
+
+		public void addFatalError() {
+			results.add(null);
+		}
+
+		public void close() throws XMLStreamException {
+		}
+	}
+}
@@ -8,17 +8,12 @@
 
 //package cmsc420.geometry;
 
-import java.util.Map;
-import java.util.HashMap;
-
 /**
  * Portal class is an analogue to a real-world portal in 3D space. Each portal
  * contains a location ((x,y,z) coordinates), name.
  */
 public class Portal extends City {
 
-	private Map<Integer, Road> nearestRoad = new HashMap<Integer, Road>();
-
 	/**
 	 * Constructs a portal.
 	 * 
@@ -38,14 +33,6 @@ public class Portal extends City {
 	public Portal(final Portal portal) {
 		this(portal.getName(), portal.getX(), portal.getY(), portal.getZ());	
 	}
-	
-	public void setNearestRoad(int z, Road road) {
-		this.nearestRoad.put(new Integer(z), road);
-	}
-	
-	public Road getNearestRoad(int z) {
-		return nearestRoad.get(new Integer(z));
-	}
 
 	/**
 	 * Determines if this portal is equal to another object. The result is true if
@@ -0,0 +1,73 @@
+//package cmsc420.geometry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Temporary roads built for one shortest path query. Each portal is connected
+ * to both ends of the nearest road on each level it serves. The roads are
+ * kept in a private adjacency list, and the nearest road chosen for each
+ * portal and level is kept here instead of in the {@link Portal}. Because of
+ * this, the shared road adjacency list is never modified and several queries
+ * can run at the same time.
+ */
+public class PortalRoads {
+	/** roads between portals and the ends of their nearest roads */
+	private final RoadAdjacencyList roads = new RoadAdjacencyList();
+
+	/** nearest road for each portal, by level */
+	private final Map<Portal, Map<Integer, Road>> nearestRoads = new HashMap<Portal, Map<Integer, Road>>();
+
+	/**
+	 * Connects a portal to both ends of its nearest road on a level.
+	 * 
+	 * @param portal
+	 *            portal to be connected
+	 * @param z
+	 *            level of the nearest road
+	 * @param nearestRoad
+	 *            road nearest to the portal on that level
+	 * @param distance
+	 *            distance from the portal to the nearest road
+	 */
+	public void addNearestRoad(final Portal portal, final int z,
+			final Road nearestRoad, final double distance) {
+		Map<Integer, Road> roadsForPortal = nearestRoads.get(portal);
+		if (roadsForPortal == null) {
+			roadsForPortal = new HashMap<Integer, Road>();
+			nearestRoads.put(portal, roadsForPortal);
+		}
+		roadsForPortal.put(z, nearestRoad);
+
+		final Road betweenPortalAndStart = new Road(portal, nearestRoad.getStart());
+		betweenPortalAndStart.setDistance(distance);
+		final Road betweenPortalAndEnd = new Road(portal, nearestRoad.getEnd());
+		betweenPortalAndEnd.setDistance(distance);
+		roads.addRoad(betweenPortalAndStart);
+		roads.addRoad(betweenPortalAndEnd);
+	}
+
+	/**
+	 * Gets the nearest road of a portal on a level.
+	 * 
+	 * @param portal
+	 *            portal
+	 * @param z
+	 *            level
+	 * @return nearest road, or <code>null</code> if the portal was not
+	 *         connected on that level
+	 */
+	public Road getNearestRoad(final Portal portal, final int z) {
+		final Map<Integer, Road> roadsForPortal = nearestRoads.get(portal);
+		return roadsForPortal == null ? null : roadsForPortal.get(z);
+	}
+
+	/**
+	 * Gets the adjacency list holding the portal roads.
+	 * 
+	 * @return adjacency list of the portal roads
+	 */
+	public RoadAdjacencyList getRoads() {
+		return roads;
+	}
+}
@@ -0,0 +1,37 @@
+//package cmsc420.xml;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Element;
+
+/**
+ * Receives the result of each processed command. A result is the success or
+ * error element built by {@link Command} for one command. Implementations may
+ * collect results into a document or write each one out as soon as it
+ * arrives.
+ */
+public interface ResultSink {
+	/**
+	 * Adds the result of one command.
+	 * 
+	 * @param result
+	 *            success or error element describing the command
+	 * @throws IllegalStateException
+	 *             the result could not be written
+	 */
+	public void addResult(Element result);
+
+	/**
+	 * Reports that the input could not be processed. Results added before the
+	 * fatal error are kept if they have already been written out.
+	 */
+	public void addFatalError();
+
+	/**
+	 * Finishes the results. No results may be added afterwards.
+	 * 
+	 * @throws XMLStreamException
+	 *             the results could not be written
+	 */
+	public void close() throws XMLStreamException;
+}
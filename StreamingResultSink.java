@@ -0,0 +1,195 @@
+//package cmsc420.xml;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes each result to an output stream as soon as it is added, so memory use
+ * does not grow with the number of commands and the output can be read while
+ * the program is still running. Output is indented the same way as
+ * {@link XmlUtility#write(org.w3c.dom.Document, OutputStream)}.
+ */
+public class StreamingResultSink implements ResultSink {
+	/**
+	 * Factory which generates the stream writers.
+	 */
+	private static final XMLOutputFactory outputFactory = XMLOutputFactory
+			.newInstance();
+
+	/** number of spaces per level of indentation */
+	private static final int INDENT = 2;
+
+	/** a new line followed by spaces, reused for every line */
+	private char[] indentation = new char[] { '\n' };
+
+	private final OutputStream outputStream;
+
+	/** if the output stream is closed along with this sink */
+	private final boolean closeStream;
+
+	private final XMLStreamWriter writer;
+
+	/** if the results start tag has been written */
+	private boolean started = false;
+
+	/** if a fatal error has been written in place of the results */
+	private boolean fatal = false;
+
+	/** if the document has been finished */
+	private boolean closed = false;
+
+	/**
+	 * Writes the XML declaration to the output stream.
+	 * 
+	 * @param outputStream
+	 *            XML output stream; closed when this sink is closed
+	 * @throws XMLStreamException
+	 *             problem creating the stream writer
+	 */
+	public StreamingResultSink(final OutputStream outputStream)
+			throws XMLStreamException {
+		this(outputStream, true);
+	}
+
+	/**
+	 * Writes the XML declaration to the output stream.
+	 * 
+	 * @param outputStream
+	 *            XML output stream
+	 * @param closeStream
+	 *            if the output stream is closed when this sink is closed, or
+	 *            only flushed, as for <code>System.out</code>
+	 * @throws XMLStreamException
+	 *             problem creating the stream writer
+	 */
+	public StreamingResultSink(final OutputStream outputStream,
+			final boolean closeStream) throws XMLStreamException {
+		this.outputStream = new BufferedOutputStream(outputStream);
+		this.closeStream = closeStream;
+		synchronized (outputFactory) {
+			writer = outputFactory.createXMLStreamWriter(this.outputStream,
+					"UTF-8");
+		}
+		writer.writeStartDocument("UTF-8", "1.0");
+	}
+
+	public void addResult(final Element result) {
+		try {
+			if (!started) {
+				newLine(0);
+				writer.writeStartElement("results");
+				started = true;
+			}
+			writeElement(result, 1);
+			writer.flush();
+		} catch (XMLStreamException e) {
+			throw new IllegalStateException("unable to write result", e);
+		}
+	}
+
+	public void addFatalError() {
+		try {
+			if (!started) {
+				newLine(0);
+				fatal = true;
+			} else {
+				newLine(1);
+			}
+			writer.writeEmptyElement("fatalError");
+			writer.flush();
+		} catch (XMLStreamException e) {
+			throw new IllegalStateException("unable to write result", e);
+		}
+	}
+
+	public void close() throws XMLStreamException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (started) {
+			newLine(0);
+			writer.writeEndElement();
+		} else if (!fatal) {
+			newLine(0);
+			writer.writeEmptyElement("results");
+		}
+		writer.writeEndDocument();
+		writer.writeCharacters("\n");
+		writer.close();
+		try {
+			if (closeStream) {
+				outputStream.close();
+			} else {
+				outputStream.flush();
+			}
+		} catch (IOException e) {
+			throw new XMLStreamException(e);
+		}
+	}
+
+	/**
+	 * Writes a DOM element and its descendants.
+	 * 
+	 * @param element
+	 *            element to be written
+	 * @param depth
+	 *            indentation level of the element
+	 */
+	private void writeElement(final Element element, final int depth)
+			throws XMLStreamException {
+		newLine(depth);
+		if (!element.hasChildNodes()) {
+			writer.writeEmptyElement(element.getNodeName());
+			writeAttributes(element);
+			return;
+		}
+
+		writer.writeStartElement(element.getNodeName());
+		writeAttributes(element);
+		boolean hasText = false;
+		for (Node child = element.getFirstChild(); child != null; child = child
+				.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				writeElement((Element) child, depth + 1);
+			} else if (child.getNodeType() == Node.TEXT_NODE) {
+				writer.writeCharacters(child.getNodeValue());
+				hasText = true;
+			}
+		}
+		if (!hasText) {
+			newLine(depth);
+		}
+		writer.writeEndElement();
+	}
+
+	private void writeAttributes(final Element element)
+			throws XMLStreamException {
+		final NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			final Node attribute = attributes.item(i);
+			writer.writeAttribute(attribute.getNodeName(), attribute
+					.getNodeValue());
+		}
+	}
+
+	private void newLine(final int depth) throws XMLStreamException {
+		final int length = 1 + depth * INDENT;
+		if (length > indentation.length) {
+			indentation = new char[length * 2];
+			Arrays.fill(indentation, ' ');
+			indentation[0] = '\n';
+		}
+		writer.writeCharacters(indentation, 0, length);
+	}
+}
@@ -0,0 +1,96 @@
+//package cmsc420.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Checks that a StreamingResultSink always writes a well-formed document: an
+ * empty results element when no commands ran, the results in order, or a lone
+ * fatal error.
+ * <p>
+ * Usage: <code>java StreamingResultSinkTest</code>; prints OK, or throws at
+ * the first check that fails.
+ */
+public class StreamingResultSinkTest {
+	public static void main(final String[] args) throws Exception {
+		noResults();
+		someResults();
+		fatalError();
+		streamLeftOpen();
+		System.out.println("OK");
+	}
+
+	/**
+	 * Closes a sink no result was added to.
+	 */
+	private static void noResults() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new StreamingResultSink(out).close();
+		final Element root = parse(out).getDocumentElement();
+		check(root.getNodeName().equals("results"), "root is "
+				+ root.getNodeName() + ", expected results");
+		check(!root.hasChildNodes(), "empty results has children");
+	}
+
+	private static void someResults() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Document document = XmlUtility.getDocumentBuilder()
+				.newDocument();
+		final StreamingResultSink sink = new StreamingResultSink(out);
+		for (int i = 0; i < 3; i++) {
+			final Element success = document.createElement("success");
+			success.setAttribute("id", Integer.toString(i));
+			sink.addResult(success);
+		}
+		sink.close();
+		final Element root = parse(out).getDocumentElement();
+		check(root.getNodeName().equals("results"), "root is "
+				+ root.getNodeName() + ", expected results");
+		check(root.getElementsByTagName("success").getLength() == 3,
+				"results lost");
+	}
+
+	private static void fatalError() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final StreamingResultSink sink = new StreamingResultSink(out);
+		sink.addFatalError();
+		sink.close();
+		final Element root = parse(out).getDocumentElement();
+		check(root.getNodeName().equals("fatalError"), "root is "
+				+ root.getNodeName() + ", expected fatalError");
+	}
+
+	/**
+	 * Closes a sink which leaves its stream open, then writes to the stream.
+	 */
+	private static void streamLeftOpen() throws Exception {
+		final boolean[] closed = new boolean[1];
+		final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+			public void close() throws IOException {
+				closed[0] = true;
+			}
+		};
+		new StreamingResultSink(out, false).close();
+		check(!closed[0], "stream closed");
+		check(parse(out).getDocumentElement().getNodeName().equals("results"),
+				"output not flushed");
+	}
+
+	private static Document parse(final ByteArrayOutputStream out)
+			throws Exception {
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private static void check(final boolean condition, final String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+//package cmsc420.heptatrie;
+
+/**
+ * HeptaTrie of string keys, kept front-coded in its leaves (see
+ * StringLeafNode). Keys are ordered as String.compareTo orders them.
+ */
+public class StringHeptaTrie<V> extends HeptaTrie<String, V> {
+	public StringHeptaTrie(int leafOrder) {
+		this(leafOrder, false);
+	}
+
+	/**
+	 * Creates a trie that may cut its guides down to the shortest strings
+	 * that separate its leaves. Cut guides are no longer keys, so the trie
+	 * prints them as they are.
+	 *
+	 * @param shortSeparators
+	 *            true to cut guides down to the shortest separators
+	 */
+	public StringHeptaTrie(int leafOrder, boolean shortSeparators) {
+		this(leafOrder, DEFAULT_GUIDE_ORDER, shortSeparators);
+	}
+
+	public StringHeptaTrie(int leafOrder, int guideOrder,
+			boolean shortSeparators) {
+		super(new StringLeafNode<V>(new StringComparator(), leafOrder,
+				shortSeparators), guideOrder);
+	}
+}
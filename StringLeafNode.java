@@ -0,0 +1,338 @@
+//package cmsc420.heptatrie;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Leaf of string keys kept front-coded. The prefix shared by every key of the
+ * leaf is kept once, and the rest of each key is packed after the rest of the
+ * one before it in a single byte array. Keys are searched in that form, so a
+ * lookup reads the leaf's own arrays rather than a String for each key probed.
+ * Keys are ordered as String.compareTo orders them.
+ * <p>
+ * Each char of the rest takes one byte if it is below 0x80, two bytes (0x80
+ * plus its high byte, then its low byte) if it is below 0x4000, and three
+ * bytes (0xC0, then its high and low bytes) otherwise, so the first byte
+ * tells the width.
+ */
+public class StringLeafNode<V> extends LeafNode<String, V> {
+	private static final char[] NO_CHARS = new char[0];
+
+	private static final byte[] NO_BYTES = new byte[0];
+
+	/** prefix shared by every key of the leaf */
+	private char[] prefix = NO_CHARS;
+
+	/** rest of each key after the prefix, encoded one after another */
+	private byte[] bytes = NO_BYTES;
+
+	/** ends[i] is the end in bytes of the rest of key i */
+	private int[] ends;
+
+	/** true if guides are cut down to the shortest separators */
+	private final boolean shortSeparators;
+
+	/**
+	 * Creates an empty leaf.
+	 *
+	 * @param comparator
+	 *            comparator ordering strings as String.compareTo does
+	 * @param shortSeparators
+	 *            true to guide with the shortest string between two leaves
+	 *            rather than the first key of the right one
+	 */
+	@SuppressWarnings("unchecked")
+	public StringLeafNode(Comparator<String> comparator, int leafOrder,
+			boolean shortSeparators) {
+		this(comparator, leafOrder, shortSeparators, (V[]) new Object[0], 0, 0);
+	}
+
+	private StringLeafNode(Comparator<String> comparator, int leafOrder,
+			boolean shortSeparators, V[] values, int from, int to) {
+		super(comparator, leafOrder, values, from, to);
+		this.shortSeparators = shortSeparators;
+		this.ends = new int[this.values.length];
+	}
+
+	protected LeafNode<String, V> copyOf(int from, int to) {
+		final StringLeafNode<V> copy = new StringLeafNode<V>(comparator,
+				leafOrder, shortSeparators, values, from, to);
+		copy.pack(this, from, to - from);
+		return copy;
+	}
+
+	/**
+	 * Gets the number of bytes a char is encoded in.
+	 */
+	private static int width(char c) {
+		return c < 0x80 ? 1 : c < 0x4000 ? 2 : 3;
+	}
+
+	/**
+	 * Gets the number of bytes taken by the char encoded from a first byte.
+	 */
+	private static int widthAt(byte first) {
+		return first >= 0 ? 1 : (first & 0xFF) < 0xC0 ? 2 : 3;
+	}
+
+	/**
+	 * Decodes the char encoded at an offset.
+	 */
+	private static char decode(byte[] bytes, int at) {
+		final int first = bytes[at] & 0xFF;
+		if (first < 0x80) {
+			return (char) first;
+		} else if (first < 0xC0) {
+			return (char) ((first - 0x80) << 8 | bytes[at + 1] & 0xFF);
+		}
+		return (char) ((bytes[at + 1] & 0xFF) << 8 | bytes[at + 2] & 0xFF);
+	}
+
+	/**
+	 * Encodes the chars of a string from an index to its end.
+	 *
+	 * @return offset after the last byte written
+	 */
+	private static int encode(String key, int from, byte[] bytes, int at) {
+		for (int i = from; i < key.length(); i++) {
+			final char c = key.charAt(i);
+			if (c < 0x80) {
+				bytes[at++] = (byte) c;
+			} else {
+				if (c < 0x4000) {
+					bytes[at++] = (byte) (0x80 + (c >> 8));
+				} else {
+					bytes[at++] = (byte) 0xC0;
+					bytes[at++] = (byte) (c >> 8);
+				}
+				bytes[at++] = (byte) c;
+			}
+		}
+		return at;
+	}
+
+	/**
+	 * Gets the number of bytes the chars of a string from an index take.
+	 */
+	private static int encodedLength(String key, int from) {
+		int length = 0;
+		for (int i = from; i < key.length(); i++) {
+			length += width(key.charAt(i));
+		}
+		return length;
+	}
+
+	/**
+	 * Gets the start in bytes of the rest of a key.
+	 */
+	private int start(int index) {
+		return index == 0 ? 0 : ends[index - 1];
+	}
+
+	public String getKey(int index) {
+		if (index >= size) {
+			return null;
+		}
+		final int end = ends[index];
+		final char[] key = Arrays.copyOf(prefix, prefix.length + end
+				- start(index));
+		int length = prefix.length;
+		for (int at = start(index); at < end; at += widthAt(bytes[at])) {
+			key[length++] = decode(bytes, at);
+		}
+		return new String(key, 0, length);
+	}
+
+	/**
+	 * Binary searches the leaf for a key, comparing the key with the prefix
+	 * once and then with the rest of each key probed.
+	 *
+	 * @return index of the key, or (-(insertion point) - 1) if it is absent
+	 */
+	protected int indexOf(String key) {
+		countComparison();
+		final int shared = Math.min(prefix.length, key.length());
+		for (int i = 0; i < shared; i++) {
+			final char c = key.charAt(i);
+			if (c != prefix[i]) {
+				return c < prefix[i] ? -1 : -(size + 1);
+			}
+		}
+		if (key.length() < prefix.length) {
+			return -1;
+		}
+
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			final int mid = (low + high) >>> 1;
+			countComparison();
+			final int compare = compareRest(mid, key);
+			if (compare < 0) {
+				low = mid + 1;
+			} else if (compare > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Compares the rest of a key of the leaf with the rest of a key that
+	 * starts with the prefix.
+	 */
+	private int compareRest(int index, String key) {
+		int i = start(index);
+		final int end = ends[index];
+		int j = prefix.length;
+		for (; i < end && j < key.length(); i += widthAt(bytes[i]), j++) {
+			final char c = decode(bytes, i);
+			if (c != key.charAt(j)) {
+				return c - key.charAt(j);
+			}
+		}
+		return (i < end ? 1 : 0) - (j < key.length() ? 1 : 0);
+	}
+
+	protected void growKeys(int capacity) {
+		ends = Arrays.copyOf(ends, capacity);
+	}
+
+	protected void insertKey(int ind, String key) {
+		if (size == 0) {
+			prefix = key.toCharArray();
+			ends[0] = 0;
+			return;
+		}
+		int shared = 0;
+		while (shared < prefix.length && shared < key.length()
+				&& key.charAt(shared) == prefix[shared]) {
+			shared++;
+		}
+		if (shared < prefix.length) {
+			shortenPrefix(shared);
+		}
+
+		final int length = encodedLength(key, shared);
+		final int at = start(ind);
+		final int used = ends[size - 1];
+		if (used + length > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(used + length,
+					bytes.length * 2));
+		}
+		System.arraycopy(bytes, at, bytes, at + length, used - at);
+		encode(key, shared, bytes, at);
+		System.arraycopy(ends, ind, ends, ind + 1, size - ind);
+		ends[ind] = at + length;
+		for (int i = ind + 1; i <= size; i++) {
+			ends[i] += length;
+		}
+	}
+
+	/**
+	 * Shortens the prefix, moving the chars cut from it to the front of the
+	 * rest of each key.
+	 */
+	private void shortenPrefix(int length) {
+		final String cut = new String(prefix, length, prefix.length - length);
+		final byte[] encoded = new byte[encodedLength(cut, 0)];
+		encode(cut, 0, encoded, 0);
+		final byte[] rest = new byte[Math.max(bytes.length, ends[size - 1]
+				+ size * encoded.length)];
+		int at = 0;
+		int from = 0;
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(encoded, 0, rest, at, encoded.length);
+			at += encoded.length;
+			System.arraycopy(bytes, from, rest, at, ends[i] - from);
+			at += ends[i] - from;
+			from = ends[i];
+			ends[i] = at;
+		}
+		bytes = rest;
+		prefix = Arrays.copyOf(prefix, length);
+	}
+
+	protected void deleteKey(int ind) {
+		final int at = start(ind);
+		final int length = ends[ind] - at;
+		System.arraycopy(bytes, ends[ind], bytes, at, ends[size - 1]
+				- ends[ind]);
+		System.arraycopy(ends, ind + 1, ends, ind, size - ind - 1);
+		for (int i = ind; i < size - 1; i++) {
+			ends[i] -= length;
+		}
+	}
+
+	protected void truncateKeys(int newSize) {
+		pack(this, 0, newSize);
+	}
+
+	protected void dropKeys() {
+		prefix = NO_CHARS;
+		bytes = NO_BYTES;
+		ends = new int[0];
+	}
+
+	/**
+	 * Packs a range of the keys of a leaf, which may be this one, under the
+	 * longest prefix they share. Keys are sorted, so that is the prefix the
+	 * first and last of them share.
+	 */
+	private void pack(StringLeafNode<V> source, int from, int count) {
+		if (count == 0) {
+			prefix = NO_CHARS;
+			bytes = NO_BYTES;
+			return;
+		}
+		int start = source.start(from);
+		final int firstEnd = source.ends[from];
+		final int lastStart = source.start(from + count - 1);
+		final int lastEnd = source.ends[from + count - 1];
+		char[] shared = source.prefix;
+		int extra = 0;
+		while (start + extra < firstEnd && lastStart + extra < lastEnd) {
+			final char c = decode(source.bytes, start + extra);
+			if (c != decode(source.bytes, lastStart + extra)) {
+				break;
+			}
+			shared = Arrays.copyOf(shared, shared.length + 1);
+			shared[shared.length - 1] = c;
+			extra += width(c);
+		}
+
+		final byte[] rest = new byte[lastEnd - start - count * extra];
+		int at = 0;
+		for (int i = 0; i < count; i++) {
+			final int end = source.ends[from + i];
+			System.arraycopy(source.bytes, start + extra, rest, at, end - start
+					- extra);
+			at += end - start - extra;
+			start = end;
+			ends[i] = at;
+		}
+		prefix = shared;
+		bytes = rest;
+	}
+
+	/**
+	 * Gets the guide to put between the leaf to the left and this one: the
+	 * first key of this leaf or, if guides are cut down, its shortest prefix
+	 * above the last key on the left.
+	 */
+	protected String separator(LeafNode<String, V> left) {
+		final String first = getKey(0);
+		if (!shortSeparators) {
+			return first;
+		}
+		final String below = left.getKey(left.size() - 1);
+		int shared = 0;
+		while (shared < below.length()
+				&& below.charAt(shared) == first.charAt(shared)) {
+			shared++;
+		}
+		return first.substring(0, shared + 1);
+	}
+}
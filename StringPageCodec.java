@@ -0,0 +1,62 @@
+//package cmsc420.heptatrie;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes strings as an unsigned short length followed by the chars in the
+ * modified UTF-8 of DataOutput.writeUTF, which takes any string, so strings
+ * of up to 65535 bytes read back equal to what was written.
+ */
+public class StringPageCodec implements PageCodec<String> {
+	/** largest number of bytes of chars a string is written in */
+	private static final int MAX_LENGTH = 0xFFFF;
+
+	public int size(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+		}
+		if (length > MAX_LENGTH) {
+			throw new IllegalArgumentException("string of " + length
+					+ " bytes is too long");
+		}
+		return 2 + length;
+	}
+
+	public void write(String s, ByteBuffer buffer) {
+		final int start = buffer.position();
+		buffer.putShort((short) 0);
+		for (int i = 0; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c != 0 && c < 0x80) {
+				buffer.put((byte) c);
+			} else if (c < 0x800) {
+				buffer.put((byte) (0xC0 | c >> 6));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			} else {
+				buffer.put((byte) (0xE0 | c >> 12));
+				buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+				buffer.put((byte) (0x80 | c & 0x3F));
+			}
+		}
+		buffer.putShort(start, (short) (buffer.position() - start - 2));
+	}
+
+	public String read(ByteBuffer buffer) {
+		final int end = (buffer.getShort() & 0xFFFF) + buffer.position();
+		final StringBuilder s = new StringBuilder();
+		while (buffer.position() < end) {
+			final int b = buffer.get() & 0xFF;
+			if (b < 0x80) {
+				s.append((char) b);
+			} else if (b < 0xE0) {
+				s.append((char) ((b & 0x1F) << 6 | buffer.get() & 0x3F));
+			} else {
+				s.append((char) ((b & 0x0F) << 12 | (buffer.get() & 0x3F) << 6
+						| buffer.get() & 0x3F));
+			}
+		}
+		return s.toString();
+	}
+}
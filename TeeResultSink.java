@@ -0,0 +1,41 @@
+//package cmsc420.xml;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.w3c.dom.Element;
+
+/**
+ * Result sink that passes every result on to two other sinks, such as the
+ * output file and standard output.
+ */
+public class TeeResultSink implements ResultSink {
+	private final ResultSink first;
+
+	private final ResultSink second;
+
+	public TeeResultSink(final ResultSink first, final ResultSink second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	public void addResult(final Element result) {
+		first.addResult(result);
+		second.addResult(result);
+	}
+
+	public void addFatalError() {
+		first.addFatalError();
+		second.addFatalError();
+	}
+
+	/**
+	 * Closes both sinks, the second even if closing the first fails.
+	 */
+	public void close() throws XMLStreamException {
+		try {
+			first.close();
+		} finally {
+			second.close();
+		}
+	}
+}
@@ -0,0 +1,398 @@
+//package cmsc420.meeshquest.part2;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Generates large MeeshQuest command documents for benchmarking and soak
+ * testing. The document is written as it is generated, so its size is not
+ * limited by memory.
+ * <p>
+ * Each z-level is divided into square cells. A city sits near the centre of
+ * each occupied cell, and roads only join cities in horizontally or vertically
+ * adjacent cells. The cities are never moved more than a quarter of a cell
+ * from the centre, so these roads never cross each other or pass through
+ * another city, and the road network on each level is planar. Portals are
+ * placed on cell corners, which no city or road touches.
+ * <p>
+ * Cities are named after their level and the order they were created in, so
+ * queries can refer to a random city without keeping a list of them. Roads are
+ * mapped as soon as both of their cities exist.
+ * <p>
+ * Usage: <code>java WorkloadGenerator [name=value ...]</code>, where the
+ * parameters are
+ * <ul>
+ * <li>cities: number of cities over all levels (default 1000)</li>
+ * <li>levels: number of z-levels (default 1)</li>
+ * <li>distribution: uniform, clustered or grid (default uniform)</li>
+ * <li>clusters: number of clusters per level for the clustered
+ * distribution (default 8)</li>
+ * <li>roads: fraction of adjacent city pairs joined by a road; the grid
+ * distribution joins all of them (default 0.8)</li>
+ * <li>portals: number of portals per level (default 1)</li>
+ * <li>queries: number of query commands (default 1000)</li>
+ * <li>mix: relative weight of each query command (default
+ * rangeCities:1,rangeRoads:1,nearestCity:1,nearestPortal:1,shortestPath:1)
+ * </li>
+ * <li>cell: width of a cell (default 16)</li>
+ * <li>leafOrder: leaf order of the HeptaTrie (default 3)</li>
+ * <li>guideOrder: guide order of the HeptaTrie (default 7); written to the
+ * document only if it is not the default</li>
+ * <li>seed: seed of the random number generator (default 420)</li>
+ * <li>schema: schema location written to the document (default
+ * schema.xsd)</li>
+ * <li>out: output file (default standard output)</li>
+ * </ul>
+ */
+public class WorkloadGenerator {
+	/** colors assigned to cities */
+	private static final String[] COLORS = { "black", "red", "green", "blue",
+			"yellow", "purple", "orange" };
+
+	/** queries that may appear in the mix */
+	private static final String[] QUERIES = { "rangeCities", "rangeRoads",
+			"nearestCity", "nearestPortal", "shortestPath", "listCities" };
+
+	private final Map<String, String> parameters;
+
+	private final Random random;
+
+	private final XMLStreamWriter writer;
+
+	/** id of the next command */
+	private int id = 1;
+
+	private final int cities;
+
+	private final int levels;
+
+	private final int cell;
+
+	/** number of cells along each side of a level */
+	private final int side;
+
+	/** width and height of the map; a power of two */
+	private final int spatialSize;
+
+	/** number of cities created on each level */
+	private final int[] citiesOnLevel;
+
+	/**
+	 * Creates a generator writing to a stream.
+	 *
+	 * @param parameters
+	 *            generator parameters, as described above
+	 * @param out
+	 *            stream the document is written to
+	 */
+	public WorkloadGenerator(final Map<String, String> parameters,
+			final OutputStream out) throws XMLStreamException {
+		this.parameters = parameters;
+		random = new Random(Long.parseLong(parameters.get("seed")));
+		writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out,
+				"UTF-8");
+
+		cities = Integer.parseInt(parameters.get("cities"));
+		levels = Integer.parseInt(parameters.get("levels"));
+		cell = Integer.parseInt(parameters.get("cell"));
+		if (cell < 8) {
+			throw new IllegalArgumentException("cell must be at least 8");
+		}
+
+		/*
+		 * about half the cells are occupied, a quarter when clustered, and all
+		 * of them on a grid
+		 */
+		final String distribution = parameters.get("distribution");
+		final int perLevel = (cities + levels - 1) / levels;
+		final int cells = distribution.equals("grid") ? perLevel
+				: distribution.equals("clustered") ? 4 * perLevel : 2 * perLevel;
+		side = Math.max(2, (int) Math.ceil(Math.sqrt(cells)));
+		int spatial = 1;
+		while (spatial < side * cell) {
+			spatial <<= 1;
+		}
+		spatialSize = spatial;
+
+		citiesOnLevel = new int[levels];
+		for (int z = 0; z < levels; z++) {
+			citiesOnLevel[z] = cities / levels + (z < cities % levels ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Writes the whole document.
+	 */
+	public void generate() throws XMLStreamException {
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeCharacters("\n");
+		writer.writeStartElement("commands");
+		writer.writeNamespace("xsi", XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI);
+		writer.writeAttribute(XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI,
+				"noNamespaceSchemaLocation", parameters.get("schema"));
+		writer.writeAttribute("spatialWidth", Integer.toString(spatialSize));
+		writer.writeAttribute("spatialHeight", Integer.toString(spatialSize));
+		writer.writeAttribute("leafOrder", parameters.get("leafOrder"));
+		if (Integer.parseInt(parameters.get("guideOrder"))
+				!= HeptaTrie.DEFAULT_GUIDE_ORDER) {
+			writer.writeAttribute("guideOrder", parameters.get("guideOrder"));
+		}
+
+		for (int z = 0; z < levels; z++) {
+			generateLevel(z);
+		}
+		generateQueries();
+
+		writer.writeCharacters("\n");
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+		writer.writeEndDocument();
+		writer.flush();
+	}
+
+	/**
+	 * Writes the cities, roads and portals of one level. Cells are visited in
+	 * row order and chosen by selection sampling, so exactly the requested
+	 * number of cities is created.
+	 */
+	private void generateLevel(final int z) throws XMLStreamException {
+		final String distribution = parameters.get("distribution");
+		final boolean grid = distribution.equals("grid");
+		final double roadFraction = grid ? 1 : Double.parseDouble(parameters
+				.get("roads"));
+
+		/* cluster centres and spread, in cells */
+		final int clusters = distribution.equals("clustered") ? Integer
+				.parseInt(parameters.get("clusters")) : 0;
+		final double[] clusterX = new double[clusters];
+		final double[] clusterY = new double[clusters];
+		for (int k = 0; k < clusters; k++) {
+			clusterX[k] = random.nextDouble() * side;
+			clusterY[k] = random.nextDouble() * side;
+		}
+		final double spread = Math.max(1, side / (2.0 * Math.max(1, clusters)));
+
+		double remainingWeight = 0;
+		for (int j = 0; j < side; j++) {
+			for (int i = 0; i < side; i++) {
+				remainingWeight += weight(i, j, clusterX, clusterY, spread);
+			}
+		}
+
+		/* creation order of the city in each column of the previous row */
+		final int[] above = new int[side];
+		Arrays.fill(above, -1);
+		int needed = citiesOnLevel[z];
+		int created = 0;
+		for (int j = 0; j < side; j++) {
+			int left = -1;
+			for (int i = 0; i < side; i++) {
+				final double w = weight(i, j, clusterX, clusterY, spread);
+				final int cellsLeft = side * (side - j) - i;
+				final boolean occupied = needed > 0
+						&& (grid || needed >= cellsLeft || random.nextDouble()
+								* remainingWeight < needed * w);
+				remainingWeight -= w;
+				if (!occupied) {
+					left = -1;
+					above[i] = -1;
+					continue;
+				}
+
+				final int jitter = cell / 4 - 1;
+				final int x = i * cell + cell / 2 + random.nextInt(2 * jitter + 1)
+						- jitter;
+				final int y = j * cell + cell / 2 + random.nextInt(2 * jitter + 1)
+						- jitter;
+				command("createCity", "name", cityName(z, created), "x", x, "y",
+						y, "z", z, "radius", random.nextInt(cell), "color",
+						COLORS[random.nextInt(COLORS.length)]);
+				if (left >= 0 && random.nextDouble() < roadFraction) {
+					command("mapRoad", "start", cityName(z, left), "end",
+							cityName(z, created));
+				}
+				if (above[i] >= 0 && random.nextDouble() < roadFraction) {
+					command("mapRoad", "start", cityName(z, above[i]), "end",
+							cityName(z, created));
+				}
+				left = created;
+				above[i] = created;
+				created++;
+				needed--;
+			}
+		}
+		citiesOnLevel[z] = created;
+
+		/* cell corners are never on a road or a city */
+		final int portals = Integer.parseInt(parameters.get("portals"));
+		final int corners = (side - 1) * (side - 1);
+		final int first = random.nextInt(corners);
+		for (int p = 0; p < portals && p < corners; p++) {
+			final int corner = (first + (int) ((long) p * corners / portals))
+					% corners;
+			command("mapPortal", "name", "P" + z + "_" + p, "x", (corner
+					% (side - 1) + 1)
+					* cell, "y", (corner / (side - 1) + 1) * cell, "z", z);
+		}
+	}
+
+	/**
+	 * Gets the relative chance of a cell being occupied.
+	 */
+	private static double weight(final int i, final int j,
+			final double[] clusterX, final double[] clusterY,
+			final double spread) {
+		if (clusterX.length == 0) {
+			return 1;
+		}
+		double w = 0.02;
+		for (int k = 0; k < clusterX.length; k++) {
+			final double dx = i + 0.5 - clusterX[k];
+			final double dy = j + 0.5 - clusterY[k];
+			w += Math.exp(-(dx * dx + dy * dy) / (2 * spread * spread));
+		}
+		return w;
+	}
+
+	/**
+	 * Writes the query commands, chosen according to the mix.
+	 */
+	private void generateQueries() throws XMLStreamException {
+		final String[] names = new String[QUERIES.length];
+		final double[] weights = new double[QUERIES.length];
+		int count = 0;
+		double total = 0;
+		for (String entry : parameters.get("mix").split(",")) {
+			final String[] nameWeight = entry.split(":");
+			if (!Arrays.asList(QUERIES).contains(nameWeight[0])) {
+				throw new IllegalArgumentException("unknown query "
+						+ nameWeight[0]);
+			}
+			names[count] = nameWeight[0];
+			weights[count] = nameWeight.length > 1 ? Double
+					.parseDouble(nameWeight[1]) : 1;
+			total += weights[count];
+			count++;
+		}
+
+		final int queries = Integer.parseInt(parameters.get("queries"));
+		for (int q = 0; q < queries; q++) {
+			double pick = random.nextDouble() * total;
+			int k = 0;
+			while (k < count - 1 && pick >= weights[k]) {
+				pick -= weights[k];
+				k++;
+			}
+			query(names[k]);
+		}
+	}
+
+	private void query(final String name) throws XMLStreamException {
+		final int x = random.nextInt(spatialSize);
+		final int y = random.nextInt(spatialSize);
+		final int z = random.nextInt(levels);
+		if (name.equals("rangeCities") || name.equals("rangeRoads")) {
+			command(name, "x", x, "y", y, "z", z, "radius", random
+					.nextInt(spatialSize / 8) + 1);
+		} else if (name.equals("nearestCity") || name.equals("nearestPortal")) {
+			command(name, "x", x, "y", y, "z", z);
+		} else if (name.equals("listCities")) {
+			command(name, "sortBy", random.nextBoolean() ? "name"
+					: "coordinate");
+		} else {
+			/*
+			 * routes span every level that has cities, as shortestPath only
+			 * builds portal roads for the levels between its endpoints
+			 */
+			int low = 0;
+			while (low < levels && citiesOnLevel[low] == 0) {
+				low++;
+			}
+			if (low == levels) {
+				/* no cities to route between */
+				command("nearestCity", "x", x, "y", y, "z", z);
+				return;
+			}
+			int high = levels - 1;
+			while (citiesOnLevel[high] == 0) {
+				high--;
+			}
+			command(name, "start", cityName(low, random
+					.nextInt(citiesOnLevel[low])), "end", cityName(high, random
+					.nextInt(citiesOnLevel[high])));
+		}
+	}
+
+	private static String cityName(final int z, final int index) {
+		return "C" + z + "_" + index;
+	}
+
+	/**
+	 * Writes a command element with alternating attribute names and values.
+	 */
+	private void command(final String name, final Object... attributes)
+			throws XMLStreamException {
+		writer.writeCharacters("\n  ");
+		writer.writeEmptyElement(name);
+		writer.writeAttribute("id", Integer.toString(id++));
+		for (int i = 0; i < attributes.length; i += 2) {
+			writer.writeAttribute((String) attributes[i], String
+					.valueOf(attributes[i + 1]));
+		}
+	}
+
+	public static void main(final String[] args) throws IOException,
+			XMLStreamException {
+		final Map<String, String> parameters = new LinkedHashMap<String, String>();
+		parameters.put("cities", "1000");
+		parameters.put("levels", "1");
+		parameters.put("distribution", "uniform");
+		parameters.put("clusters", "8");
+		parameters.put("roads", "0.8");
+		parameters.put("portals", "1");
+		parameters.put("queries", "1000");
+		parameters.put("mix",
+				"rangeCities:1,rangeRoads:1,nearestCity:1,nearestPortal:1,shortestPath:1");
+		parameters.put("cell", "16");
+		parameters.put("leafOrder", "3");
+		parameters.put("guideOrder", "7");
+		parameters.put("seed", "420");
+		parameters.put("schema", "schema.xsd");
+		parameters.put("out", null);
+		for (String arg : args) {
+			final int equals = arg.indexOf('=');
+			if (equals < 0 || !parameters.containsKey(arg.substring(0, equals))) {
+				System.err.println("unknown parameter " + arg);
+				System.exit(-1);
+			}
+			parameters.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		final String distribution = parameters.get("distribution");
+		if (!distribution.equals("uniform") && !distribution.equals("clustered")
+				&& !distribution.equals("grid")) {
+			System.err.println("unknown distribution " + distribution);
+			System.exit(-1);
+		}
+
+		final OutputStream out = new BufferedOutputStream(
+				parameters.get("out") == null ? System.out
+						: new FileOutputStream(parameters.get("out")),
+				1 << 16);
+		try {
+			new WorkloadGenerator(parameters, out).generate();
+		} finally {
+			out.close();
+		}
+	}
+}
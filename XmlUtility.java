@@ -13,6 +13,8 @@ import java.io.PipedWriter;
 import java.io.Reader;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
 import javax.naming.OperationNotSupportedException;
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
@@ -73,6 +75,12 @@ public class XmlUtility {
 	 */
 	private static SchemaFactory schemaFactory;
 
+	/**
+	 * Schemas already compiled, keyed by the name they were loaded from.
+	 * Schema objects are immutable and may be shared between threads.
+	 */
+	private static final Map<String, Schema> schemas = new HashMap<String, Schema>();
+
 	/**
 	 * Factory used to transform XML documents to output stream/file.
 	 */
@@ -126,6 +134,20 @@ public class XmlUtility {
 		return documentBuilder;
 	}
 
+	/**
+	 * Creates a new DocumentBuilder from the DocumentBuilderFactory. Unlike
+	 * {@link #getDocumentBuilder()}, the builder is not shared, so it can be
+	 * used by a thread other than the main one.
+	 * 
+	 * @return DocumentBuilder capable of generating a new XML Document.
+	 * @throws ParserConfigurationException
+	 *             a serious configuration error
+	 */
+	public static synchronized DocumentBuilder newDocumentBuilder()
+			throws ParserConfigurationException {
+		return documentBuilderFactory.newDocumentBuilder();
+	}
+
 	/**
 	 * Gets a Transformer from the TransformerFactory
 	 * 
@@ -478,8 +500,39 @@ public class XmlUtility {
 
 		/* load XML schema, represented by a Schema instance */
 		final Element root = document.getDocumentElement();
-		final String schemaFileName = root
-				.getAttribute("xsi:noNamespaceSchemaLocation");
+		final Schema schema = getNoNamespaceSchema(root
+				.getAttribute("xsi:noNamespaceSchemaLocation"));
+
+		/* create a Validator instance */
+		final Validator validator = schema.newValidator();
+
+		/* validate the DOM tree. throws an exception if there is a problem */
+		validator.validate(new DOMSource(document));
+
+		/* return the valid document */
+		return document;
+	}
+
+	/**
+	 * Loads the schema named by a document's xsi:noNamespaceSchemaLocation
+	 * attribute. Works for local or external (online) schemas. Online schemas
+	 * should be accessed using HTTP (not HTTPS). Each schema is compiled once
+	 * and then reused.
+	 *
+	 * @param schemaFileName
+	 *            value of the xsi:noNamespaceSchemaLocation attribute
+	 * @return schema used to validate the document
+	 * @throws SAXException
+	 *             encapsulates problem parsing the schema
+	 * @throws IOException
+	 *             problem reading the schema
+	 */
+	public static synchronized Schema getNoNamespaceSchema(
+			final String schemaFileName) throws SAXException, IOException {
+		Schema schema = schemas.get(schemaFileName);
+		if (schema != null) {
+			return schema;
+		}
 		final Source schemaSource;
 		if (schemaFileName.startsWith("http://")) {
 			/* download the schema from HTTP server */
@@ -490,15 +543,8 @@ public class XmlUtility {
 		} else {
 			schemaSource = new StreamSource(new File(schemaFileName));
 		}
-		final Schema schema = schemaFactory.newSchema(schemaSource);
-
-		/* create a Validator instance */
-		final Validator validator = schema.newValidator();
-
-		/* validate the DOM tree. throws an exception if there is a problem */
-		validator.validate(new DOMSource(document));
-
-		/* return the valid document */
-		return document;
+		schema = schemaFactory.newSchema(schemaSource);
+		schemas.put(schemaFileName, schema);
+		return schema;
 	}
 }
\ No newline at end of file